@@ -10,18 +10,31 @@ import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.io.File;
+import java.io.IOException;
 
 public class BankSystemSQLite extends JFrame {
     // --- SQLite DB config (no external driver needed) ---
     static final String DB_URL = "jdbc:sqlite:bankdb.db";
     
+    static final int PROGRESS_DELAY_MS = 250;
+    /** Pause after the last keystroke before the Find User box searches. */
+    static final int SEARCH_DELAY_MS = 150;
+    
     private CardLayout cardLayout;
     private JPanel mainPanel;
+    private final Set<String> builtCards = new HashSet<>();
     private User currentUser;
+    /** The account the dashboard and dialogs act on; one of accounts. */
     private Account currentAccount;
+    private List<Account> accounts = new ArrayList<>();
+    /** Reloads the dashboard's accounts, total and recent activity; set once the dashboard is built. */
+    private Runnable refreshPortfolio = () -> { };
     
     public BankSystemSQLite() {
+        long t = Startup.begin();
         setTitle("Online Banking Management System");
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setSize(600, 500);
@@ -30,70 +43,304 @@ public class BankSystemSQLite extends JFrame {
         
         cardLayout = new CardLayout();
         mainPanel = new JPanel(cardLayout);
+        Startup.end("frame", t);
         
-        // Initialize database
-        try {
-            initializeDatabase();
-        } catch (Exception ex) {
-            JOptionPane.showMessageDialog(this, "Database initialization failed: " + ex.getMessage(), 
-                "Error", JOptionPane.ERROR_MESSAGE);
+        // Database start-up is already running on a worker (see main); report if it fails
+        AsyncBank.start().whenComplete((v, ex) -> {
+            if (ex != null) {
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this,
+                    "Database initialization failed: " + AsyncBank.rootCause(ex).getMessage(),
+                    "Error", JOptionPane.ERROR_MESSAGE));
+            }
+        });
+        
+        // Only the login screen is built up front; the others are built by showCard on first use
+        add(mainPanel);
+        showCard("LOGIN");
+        
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowOpened(WindowEvent e) {
+                Startup.mark("login screen shown");
+                AsyncBank.start().whenComplete((v, ex) -> Startup.finish());
+            }
+        });
+        t = Startup.begin();
+        setVisible(true);
+        Startup.end("show window", t);
+    }
+    
+    /** Shows a screen, building its panel the first time it is asked for. */
+    private void showCard(String name) {
+        if (builtCards.add(name)) {
+            long t = Startup.begin();
+            switch (name) {
+                case "LOGIN": mainPanel.add(createLoginPanel(), name); break;
+                case "REGISTER": mainPanel.add(createRegisterPanel(), name); break;
+                case "USER_DASHBOARD": mainPanel.add(createUserDashboardPanel(), name); break;
+                case "ADMIN_DASHBOARD": mainPanel.add(createAdminDashboardPanel(), name); break;
+                default: throw new IllegalArgumentException("Unknown screen " + name);
+            }
+            Startup.end("build " + name.toLowerCase() + " panel", t);
         }
+        cardLayout.show(mainPanel, name);
+    }
+    
+    static void initializeDatabase() throws Exception {
+        long t = Startup.begin();
+        try (PooledConnection c = getConnection()) {
+            Startup.end("open database", t);
+            t = Startup.begin();
+            Schema.migrate(c);
+            System.out.println("Database initialized successfully");
+        }
+        Startup.end("schema check", t);
+        t = Startup.begin();
+        Journal.reset();
+        Shards.open();
+        for (int s = 0; s < Shards.count(); s++) Journal.open(Shards.pool(s));
+        TransferCoordinator.recover();
+        Startup.end("shards, journals and recovery", t);
+        t = Startup.begin();
+        Archive.reset();
+        for (int s = 0; s < Shards.count(); s++) Archive.segments(Shards.pool(s));
+        Startup.end("archive index", t);
+    }
+    
+    /**
+     * Versioned schema of the main database file. schema_version holds how many of STEPS have
+     * been applied, so a normal start costs two small reads; only the steps after that number
+     * run, each followed by its version bump. A crash can land between a step and its bump, so
+     * every step must be safe to run twice (IF NOT EXISTS, or a check like the one
+     * migrateMoneyToCents makes). Databases from before versioning start at 0 and simply re-run
+     * everything. Only ever append to STEPS.
+     */
+    static final class Schema {
+        interface Step { void apply(PooledConnection c, Statement st) throws Exception; }
         
-        // Add panels
-        mainPanel.add(createLoginPanel(), "LOGIN");
-        mainPanel.add(createRegisterPanel(), "REGISTER");
-        mainPanel.add(createUserDashboardPanel(), "USER_DASHBOARD");
-        mainPanel.add(createAdminDashboardPanel(), "ADMIN_DASHBOARD");
+        private static final class Migration {
+            final String name;
+            final Step step;
+            Migration(String name, Step step) { this.name = name; this.step = step; }
+        }
         
-        add(mainPanel);
-        cardLayout.show(mainPanel, "LOGIN");
+        private static final List<Migration> STEPS = List.of(
+            new Migration("users, accounts and transactions", (c, st) -> {
+                st.execute("CREATE TABLE IF NOT EXISTS users (" +
+                    "user_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    "name TEXT NOT NULL, " +
+                    "email TEXT UNIQUE NOT NULL, " +
+                    "phone TEXT, " +
+                    "role TEXT DEFAULT 'CUSTOMER', " +
+                    "password_hash TEXT NOT NULL, " +
+                    "salt TEXT NOT NULL, " +
+                    "status TEXT DEFAULT 'PENDING', " +
+                    "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+                st.execute("CREATE TABLE IF NOT EXISTS accounts (" +
+                    "acc_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    "user_id INTEGER NOT NULL, " +
+                    "acc_type TEXT DEFAULT 'SAVINGS', " +
+                    "balance INTEGER DEFAULT 0, " +        // minor units (cents)
+                    "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+                    "FOREIGN KEY(user_id) REFERENCES users(user_id))");
+                st.execute("CREATE TABLE IF NOT EXISTS transactions (" +
+                    "tx_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    "acc_id INTEGER NOT NULL, " +
+                    "tx_type TEXT NOT NULL, " +
+                    "amount INTEGER NOT NULL, " +          // minor units (cents)
+                    "tx_time TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+                    "description TEXT, " +
+                    "target_acc_id INTEGER, " +
+                    "FOREIGN KEY(acc_id) REFERENCES accounts(acc_id))");
+            }),
+            new Migration("money as integer cents", (c, st) -> migrateMoneyToCents(c)),
+            new Migration("statement and account indexes", (c, st) -> {
+                // Statement queries seek on (acc_id, tx_time); tx_id rides along as the rowid
+                st.execute("CREATE INDEX IF NOT EXISTS idx_transactions_acc_time ON transactions(acc_id, tx_time)");
+                st.execute("CREATE INDEX IF NOT EXISTS idx_accounts_user ON accounts(user_id)");
+            }),
+            new Migration("user browser indexes", (c, st) -> {
+                // Admin user browser: filter on status, page/sort on id, name or email
+                st.execute("CREATE INDEX IF NOT EXISTS idx_users_status ON users(status, user_id)");
+                st.execute("CREATE INDEX IF NOT EXISTS idx_users_status_name ON users(status, name)");
+                st.execute("CREATE INDEX IF NOT EXISTS idx_users_status_email ON users(status, email)");
+                st.execute("CREATE INDEX IF NOT EXISTS idx_users_name ON users(name)");   // "ALL" sorted by name
+            }),
+            new Migration("batch import tables", (c, st) -> BatchImporter.createTables(st)),
+            new Migration("archive tables", (c, st) -> Archive.createTables(st)),
+            new Migration("running balances and checkpoints", (c, st) -> RunningBalances.upgrade(c, true)),
+            new Migration("user search index", (c, st) -> UserSearch.rebuild(c)),
+            new Migration("non-negative balance check", (c, st) -> addBalanceCheck(c)));
         
-        // Load JDBC driver
-        try { 
-            Class.forName("org.sqlite.JDBC"); 
-            System.out.println("SQLite JDBC Driver loaded successfully");
-        } catch (Exception e) { 
-            System.out.println("SQLite driver not found, will try to continue: " + e.getMessage());
+        /** Schema version this build expects. */
+        static int latest() { return STEPS.size(); }
+        
+        /** Applied schema version of the database c is open on; 0 if it predates versioning. */
+        static int version(PooledConnection c) throws SQLException {
+            try (Statement st = c.createStatement()) {
+                try (ResultSet rs = st.executeQuery(
+                        "SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = 'schema_version'")) {
+                    if (!rs.next()) return 0;
+                }
+                try (ResultSet rs = st.executeQuery("SELECT version FROM schema_version WHERE id = 0")) {
+                    return rs.next() ? rs.getInt(1) : 0;
+                }
+            }
         }
         
-        setVisible(true);
+        /** Brings the database up to latest(), running only the steps it has not had yet. */
+        static void migrate(PooledConnection c) throws Exception {
+            int from = version(c);
+            if (from == latest()) return;
+            if (from > latest()) {
+                throw new SQLException("Database schema version " + from
+                    + " is newer than this program supports (" + latest() + ")");
+            }
+            try (Statement st = c.createStatement()) {
+                st.execute("CREATE TABLE IF NOT EXISTS schema_version (" +
+                    "id INTEGER PRIMARY KEY CHECK (id = 0), " +
+                    "version INTEGER NOT NULL)");
+                PreparedStatement bump = c.prepare("INSERT OR REPLACE INTO schema_version (id, version) VALUES (0, ?)");
+                for (int v = from; v < latest(); v++) {
+                    Migration m = STEPS.get(v);
+                    long t = System.nanoTime();
+                    m.step.apply(c, st);
+                    bump.setInt(1, v + 1);
+                    bump.executeUpdate();
+                    System.out.printf("Schema: applied %d (%s) in %.1f ms%n", v + 1, m.name, (System.nanoTime() - t) / 1e6);
+                }
+            }
+        }
     }
     
-    private void initializeDatabase() throws Exception {
-        try (Connection c = getConnection(); Statement stmt = c.createStatement()) {
-            // Create tables if they don't exist
-            stmt.execute("CREATE TABLE IF NOT EXISTS users (" +
-                "user_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                "name TEXT NOT NULL, " +
-                "email TEXT UNIQUE NOT NULL, " +
-                "phone TEXT, " +
-                "role TEXT DEFAULT 'CUSTOMER', " +
-                "password_hash TEXT NOT NULL, " +
-                "salt TEXT NOT NULL, " +
-                "status TEXT DEFAULT 'PENDING', " +
-                "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
-            
-            stmt.execute("CREATE TABLE IF NOT EXISTS accounts (" +
-                "acc_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                "user_id INTEGER NOT NULL, " +
-                "acc_type TEXT DEFAULT 'SAVINGS', " +
-                "balance REAL DEFAULT 0.00, " +
-                "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
-                "FOREIGN KEY(user_id) REFERENCES users(user_id))");
-            
-            stmt.execute("CREATE TABLE IF NOT EXISTS transactions (" +
-                "tx_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                "acc_id INTEGER NOT NULL, " +
-                "tx_type TEXT NOT NULL, " +
-                "amount REAL NOT NULL, " +
-                "tx_time TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
-                "description TEXT, " +
-                "target_acc_id INTEGER, " +
-                "FOREIGN KEY(acc_id) REFERENCES accounts(acc_id))");
-            
-            System.out.println("Database initialized successfully");
+    /**
+     * Databases created before money was stored as integer cents have REAL balance/amount
+     * columns. SQLite cannot change a column type in place, so both tables are rebuilt with
+     * the values rounded to cents, in one transaction.
+     */
+    static void migrateMoneyToCents(PooledConnection c) throws SQLException {
+        if (!"REAL".equalsIgnoreCase(columnType(c, "accounts", "balance"))
+                && !"REAL".equalsIgnoreCase(columnType(c, "transactions", "amount"))) return;
+        System.out.println("Migrating balances and amounts to integer cents...");
+        try (Statement st = c.createStatement()) {
+            st.execute("PRAGMA foreign_keys=OFF");
+            c.setAutoCommit(false);
+            try {
+                st.execute("CREATE TABLE accounts_cents (" +
+                    "acc_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    "user_id INTEGER NOT NULL, " +
+                    "acc_type TEXT DEFAULT 'SAVINGS', " +
+                    "balance INTEGER DEFAULT 0, " +
+                    "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+                    "FOREIGN KEY(user_id) REFERENCES users(user_id))");
+                st.execute("INSERT INTO accounts_cents (acc_id, user_id, acc_type, balance, created_at) " +
+                    "SELECT acc_id, user_id, acc_type, CAST(ROUND(balance * 100) AS INTEGER), created_at FROM accounts");
+                st.execute("CREATE TABLE transactions_cents (" +
+                    "tx_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    "acc_id INTEGER NOT NULL, " +
+                    "tx_type TEXT NOT NULL, " +
+                    "amount INTEGER NOT NULL, " +
+                    "tx_time TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+                    "description TEXT, " +
+                    "target_acc_id INTEGER, " +
+                    "FOREIGN KEY(acc_id) REFERENCES accounts(acc_id))");
+                st.execute("INSERT INTO transactions_cents (tx_id, acc_id, tx_type, amount, tx_time, description, target_acc_id) " +
+                    "SELECT tx_id, acc_id, tx_type, CAST(ROUND(amount * 100) AS INTEGER), tx_time, description, target_acc_id FROM transactions");
+                st.execute("DROP TABLE transactions");
+                st.execute("DROP TABLE accounts");
+                st.execute("ALTER TABLE accounts_cents RENAME TO accounts");
+                st.execute("ALTER TABLE transactions_cents RENAME TO transactions");
+                c.commit();
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+                st.execute("PRAGMA foreign_keys=ON");
+            }
+        }
+        System.out.println("Money migration complete");
+    }
+    
+    /**
+     * Adds CHECK (balance >= 0) to the accounts table of the file c is open on, as a backstop
+     * behind the ledger's funds checks. SQLite cannot add a constraint in place, so the table is
+     * rebuilt from its own definition, in one transaction. Does nothing if the check is already
+     * there, and only warns if some balance is already negative (the check would refuse it).
+     */
+    static void addBalanceCheck(PooledConnection c) throws SQLException {
+        String sql;
+        long seq = 0;
+        try (Statement st = c.createStatement()) {
+            try (ResultSet rs = st.executeQuery("SELECT sql FROM sqlite_master WHERE type = 'table' AND name = 'accounts'")) {
+                if (!rs.next()) return;
+                sql = rs.getString(1);
+            }
+            if (sql.contains(BALANCE_CHECK)) return;
+            try (ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM accounts WHERE balance < 0")) {
+                if (rs.next() && rs.getLong(1) > 0) {
+                    System.out.println("Not adding the balance check: " + rs.getLong(1) + " account(s) have a negative balance");
+                    return;
+                }
+            }
+            try (ResultSet rs = st.executeQuery("SELECT seq FROM sqlite_sequence WHERE name = 'accounts'")) {
+                if (rs.next()) seq = rs.getLong(1);
+            }
+        }
+        String checked = sql.replaceFirst("(?i)^CREATE TABLE\\s+(\"accounts\"|accounts)\\s*\\(", "CREATE TABLE accounts_checked (")
+                .replaceFirst("(?i)(balance\\s+INTEGER(\\s+DEFAULT\\s+0)?)", "$1 " + BALANCE_CHECK);
+        if (!checked.startsWith("CREATE TABLE accounts_checked") || !checked.contains(BALANCE_CHECK)) {
+            System.out.println("Not adding the balance check: unexpected accounts definition " + sql);
+            return;
+        }
+        try (Statement st = c.createStatement()) {
+            st.execute("PRAGMA foreign_keys=OFF");
+            c.setAutoCommit(false);
+            try {
+                st.execute(checked);
+                st.execute("INSERT INTO accounts_checked SELECT * FROM accounts");
+                st.execute("DROP TABLE accounts");
+                st.execute("ALTER TABLE accounts_checked RENAME TO accounts");
+                st.execute("CREATE INDEX IF NOT EXISTS idx_accounts_user ON accounts(user_id)");
+                // keep AUTOINCREMENT from handing out an id above the highest surviving row again
+                st.execute("UPDATE sqlite_sequence SET seq = MAX(seq, " + seq + ") WHERE name = 'accounts'");
+                c.commit();
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+                st.execute("PRAGMA foreign_keys=ON");
+            }
+        }
+    }
+
+    static final String BALANCE_CHECK = "CHECK (balance >= 0)";
+
+    /**
+     * Runs work on c with CHECK constraints off, for history that is already decided (journal
+     * replay and repair, a logged cross-shard leg). The balance check is there to refuse new
+     * postings; it must not stop one that was already acknowledged from being recorded.
+     */
+    static <T> T withoutBalanceCheck(PooledConnection c, Callable<T> work) throws Exception {
+        try (Statement st = c.createStatement()) {
+            st.execute("PRAGMA ignore_check_constraints=ON");
+            try {
+                return work.call();
+            } finally {
+                st.execute("PRAGMA ignore_check_constraints=OFF");
+            }
         }
     }
+
+    static String columnType(PooledConnection c, String table, String column) throws SQLException {
+        try (Statement st = c.createStatement(); ResultSet rs = st.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (rs.next()) {
+                if (column.equalsIgnoreCase(rs.getString("name"))) return rs.getString("type");
+            }
+        }
+        return null;
+    }
     
     // ========== LOGIN PANEL ==========
     private JPanel createLoginPanel() {
@@ -147,56 +394,41 @@ public class BankSystemSQLite extends JFrame {
                 return;
             }
             
-            try {
-                User u = UserDAO.findByEmail(email);
-                if (u == null) {
-                    msgLabel.setText("No such user");
-                    return;
-                }
-                
-                if (!UserDAO.verifyPassword(email, password)) {
-                    msgLabel.setText("Invalid credentials");
+            runAsync("Signing in...", true, AsyncBank.login(email, password), r -> {
+                if (r.error != null) {
+                    msgLabel.setText(r.error);
                     return;
                 }
                 
-                if ("PENDING".equals(u.status)) {
-                    msgLabel.setText("Account pending approval");
-                    return;
-                }
-                
-                if ("FROZEN".equals(u.status)) {
-                    msgLabel.setText("Account is frozen");
-                    return;
-                }
-                
-                currentUser = u;
-                currentAccount = AccountDAO.findByUserId(u.userId);
+                currentUser = r.user;
+                currentAccount = r.account;
+                accounts = new ArrayList<>();
+                if (r.account != null) accounts.add(r.account);
                 
-                if ("ADMIN".equals(u.role)) {
-                    cardLayout.show(mainPanel, "ADMIN_DASHBOARD");
+                if ("ADMIN".equals(r.user.role)) {
+                    showCard("ADMIN_DASHBOARD");
                 } else {
-                    cardLayout.show(mainPanel, "USER_DASHBOARD");
+                    showCard("USER_DASHBOARD");
                 }
                 
                 emailField.setText("");
                 passField.setText("");
                 msgLabel.setText("");
-                
-            } catch (Exception ex) {
+            }, ex -> {
                 msgLabel.setForeground(Color.RED);
                 ex.printStackTrace();
                 msgLabel.setText("Login Error: " + ex.getClass().getSimpleName());
                 JOptionPane.showMessageDialog(BankSystemSQLite.this, 
                     "Login Error:\n" + ex.getClass().getName() + "\n\nMessage: " + ex.getMessage(), 
                     "Error Details", JOptionPane.ERROR_MESSAGE);
-            }
+            });
         });
         
         registerBtn.addActionListener(e -> {
             emailField.setText("");
             passField.setText("");
             msgLabel.setText("");
-            cardLayout.show(mainPanel, "REGISTER");
+            showCard("REGISTER");
         });
         
         return panel;
@@ -266,31 +498,29 @@ public class BankSystemSQLite extends JFrame {
                 return;
             }
             
-            try {
-                int uid = UserDAO.createUser(name, email, phone, password, "CUSTOMER");
+            runAsync("Registering...", false, AsyncBank.register(name, email, phone, password), uid -> {
                 if (uid > 0) {
-                    AccountDAO.createAccountForUser(uid, 0.0);
                     msgLabel.setForeground(Color.GREEN);
                     msgLabel.setText("Registration successful! Please login.");
                     nameField.setText("");
                     emailField.setText("");
                     phoneField.setText("");
                     passField.setText("");
-                    javax.swing.Timer timer = new javax.swing.Timer(2000, ev -> cardLayout.show(mainPanel, "LOGIN"));
+                    javax.swing.Timer timer = new javax.swing.Timer(2000, ev -> showCard("LOGIN"));
                     timer.setRepeats(false);
                     timer.start();
                 } else {
                     msgLabel.setForeground(Color.RED);
                     msgLabel.setText("Registration failed");
                 }
-            } catch (Exception ex) {
+            }, ex -> {
                 msgLabel.setForeground(Color.RED);
                 ex.printStackTrace();
                 msgLabel.setText("Error: " + ex.getClass().getSimpleName());
                 JOptionPane.showMessageDialog(BankSystemSQLite.this, 
                     "Registration Error:\n" + ex.getClass().getName() + "\n\nMessage: " + ex.getMessage(), 
                     "Error Details", JOptionPane.ERROR_MESSAGE);
-            }
+            });
         });
         
         backBtn.addActionListener(e -> {
@@ -299,7 +529,7 @@ public class BankSystemSQLite extends JFrame {
             phoneField.setText("");
             passField.setText("");
             msgLabel.setText("");
-            cardLayout.show(mainPanel, "LOGIN");
+            showCard("LOGIN");
         });
         
         return panel;
@@ -316,14 +546,27 @@ public class BankSystemSQLite extends JFrame {
         welcomeLabel.setFont(new Font("Arial", Font.BOLD, 18));
         gbc.gridx = 0; gbc.gridy = 0; gbc.gridwidth = 2;
         panel.add(welcomeLabel, gbc);
+        gbc.insets = new Insets(5, 10, 5, 10);
+        
+        JComboBox<Account> accountBox = new JComboBox<>();
+        JPanel accountRow = new JPanel(new FlowLayout(FlowLayout.CENTER, 5, 0));
+        accountRow.setOpaque(false);
+        accountRow.add(new JLabel("Account:"));
+        accountRow.add(accountBox);
+        gbc.gridy = 1;
+        panel.add(accountRow, gbc);
+        
+        JLabel totalLabel = new JLabel(" ");
+        gbc.gridy = 2;
+        panel.add(totalLabel, gbc);
         
         JLabel balanceLabel = new JLabel("");
         balanceLabel.setFont(new Font("Arial", Font.PLAIN, 16));
-        gbc.gridy = 1;
+        gbc.gridy = 3;
         panel.add(balanceLabel, gbc);
         
         JButton viewBalanceBtn = new JButton("View Balance");
-        gbc.gridx = 0; gbc.gridy = 2; gbc.gridwidth = 1;
+        gbc.gridx = 0; gbc.gridy = 4; gbc.gridwidth = 1;
         panel.add(viewBalanceBtn, gbc);
         
         JButton depositBtn = new JButton("Deposit");
@@ -331,7 +574,7 @@ public class BankSystemSQLite extends JFrame {
         panel.add(depositBtn, gbc);
         
         JButton withdrawBtn = new JButton("Withdraw");
-        gbc.gridx = 0; gbc.gridy = 3;
+        gbc.gridx = 0; gbc.gridy = 5;
         panel.add(withdrawBtn, gbc);
         
         JButton transferBtn = new JButton("Transfer");
@@ -339,40 +582,91 @@ public class BankSystemSQLite extends JFrame {
         panel.add(transferBtn, gbc);
         
         JButton statementBtn = new JButton("Statement");
-        gbc.gridx = 0; gbc.gridy = 4;
+        gbc.gridx = 0; gbc.gridy = 6;
         panel.add(statementBtn, gbc);
         
+        JButton exportBtn = new JButton("Export Statement");
+        gbc.gridx = 1;
+        panel.add(exportBtn, gbc);
+        
+        JButton openAccountBtn = new JButton("Open Account");
+        gbc.gridx = 0; gbc.gridy = 7;
+        panel.add(openAccountBtn, gbc);
+        
         JButton logoutBtn = new JButton("Logout");
         logoutBtn.setForeground(Color.WHITE);
         logoutBtn.setBackground(Color.RED);
         gbc.gridx = 1;
         panel.add(logoutBtn, gbc);
         
+        JTextArea activityArea = new JTextArea(5, 40);
+        activityArea.setEditable(false);
+        activityArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 11));
+        JScrollPane activityPane = new JScrollPane(activityArea);
+        activityPane.setBorder(new TitledBorder("Recent activity"));
+        gbc.gridx = 0; gbc.gridy = 8; gbc.gridwidth = 2;
+        panel.add(activityPane, gbc);
+        
+        accountBox.addActionListener(e -> {
+            Account a = (Account) accountBox.getSelectedItem();
+            if (a != null && (currentAccount == null || a.accId != currentAccount.accId)) {
+                currentAccount = a;
+                balanceLabel.setText("");
+            }
+        });
+        
         viewBalanceBtn.addActionListener(e -> {
-            try {
-                Account acc = AccountDAO.findById(currentAccount.accId);
-                balanceLabel.setText("Account Balance: $" + String.format("%.2f", acc.balance));
-            } catch (Exception ex) {
-                balanceLabel.setText("Error fetching balance");
+            if (currentAccount == null) {
+                JOptionPane.showMessageDialog(this, "Open an account first");
+                return;
             }
+            runAsync("Fetching balance...", true, AsyncBank.balance(currentAccount.accId),
+                balance -> balanceLabel.setText("Account Balance: $" + Money.format(balance)),
+                ex -> balanceLabel.setText("Error fetching balance"));
         });
         
         depositBtn.addActionListener(e -> showDepositDialog());
         withdrawBtn.addActionListener(e -> showWithdrawDialog());
         transferBtn.addActionListener(e -> showTransferDialog());
         statementBtn.addActionListener(e -> showStatementDialog());
+        exportBtn.addActionListener(e -> showExportDialog());
+        openAccountBtn.addActionListener(e -> showOpenAccountDialog());
         
         logoutBtn.addActionListener(e -> {
+            if (currentUser != null) BankService.endSession(currentUser.userId);
             currentUser = null;
             currentAccount = null;
-            cardLayout.show(mainPanel, "LOGIN");
+            accounts = new ArrayList<>();
+            showCard("LOGIN");
         });
         
+        // one query for every account and the latest rows; the total comes from the ledger's per-user cache, dropped at logout
+        refreshPortfolio = () -> {
+            if (currentUser == null) return;
+            runAsync("Loading accounts...", true, AsyncBank.portfolio(currentUser.userId), p -> {
+                accounts = p.accounts;
+                Account keep = currentAccount;
+                accountBox.removeAllItems();
+                for (Account a : p.accounts) {
+                    accountBox.addItem(a);
+                    if (keep != null && a.accId == keep.accId) accountBox.setSelectedItem(a);
+                }
+                currentAccount = (Account) accountBox.getSelectedItem();
+                totalLabel.setText("Total across " + p.accounts.size() + " account(s): $" + Money.format(p.total));
+                StringBuilder sb = new StringBuilder();
+                for (Transaction tx : p.recent) sb.append('#').append(tx.accId).append("  ").append(tx).append('\n');
+                activityArea.setText(sb.length() == 0 ? "No transactions yet" : sb.toString());
+                activityArea.setCaretPosition(0);
+            }, ex -> totalLabel.setText("Error loading accounts"));
+        };
+        
         panel.addComponentListener(new ComponentAdapter() {
             @Override
             public void componentShown(ComponentEvent e) {
                 if (currentUser != null) {
                     welcomeLabel.setText("Welcome, " + currentUser.name);
+                    balanceLabel.setText("");
+                    refreshPortfolio.run();
                 }
             }
         });
@@ -392,7 +686,7 @@ public class BankSystemSQLite extends JFrame {
         gbc.gridx = 0; gbc.gridy = 0; gbc.gridwidth = 2;
         panel.add(welcomeLabel, gbc);
         
-        JButton viewPendingBtn = new JButton("View Pending Users");
+        JButton viewPendingBtn = new JButton("Browse Users");
         gbc.gridx = 0; gbc.gridy = 1; gbc.gridwidth = 1;
         panel.add(viewPendingBtn, gbc);
         
@@ -404,7 +698,7 @@ public class BankSystemSQLite extends JFrame {
         gbc.gridx = 0; gbc.gridy = 2;
         panel.add(freezeBtn, gbc);
         
-        JButton viewUserBtn = new JButton("View User Details");
+        JButton viewUserBtn = new JButton("Find User");
         gbc.gridx = 1;
         panel.add(viewUserBtn, gbc);
         
@@ -414,15 +708,15 @@ public class BankSystemSQLite extends JFrame {
         gbc.gridx = 0; gbc.gridy = 3; gbc.gridwidth = 2;
         panel.add(logoutBtn, gbc);
         
-        viewPendingBtn.addActionListener(e -> showPendingUsersDialog());
+        viewPendingBtn.addActionListener(e -> showUserBrowser("PENDING"));
         approveBtn.addActionListener(e -> showApproveDialog());
         freezeBtn.addActionListener(e -> showFreezeDialog());
-        viewUserBtn.addActionListener(e -> showViewUserDialog());
+        viewUserBtn.addActionListener(e -> showFindUserDialog());
         
         logoutBtn.addActionListener(e -> {
             currentUser = null;
             currentAccount = null;
-            cardLayout.show(mainPanel, "LOGIN");
+            showCard("LOGIN");
         });
         
         panel.addComponentListener(new ComponentAdapter() {
@@ -439,51 +733,80 @@ public class BankSystemSQLite extends JFrame {
     
     // ========== DIALOGS ==========
     private void showDepositDialog() {
+        JComboBox<Account> accountBox = accountPicker();
         JTextField amountField = new JTextField(10);
-        JPanel panel = new JPanel();
+        JPanel panel = new JPanel(new GridLayout(2, 2, 5, 5));
+        panel.add(new JLabel("Account:"));
+        panel.add(accountBox);
         panel.add(new JLabel("Amount:"));
         panel.add(amountField);
         
         int result = JOptionPane.showConfirmDialog(this, panel, "Deposit", JOptionPane.OK_CANCEL_OPTION);
         if (result == JOptionPane.OK_OPTION) {
+            long amount;
             try {
-                double amount = Double.parseDouble(amountField.getText());
-                if (BankService.deposit(currentAccount.accId, amount)) {
+                amount = Money.parse(amountField.getText().trim());
+            } catch (NumberFormatException ex) {
+                JOptionPane.showMessageDialog(this, "Invalid amount or database error");
+                return;
+            }
+            Account acc = (Account) accountBox.getSelectedItem();
+            if (acc == null) {
+                JOptionPane.showMessageDialog(this, "Open an account first");
+                return;
+            }
+            runAsync("Depositing...", false, AsyncBank.deposit(acc.accId, amount), ok -> {
+                if (ok) {
                     JOptionPane.showMessageDialog(this, "Deposit successful!");
+                    refreshPortfolio.run();
                 } else {
                     JOptionPane.showMessageDialog(this, "Deposit failed");
                 }
-            } catch (Exception ex) {
-                JOptionPane.showMessageDialog(this, "Invalid amount or database error");
-            }
+            }, ex -> JOptionPane.showMessageDialog(this, "Invalid amount or database error"));
         }
     }
     
     private void showWithdrawDialog() {
+        JComboBox<Account> accountBox = accountPicker();
         JTextField amountField = new JTextField(10);
-        JPanel panel = new JPanel();
+        JPanel panel = new JPanel(new GridLayout(2, 2, 5, 5));
+        panel.add(new JLabel("Account:"));
+        panel.add(accountBox);
         panel.add(new JLabel("Amount:"));
         panel.add(amountField);
         
         int result = JOptionPane.showConfirmDialog(this, panel, "Withdraw", JOptionPane.OK_CANCEL_OPTION);
         if (result == JOptionPane.OK_OPTION) {
+            long amount;
             try {
-                double amount = Double.parseDouble(amountField.getText());
-                if (BankService.withdraw(currentAccount.accId, amount)) {
+                amount = Money.parse(amountField.getText().trim());
+            } catch (NumberFormatException ex) {
+                JOptionPane.showMessageDialog(this, "Invalid amount or database error");
+                return;
+            }
+            Account acc = (Account) accountBox.getSelectedItem();
+            if (acc == null) {
+                JOptionPane.showMessageDialog(this, "Open an account first");
+                return;
+            }
+            runAsync("Withdrawing...", false, AsyncBank.withdraw(acc.accId, amount), ok -> {
+                if (ok) {
                     JOptionPane.showMessageDialog(this, "Withdrawal successful!");
+                    refreshPortfolio.run();
                 } else {
-                    JOptionPane.showMessageDialog(this, "Withdrawal failed - insufficient funds?");
+                    JOptionPane.showMessageDialog(this, "Withdrawal failed - insufficient funds or over a limit?");
                 }
-            } catch (Exception ex) {
-                JOptionPane.showMessageDialog(this, "Invalid amount or database error");
-            }
+            }, ex -> JOptionPane.showMessageDialog(this, "Invalid amount or database error"));
         }
     }
     
     private void showTransferDialog() {
+        JComboBox<Account> accountBox = accountPicker();
         JTextField toAccField = new JTextField(10);
         JTextField amountField = new JTextField(10);
-        JPanel panel = new JPanel(new GridLayout(2, 2, 5, 5));
+        JPanel panel = new JPanel(new GridLayout(3, 2, 5, 5));
+        panel.add(new JLabel("From Account:"));
+        panel.add(accountBox);
         panel.add(new JLabel("To Account ID:"));
         panel.add(toAccField);
         panel.add(new JLabel("Amount:"));
@@ -491,28 +814,78 @@ public class BankSystemSQLite extends JFrame {
         
         int result = JOptionPane.showConfirmDialog(this, panel, "Transfer", JOptionPane.OK_CANCEL_OPTION);
         if (result == JOptionPane.OK_OPTION) {
+            int toAcc;
+            long amount;
             try {
-                int toAcc = Integer.parseInt(toAccField.getText());
-                double amount = Double.parseDouble(amountField.getText());
-                if (BankService.transfer(currentAccount.accId, toAcc, amount)) {
+                toAcc = Integer.parseInt(toAccField.getText());
+                amount = Money.parse(amountField.getText().trim());
+            } catch (NumberFormatException ex) {
+                JOptionPane.showMessageDialog(this, "Invalid input or database error");
+                return;
+            }
+            Account from = (Account) accountBox.getSelectedItem();
+            if (from == null) {
+                JOptionPane.showMessageDialog(this, "Open an account first");
+                return;
+            }
+            runAsync("Transferring...", false, AsyncBank.transfer(from.accId, toAcc, amount), ok -> {
+                if (ok) {
                     JOptionPane.showMessageDialog(this, "Transfer successful!");
+                    refreshPortfolio.run();
                 } else {
                     JOptionPane.showMessageDialog(this, "Transfer failed");
                 }
-            } catch (Exception ex) {
-                JOptionPane.showMessageDialog(this, "Invalid input or database error");
-            }
+            }, ex -> JOptionPane.showMessageDialog(this, "Invalid input or database error"));
+        }
+    }
+    
+    /** Picks the account a money dialog acts on, starting on the dashboard's selection. */
+    private JComboBox<Account> accountPicker() {
+        JComboBox<Account> box = new JComboBox<>(accounts.toArray(new Account[0]));
+        for (Account a : accounts) {
+            if (currentAccount != null && a.accId == currentAccount.accId) box.setSelectedItem(a);
+        }
+        return box;
+    }
+    
+    private void showOpenAccountDialog() {
+        JComboBox<String> typeBox = new JComboBox<>(AccountDAO.TYPES);
+        JPanel panel = new JPanel();
+        panel.add(new JLabel("Account type:"));
+        panel.add(typeBox);
+        
+        int result = JOptionPane.showConfirmDialog(this, panel, "Open Account", JOptionPane.OK_CANCEL_OPTION);
+        if (result == JOptionPane.OK_OPTION) {
+            String type = (String) typeBox.getSelectedItem();
+            int userId = currentUser.userId;
+            runAsync("Opening account...", false, AsyncBank.openAccount(userId, type), accId -> {
+                if (accId > 0) {
+                    currentAccount = new Account(accId, userId, type, 0);
+                    JOptionPane.showMessageDialog(this, "Opened " + type + " account #" + accId);
+                    refreshPortfolio.run();
+                } else {
+                    JOptionPane.showMessageDialog(this, "Could not open the account");
+                }
+            }, ex -> JOptionPane.showMessageDialog(this, "Error opening account: " + ex.getMessage()));
         }
     }
     
     private void showStatementDialog() {
-        try {
-            List<String> txs = TransactionDAO.miniStatement(currentAccount.accId, 10);
-            StringBuilder sb = new StringBuilder("Recent Transactions:\n\n");
-            if (txs.isEmpty()) {
+        showStatementPage(null, 1);
+    }
+    
+    private void showStatementPage(StatementCursor cursor, int pageNo) {
+        Account acc = currentAccount;
+        if (acc == null) {
+            JOptionPane.showMessageDialog(this, "Open an account first");
+            return;
+        }
+        runAsync("Loading statement...", true, AsyncBank.statement(acc.accId, cursor, 10), page -> {
+            StringBuilder sb = new StringBuilder(pageNo == 1 ? "Recent Transactions:\n\n" : "Transactions (page " + pageNo + "):\n\n");
+            if (page.rows.isEmpty()) {
                 sb.append("No transactions");
             } else {
-                for (String tx : txs) {
+                for (Transaction tx : page.rows) {
                     sb.append(tx).append("\n");
                 }
             }
@@ -520,31 +893,121 @@ public class BankSystemSQLite extends JFrame {
             textArea.setText(sb.toString());
             textArea.setEditable(false);
             JScrollPane scrollPane = new JScrollPane(textArea);
-            JOptionPane.showMessageDialog(this, scrollPane, "Statement", JOptionPane.INFORMATION_MESSAGE);
-        } catch (Exception ex) {
-            JOptionPane.showMessageDialog(this, "Error fetching statement");
+            if (page.next == null) {
+                JOptionPane.showMessageDialog(this, scrollPane, "Statement", JOptionPane.INFORMATION_MESSAGE);
+                return;
+            }
+            Object[] options = {"Older", "Close"};
+            int choice = JOptionPane.showOptionDialog(this, scrollPane, "Statement", JOptionPane.DEFAULT_OPTION,
+                    JOptionPane.INFORMATION_MESSAGE, null, options, options[1]);
+            if (choice == 0) showStatementPage(page.next, pageNo + 1);
+        }, ex -> JOptionPane.showMessageDialog(this, "Error fetching statement"));
+    }
+    
+    private void showExportDialog() {
+        Account acc = currentAccount;
+        if (acc == null) {
+            JOptionPane.showMessageDialog(this, "Open an account first");
+            return;
         }
+        int accId = acc.accId;
+        JFileChooser chooser = new JFileChooser();
+        javax.swing.filechooser.FileNameExtensionFilter csv = new javax.swing.filechooser.FileNameExtensionFilter("CSV (*.csv)", "csv");
+        javax.swing.filechooser.FileNameExtensionFilter pdf = new javax.swing.filechooser.FileNameExtensionFilter("PDF (*.pdf)", "pdf");
+        chooser.addChoosableFileFilter(csv);
+        chooser.addChoosableFileFilter(pdf);
+        chooser.setFileFilter(csv);
+        chooser.setSelectedFile(new File("statement-" + accId + ".csv"));
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        
+        File file = chooser.getSelectedFile();
+        boolean asPdf = chooser.getFileFilter() == pdf || file.getName().toLowerCase().endsWith(".pdf");
+        String ext = asPdf ? ".pdf" : ".csv";
+        if (!file.getName().toLowerCase().endsWith(ext)) file = new File(file.getPath() + ext);
+        java.nio.file.Path out = file.toPath();
+        
+        AtomicLong done = new AtomicLong();
+        AtomicLong total = new AtomicLong(-1);
+        AsyncBank.countTransactions(accId).thenAccept(total::set);
+        CompletableFuture<Long> export = AsyncBank.exportStatement(accId, out, asPdf, done::set);
+        runAsync("Exporting statement...", true, export, () -> {
+            long t = total.get();
+            return t < 0 ? done.get() + " rows" : done.get() + " of " + t + " rows";
+        }, rows -> JOptionPane.showMessageDialog(this, "Exported " + rows + " transactions to " + out),
+           ex -> JOptionPane.showMessageDialog(this, "Export failed: " + ex.getMessage()));
     }
     
-    private void showPendingUsersDialog() {
-        try {
-            List<User> pending = UserDAO.pendingUsers();
-            StringBuilder sb = new StringBuilder();
-            if (pending.isEmpty()) {
-                sb.append("No pending users");
-            } else {
-                for (User u : pending) {
-                    sb.append(u.userId).append(" | ").append(u.name).append(" | ").append(u.email).append("\n");
-                }
+    /**
+     * The admin user browser: a JTable over UserTableModel, so only the pages that are scrolled
+     * into view are ever fetched. Status filter and column sort (click a header) run in SQL;
+     * Approve/Freeze apply to every selected row in a single transaction.
+     */
+    private void showUserBrowser(String status) {
+        UserTableModel model = new UserTableModel(status);
+        JTable table = new JTable(model);
+        table.setFillsViewportHeight(true);
+        table.getTableHeader().setReorderingAllowed(false);
+        table.getTableHeader().addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int col = table.columnAtPoint(e.getPoint());
+                if (col >= 0) model.sortBy(table.convertColumnIndexToModel(col));
             }
-            JTextArea textArea = new JTextArea(10, 40);
-            textArea.setText(sb.toString());
-            textArea.setEditable(false);
-            JScrollPane scrollPane = new JScrollPane(textArea);
-            JOptionPane.showMessageDialog(this, scrollPane, "Pending Users", JOptionPane.INFORMATION_MESSAGE);
-        } catch (Exception ex) {
-            JOptionPane.showMessageDialog(this, "Error fetching pending users");
+        });
+        
+        JDialog dialog = new JDialog(this, "Users", Dialog.ModalityType.DOCUMENT_MODAL);
+        JComboBox<String> statusBox = new JComboBox<>(new String[] {"ALL", "PENDING", "ACTIVE", "FROZEN"});
+        statusBox.setSelectedItem(status == null ? "ALL" : status);
+        statusBox.addActionListener(e -> {
+            String s = (String) statusBox.getSelectedItem();
+            model.filter("ALL".equals(s) ? null : s);
+        });
+        JLabel info = new JLabel(" ");
+        model.onRefresh = () -> info.setText(model.getRowCount() + " users, sorted by " + model.sortLabel());
+        
+        JPanel top = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        top.add(new JLabel("Status:"));
+        top.add(statusBox);
+        top.add(info);
+        
+        JButton approveBtn = new JButton("Approve Selected");
+        JButton freezeBtn = new JButton("Freeze Selected");
+        JButton closeBtn = new JButton("Close");
+        approveBtn.addActionListener(e -> bulkSetStatus(dialog, table, model, "ACTIVE"));
+        freezeBtn.addActionListener(e -> bulkSetStatus(dialog, table, model, "FROZEN"));
+        closeBtn.addActionListener(e -> dialog.dispose());
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        buttons.add(approveBtn);
+        buttons.add(freezeBtn);
+        buttons.add(closeBtn);
+        
+        JPanel content = new JPanel(new BorderLayout(5, 5));
+        content.setBorder(new EmptyBorder(10, 10, 10, 10));
+        content.add(top, BorderLayout.NORTH);
+        content.add(new JScrollPane(table), BorderLayout.CENTER);
+        content.add(buttons, BorderLayout.SOUTH);
+        dialog.setContentPane(content);
+        dialog.setSize(760, 480);
+        dialog.setLocationRelativeTo(this);
+        model.refresh();
+        dialog.setVisible(true);
+    }
+    
+    private void bulkSetStatus(JDialog owner, JTable table, UserTableModel model, String status) {
+        int[] rows = table.getSelectedRows();
+        if (rows.length == 0) {
+            JOptionPane.showMessageDialog(owner, "Select one or more users first");
+            return;
         }
+        String verb = "ACTIVE".equals(status) ? "Approve" : "Freeze";
+        int result = JOptionPane.showConfirmDialog(owner, verb + " " + rows.length + " selected user(s)?", verb + " Users", JOptionPane.OK_CANCEL_OPTION);
+        if (result != JOptionPane.OK_OPTION) return;
+        CompletableFuture<Integer> update = model.userIds(rows).thenCompose(ids -> AsyncBank.setStatus(ids, status));
+        runAsync("Updating users...", false, update, n -> {
+            table.clearSelection();
+            model.refresh();
+            JOptionPane.showMessageDialog(owner, n + " user(s) updated");
+        }, ex -> JOptionPane.showMessageDialog(owner, "Error updating users: " + ex.getMessage()));
     }
     
     private void showApproveDialog() {
@@ -555,18 +1018,20 @@ public class BankSystemSQLite extends JFrame {
         
         int result = JOptionPane.showConfirmDialog(this, panel, "Approve User", JOptionPane.OK_CANCEL_OPTION);
         if (result == JOptionPane.OK_OPTION) {
+            int id;
             try {
-                int id = Integer.parseInt(idField.getText());
-                User u = UserDAO.findById(id);
-                if (u != null) {
-                    UserDAO.setStatus(id, "ACTIVE");
+                id = Integer.parseInt(idField.getText());
+            } catch (NumberFormatException ex) {
+                JOptionPane.showMessageDialog(this, "Error");
+                return;
+            }
+            runAsync("Approving user...", false, AsyncBank.approve(id), found -> {
+                if (found) {
                     JOptionPane.showMessageDialog(this, "User approved!");
                 } else {
                     JOptionPane.showMessageDialog(this, "User not found");
                 }
-            } catch (Exception ex) {
-                JOptionPane.showMessageDialog(this, "Error");
-            }
+            }, ex -> JOptionPane.showMessageDialog(this, "Error"));
         }
     }
     
@@ -578,292 +1043,7337 @@ public class BankSystemSQLite extends JFrame {
         
         int result = JOptionPane.showConfirmDialog(this, panel, "Freeze User", JOptionPane.OK_CANCEL_OPTION);
         if (result == JOptionPane.OK_OPTION) {
+            int id;
             try {
-                int id = Integer.parseInt(idField.getText());
-                UserDAO.setStatus(id, "FROZEN");
-                JOptionPane.showMessageDialog(this, "User frozen!");
-            } catch (Exception ex) {
+                id = Integer.parseInt(idField.getText());
+            } catch (NumberFormatException ex) {
                 JOptionPane.showMessageDialog(this, "Error");
+                return;
             }
+            runAsync("Freezing user...", false, AsyncBank.setStatus(id, "FROZEN"),
+                v -> JOptionPane.showMessageDialog(this, "User frozen!"),
+                ex -> JOptionPane.showMessageDialog(this, "Error"));
         }
     }
     
-    private void showViewUserDialog() {
-        JTextField idField = new JTextField(10);
-        JPanel panel = new JPanel();
-        panel.add(new JLabel("User ID:"));
-        panel.add(idField);
+    /**
+     * Search box over name, email and phone (or a user id): results follow the text a short
+     * pause after the last keystroke, a page at a time. Double-click a user for the details.
+     */
+    private void showFindUserDialog() {
+        UserSearchModel model = new UserSearchModel();
+        JTable table = new JTable(model);
+        table.setFillsViewportHeight(true);
+        table.getTableHeader().setReorderingAllowed(false);
+        table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
         
-        int result = JOptionPane.showConfirmDialog(this, panel, "View User", JOptionPane.OK_CANCEL_OPTION);
-        if (result == JOptionPane.OK_OPTION) {
-            try {
-                int id = Integer.parseInt(idField.getText());
-                User u = UserDAO.findById(id);
-                if (u != null) {
-                    String info = "ID: " + u.userId + "\nName: " + u.name + "\nEmail: " + u.email + 
-                                  "\nRole: " + u.role + "\nStatus: " + u.status;
-                    JOptionPane.showMessageDialog(this, info, "User Details", JOptionPane.INFORMATION_MESSAGE);
-                } else {
-                    JOptionPane.showMessageDialog(this, "User not found");
-                }
-            } catch (Exception ex) {
-                JOptionPane.showMessageDialog(this, "Error");
+        JDialog dialog = new JDialog(this, "Find User", Dialog.ModalityType.DOCUMENT_MODAL);
+        JTextField searchField = new JTextField(30);
+        JLabel info = new JLabel("Type a name, email, phone number or user ID");
+        JButton moreBtn = new JButton("More");
+        moreBtn.setEnabled(false);
+        model.onChange = () -> {
+            moreBtn.setEnabled(model.hasMore());
+            if (!UserSearch.searchable(model.text())) {
+                info.setText("Type at least " + UserSearch.MIN_PREFIX + " characters");
+            } else {
+                info.setText(model.getRowCount() == 0 ? "No users found"
+                        : model.getRowCount() + (model.hasMore() ? "+" : "") + " user(s)");
             }
-        }
+        };
+        
+        javax.swing.Timer typing = new javax.swing.Timer(SEARCH_DELAY_MS, e -> model.search(searchField.getText()));
+        typing.setRepeats(false);
+        searchField.getDocument().addDocumentListener(new javax.swing.event.DocumentListener() {
+            @Override public void insertUpdate(javax.swing.event.DocumentEvent e) { typing.restart(); }
+            @Override public void removeUpdate(javax.swing.event.DocumentEvent e) { typing.restart(); }
+            @Override public void changedUpdate(javax.swing.event.DocumentEvent e) { typing.restart(); }
+        });
+        searchField.addActionListener(e -> {
+            typing.stop();
+            model.search(searchField.getText());
+        });
+        table.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int row = table.rowAtPoint(e.getPoint());
+                if (e.getClickCount() == 2 && row >= 0) showUserDetails(dialog, model.user(row).userId);
+            }
+        });
+        
+        JPanel top = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        top.add(new JLabel("Search:"));
+        top.add(searchField);
+        top.add(info);
+        
+        JButton viewBtn = new JButton("View");
+        JButton closeBtn = new JButton("Close");
+        moreBtn.addActionListener(e -> model.more());
+        viewBtn.addActionListener(e -> {
+            int row = table.getSelectedRow();
+            if (row < 0) JOptionPane.showMessageDialog(dialog, "Select a user first");
+            else showUserDetails(dialog, model.user(row).userId);
+        });
+        closeBtn.addActionListener(e -> dialog.dispose());
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        buttons.add(moreBtn);
+        buttons.add(viewBtn);
+        buttons.add(closeBtn);
+        
+        JPanel content = new JPanel(new BorderLayout(5, 5));
+        content.setBorder(new EmptyBorder(10, 10, 10, 10));
+        content.add(top, BorderLayout.NORTH);
+        content.add(new JScrollPane(table), BorderLayout.CENTER);
+        content.add(buttons, BorderLayout.SOUTH);
+        dialog.setContentPane(content);
+        dialog.setSize(760, 480);
+        dialog.setLocationRelativeTo(this);
+        dialog.setVisible(true);
+        typing.stop();
     }
     
-    // ========== DATABASE CLASSES ==========
-    static class User {
-        int userId;
-        String name, email, phone, role, status;
-        User(int userId, String name, String email, String role, String status, String phone) {
-            this.userId = userId; this.name = name; this.email = email; this.role = role; this.status = status; this.phone = phone;
-        }
+    private void showUserDetails(Component owner, int id) {
+        runAsync("Loading user...", true, AsyncBank.findUser(id), u -> {
+            if (u != null) {
+                String info = "ID: " + u.userId + "\nName: " + u.name + "\nEmail: " + u.email + "\nPhone: " + u.phone +
+                              "\nRole: " + u.role + "\nStatus: " + u.status;
+                JOptionPane.showMessageDialog(owner, info, "User Details", JOptionPane.INFORMATION_MESSAGE);
+            } else {
+                JOptionPane.showMessageDialog(owner, "User not found");
+            }
+        }, ex -> JOptionPane.showMessageDialog(owner, "Error"));
     }
-
-    static class Account {
-        int accId, userId;
-        double balance;
-        Account(int accId, int userId, double balance) { this.accId = accId; this.userId = userId; this.balance = balance; }
+    
+    // ========== ASYNC UI PLUMBING ==========
+    /**
+     * Hands the result of a background call back to the EDT. If the call takes longer than
+     * PROGRESS_DELAY_MS a modal "working" dialog appears; cancellable calls get a Cancel button
+     * that abandons the call. Money movements pass cancellable=false so a posting is never
+     * left in an unknown state from the user's point of view.
+     */
+    private <T> void runAsync(String message, boolean cancellable, CompletableFuture<T> future,
+                              java.util.function.Consumer<T> onSuccess, java.util.function.Consumer<Throwable> onError) {
+        runAsync(message, cancellable, future, null, onSuccess, onError);
     }
-
-    static Connection getConnection() throws Exception {
-        return DriverManager.getConnection(DB_URL);
+    
+    /** As above; status (if given) is polled while the dialog is up and shown under the message. */
+    private <T> void runAsync(String message, boolean cancellable, CompletableFuture<T> future,
+                              java.util.function.Supplier<String> status,
+                              java.util.function.Consumer<T> onSuccess, java.util.function.Consumer<Throwable> onError) {
+        JDialog progress = new JDialog(this, "Please wait", Dialog.ModalityType.DOCUMENT_MODAL);
+        JPanel content = new JPanel(new BorderLayout(10, 10));
+        content.setBorder(new EmptyBorder(15, 15, 15, 15));
+        content.add(new JLabel(message), BorderLayout.NORTH);
+        JProgressBar bar = new JProgressBar();
+        bar.setIndeterminate(true);
+        javax.swing.Timer statusTimer = null;
+        if (status != null) {
+            bar.setStringPainted(true);
+            bar.setString(status.get());
+            statusTimer = new javax.swing.Timer(200, ev -> bar.setString(status.get()));
+            statusTimer.start();
+        }
+        content.add(bar, BorderLayout.CENTER);
+        if (cancellable) {
+            JButton cancelBtn = new JButton("Cancel");
+            cancelBtn.addActionListener(ev -> future.cancel(true));
+            content.add(cancelBtn, BorderLayout.SOUTH);
+        }
+        progress.setDefaultCloseOperation(cancellable ? WindowConstants.DISPOSE_ON_CLOSE : WindowConstants.DO_NOTHING_ON_CLOSE);
+        progress.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                if (cancellable) future.cancel(true);
+            }
+        });
+        progress.setContentPane(content);
+        progress.pack();
+        progress.setLocationRelativeTo(this);
+        
+        javax.swing.Timer showTimer = new javax.swing.Timer(PROGRESS_DELAY_MS, ev -> {
+            if (!future.isDone()) progress.setVisible(true);
+        });
+        showTimer.setRepeats(false);
+        showTimer.start();
+        
+        javax.swing.Timer statusPoll = statusTimer;
+        future.whenComplete((value, ex) -> SwingUtilities.invokeLater(() -> {
+            showTimer.stop();
+            if (statusPoll != null) statusPoll.stop();
+            progress.dispose();
+            if (future.isCancelled()) return;
+            if (ex == null) onSuccess.accept(value);
+            else onError.accept(AsyncBank.rootCause(ex));
+        }));
     }
+    
+    // ========== ADMIN USER BROWSER ==========
+    /**
+     * TableModel over the users table that only holds the pages the JTable has asked for. A row
+     * whose page is not loaded shows a placeholder and queues the page on the worker pool; the
+     * rows repaint when it arrives. A page that follows a cached one seeks past that page's last
+     * row instead of using OFFSET, so scrolling down stays an index seek however deep it goes.
+     * Changing the filter or sort drops the cache and recounts. EDT only.
+     */
+    static final class UserTableModel extends javax.swing.table.AbstractTableModel {
+        private static final long serialVersionUID = 1L;
+        static final int PAGE_SIZE = Integer.getInteger("bank.admin.pageSize", 200);
+        static final int MAX_PAGES = 50;
+        static final String[] COLUMNS = {"ID", "Name", "Email", "Phone", "Role", "Status"};
+        /** Sort key for each column, or null if the column is not sortable. */
+        static final String[] SORTS = {"user_id", "name", "email", null, null, null};
 
-    static String generateSalt() {
-        SecureRandom sr = new SecureRandom();
-        byte[] salt = new byte[16];
-        sr.nextBytes(salt);
-        return bytesToHex(salt);
-    }
+        private final Map<Integer, List<User>> pages = new LinkedHashMap<Integer, List<User>>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, List<User>> eldest) {
+                return size() > MAX_PAGES;
+            }
+        };
+        private final Set<Integer> loading = new HashSet<>();
+        private String status;
+        private String sort = "user_id";
+        private boolean desc;
+        private int rowCount;
+        /** Bumped on every refresh so pages of a superseded query are dropped when they land. */
+        private int generation;
+        Runnable onRefresh;
 
-    static String hash(String password, String salt) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update((salt + password).getBytes(StandardCharsets.UTF_8));
-            byte[] digest = md.digest();
-            return bytesToHex(digest);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+        UserTableModel(String status) {
+            this.status = status;
         }
-    }
 
-    static String bytesToHex(byte[] b) {
-        StringBuilder sb = new StringBuilder();
-        for (byte x : b) sb.append(String.format("%02x", x));
-        return sb.toString();
-    }
+        void filter(String status) {
+            this.status = status;
+            refresh();
+        }
 
-    static class UserDAO {
-        static User findByEmail(String email) throws Exception {
-            String sql = "SELECT user_id,name,email,phone,role,status FROM users WHERE email = ?";
-            try (Connection c = getConnection(); PreparedStatement p = c.prepareStatement(sql)) {
-                p.setString(1, email);
-                try (ResultSet rs = p.executeQuery()) {
-                    if (rs.next()) {
-                        return new User(rs.getInt("user_id"), rs.getString("name"), rs.getString("email"),
-                                rs.getString("role"), rs.getString("status"), rs.getString("phone"));
-                    }
-                }
-            }
-            return null;
+        /** Sorts by the column, or flips the direction if it is already the sort column. */
+        void sortBy(int col) {
+            String key = SORTS[col];
+            if (key == null) return;
+            desc = key.equals(sort) && !desc;
+            sort = key;
+            refresh();
         }
 
-        static int createUser(String name, String email, String phone, String plainPassword, String role) throws Exception {
-            String salt = generateSalt();
-            String hashVal = hash(plainPassword, salt);
-            String sql = "INSERT INTO users (name,email,phone,role,password_hash,salt,status) VALUES (?,?,?,?,?,?,?)";
-            try (Connection c = getConnection(); PreparedStatement p = c.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-                p.setString(1, name);
-                p.setString(2, email);
-                p.setString(3, phone);
-                p.setString(4, role == null ? "CUSTOMER" : role);
-                p.setString(5, hashVal);
-                p.setString(6, salt);
-                p.setString(7, "ACTIVE");
-                p.executeUpdate();
-                try (ResultSet rs = p.getGeneratedKeys()) {
-                    if (rs.next()) return rs.getInt(1);
-                }
-            }
-            return -1;
+        String sortLabel() {
+            return COLUMNS[Arrays.asList(SORTS).indexOf(sort)].toLowerCase() + (desc ? " (descending)" : "");
         }
 
-        static boolean verifyPassword(String email, String plainPassword) throws Exception {
-            String sql = "SELECT password_hash, salt FROM users WHERE email = ?";
-            try (Connection c = getConnection(); PreparedStatement p = c.prepareStatement(sql)) {
+        void refresh() {
+            int gen = ++generation;
+            pages.clear();
+            loading.clear();
+            AsyncBank.countUsers(status).whenComplete((n, ex) -> SwingUtilities.invokeLater(() -> {
+                if (gen != generation) return;
+                if (ex != null) System.out.println("Counting users failed: " + AsyncBank.rootCause(ex).getMessage());
+                rowCount = ex == null ? n : 0;
+                fireTableDataChanged();
+                if (onRefresh != null) onRefresh.run();
+            }));
+        }
+
+        @Override
+        public int getRowCount() {
+            return rowCount;
+        }
+
+        @Override
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+
+        @Override
+        public String getColumnName(int col) {
+            return COLUMNS[col];
+        }
+
+        @Override
+        public Object getValueAt(int row, int col) {
+            List<User> rows = pages.get(row / PAGE_SIZE);
+            if (rows == null) {
+                load(row / PAGE_SIZE);
+                return col == 0 ? "..." : "";
+            }
+            int i = row % PAGE_SIZE;
+            if (i >= rows.size()) return "";
+            User u = rows.get(i);
+            switch (col) {
+                case 0: return u.userId;
+                case 1: return u.name;
+                case 2: return u.email;
+                case 3: return u.phone;
+                case 4: return u.role;
+                default: return u.status;
+            }
+        }
+
+        private void load(int page) {
+            if (!loading.add(page)) return;   // already in flight (or failed; retried on refresh)
+            List<User> prev = pages.get(page - 1);
+            User after = prev != null && prev.size() == PAGE_SIZE ? prev.get(PAGE_SIZE - 1) : null;
+            int gen = generation;
+            AsyncBank.browseUsers(status, sort, desc, after, page * PAGE_SIZE, PAGE_SIZE).whenComplete((rows, ex) -> SwingUtilities.invokeLater(() -> {
+                if (gen != generation) return;
+                if (ex != null) {
+                    System.out.println("Loading user page " + page + " failed: " + AsyncBank.rootCause(ex).getMessage());
+                    return;
+                }
+                loading.remove(page);
+                pages.put(page, rows);
+                int first = page * PAGE_SIZE;
+                int last = Math.min(rowCount, first + PAGE_SIZE) - 1;
+                if (last >= first) fireTableRowsUpdated(first, last);
+            }));
+        }
+
+        /**
+         * The user ids at the given rows. Rows on cached pages are answered directly; the pages
+         * of the rest (say, after a shift-click far down the table) are fetched first.
+         */
+        CompletableFuture<int[]> userIds(int[] rows) {
+            int[] ids = new int[rows.length];
+            Map<Integer, CompletableFuture<List<User>>> missing = new HashMap<>();
+            for (int r = 0; r < rows.length; r++) {
+                int page = rows[r] / PAGE_SIZE;
+                List<User> cached = pages.get(page);
+                if (cached != null) {
+                    int i = rows[r] % PAGE_SIZE;
+                    ids[r] = i < cached.size() ? cached.get(i).userId : -1;
+                } else {
+                    ids[r] = -1;
+                    missing.computeIfAbsent(page, p -> AsyncBank.browseUsers(status, sort, desc, null, p * PAGE_SIZE, PAGE_SIZE));
+                }
+            }
+            return CompletableFuture.allOf(missing.values().toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+                for (int r = 0; r < rows.length; r++) {
+                    CompletableFuture<List<User>> f = missing.get(rows[r] / PAGE_SIZE);
+                    if (f == null) continue;
+                    List<User> fetched = f.join();
+                    int i = rows[r] % PAGE_SIZE;
+                    if (i < fetched.size()) ids[r] = fetched.get(i).userId;
+                }
+                return Arrays.stream(ids).filter(id -> id >= 0).toArray();
+            });
+        }
+    }
+    
+    /**
+     * Rows of the Find User dialog: one page of UserDAO.search at a time, more() appending the
+     * next. Every request bumps the generation, so the answer for text the admin has since
+     * changed is dropped when it lands. EDT only.
+     */
+    static final class UserSearchModel extends javax.swing.table.AbstractTableModel {
+        private static final long serialVersionUID = 1L;
+        static final String[] COLUMNS = {"ID", "Name", "Email", "Phone", "Role", "Status"};
+
+        private final List<User> rows = new ArrayList<>();
+        private String text = "";
+        private boolean more;
+        private int generation;
+        Runnable onChange;
+
+        void search(String text) {
+            this.text = text.trim();
+            rows.clear();
+            more = false;
+            fireTableDataChanged();
+            load();
+        }
+
+        void more() {
+            if (more) load();
+        }
+
+        boolean hasMore() {
+            return more;
+        }
+
+        String text() {
+            return text;
+        }
+
+        User user(int row) {
+            return rows.get(row);
+        }
+
+        private void load() {
+            int gen = ++generation;
+            int after = rows.isEmpty() ? 0 : rows.get(rows.size() - 1).userId;
+            int size = UserSearch.PAGE_SIZE;
+            // one row past the page tells whether there is another
+            AsyncBank.searchUsers(text, after, size + 1).whenComplete((page, ex) -> SwingUtilities.invokeLater(() -> {
+                if (gen != generation) return;
+                if (ex != null) {
+                    System.out.println("User search failed: " + AsyncBank.rootCause(ex).getMessage());
+                    return;
+                }
+                more = page.size() > size;
+                int first = rows.size();
+                rows.addAll(more ? page.subList(0, size) : page);
+                if (rows.size() > first) fireTableRowsInserted(first, rows.size() - 1);
+                if (onChange != null) onChange.run();
+            }));
+        }
+
+        @Override
+        public int getRowCount() {
+            return rows.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+
+        @Override
+        public String getColumnName(int col) {
+            return COLUMNS[col];
+        }
+
+        @Override
+        public Object getValueAt(int row, int col) {
+            User u = rows.get(row);
+            switch (col) {
+                case 0: return u.userId;
+                case 1: return u.name;
+                case 2: return u.email;
+                case 3: return u.phone;
+                case 4: return u.role;
+                default: return u.status;
+            }
+        }
+    }
+    
+    // ========== DATABASE CLASSES ==========
+    static class User {
+        int userId;
+        String name, email, phone, role, status;
+        User(int userId, String name, String email, String role, String status, String phone) {
+            this.userId = userId; this.name = name; this.email = email; this.role = role; this.status = status; this.phone = phone;
+        }
+    }
+
+    static class Account {
+        int accId, userId;
+        String accType;
+        long balance;   // cents
+        Account(int accId, int userId, String accType, long balance) {
+            this.accId = accId; this.userId = userId; this.accType = accType; this.balance = balance;
+        }
+
+        @Override
+        public String toString() {
+            return Money.formatTo(new StringBuilder(48).append(accType).append(" #").append(accId).append("  $"), balance).toString();
+        }
+    }
+
+    /** A customer's accounts (acc_id order) with their most recent transactions, newest first. */
+    static class Portfolio {
+        final List<Account> accounts;
+        final List<Transaction> recent;
+        long total;   // cents, over every account
+        Portfolio(List<Account> accounts, List<Transaction> recent) { this.accounts = accounts; this.recent = recent; }
+    }
+
+    static class Transaction {
+        long txId;
+        int accId;
+        String type, time, description;
+        long amount;    // cents
+        Integer targetAccId;
+        Transaction(long txId, int accId, String type, long amount, String time, String description, Integer targetAccId) {
+            this.txId = txId; this.accId = accId; this.type = type; this.amount = amount;
+            this.time = time; this.description = description; this.targetAccId = targetAccId;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(64).append(time).append(" | ").append(type).append(" | ");
+            return Money.formatTo(sb, amount).append(" | ").append(description).toString();
+        }
+    }
+
+    /** Position of the last row on a statement page; the next page starts strictly after it. */
+    static class StatementCursor {
+        final String time;
+        final long txId;
+        StatementCursor(String time, long txId) { this.time = time; this.txId = txId; }
+    }
+
+    static class StatementPage {
+        final List<Transaction> rows;
+        final StatementCursor next;   // null on the last page
+        StatementPage(List<Transaction> rows, StatementCursor next) { this.rows = rows; this.next = next; }
+    }
+
+    // --- Connection pool config (override with -Dbank.pool.size=... etc.) ---
+    static final int POOL_SIZE = Integer.getInteger("bank.pool.size", 4);           // read-only connections per file
+    static final int WRITER_CONNECTIONS = Integer.getInteger("bank.pool.writers", 1);
+    static final long POOL_TIMEOUT_MS = Long.getLong("bank.pool.timeoutMs", 5000);
+    static final int STMT_CACHE_SIZE = Integer.getInteger("bank.pool.stmtCache", 32);
+    static final int BUSY_TIMEOUT_MS = Integer.getInteger("bank.db.busyTimeoutMs", 5000);
+    static final int CACHE_SIZE_KB = Integer.getInteger("bank.db.cacheKb", 8192);
+    /** FULL: a commit is on disk before it returns. NORMAL (WAL) is faster but can lose the last commits on power failure. */
+    static final String SYNCHRONOUS = System.getProperty("bank.db.synchronous", "FULL");
+
+    private static volatile ConnectionPool pool = new ConnectionPool(DB_URL, WRITER_CONNECTIONS, POOL_SIZE);
+
+    /** A connection for writing to the main database. Reads should use getReadConnection. */
+    static PooledConnection getConnection() throws Exception {
+        return getConnection(pool);
+    }
+
+    static PooledConnection getConnection(ConnectionPool from) throws Exception {
+        return acquire(from, Metrics.GET_CONNECTION);
+    }
+
+    /** A query_only connection to the main database that reads from a WAL snapshot. */
+    static PooledConnection getReadConnection() throws Exception {
+        return getReadConnection(pool);
+    }
+
+    static PooledConnection getReadConnection(ConnectionPool of) throws Exception {
+        return acquire(of.readers(), Metrics.GET_READ_CONNECTION);
+    }
+
+    private static PooledConnection acquire(ConnectionPool from, Metrics.Timer t) throws Exception {
+        long start = t.start();
+        try {
+            return from.acquire();
+        } catch (SQLException e) {
+            t.error();
+            throw e;
+        } finally {
+            t.stop(start);
+        }
+    }
+
+    static ConnectionPool pool() {
+        return pool;
+    }
+
+    /** A path next to the current database file, e.g. bankdb.db.archive for ".archive". */
+    static java.nio.file.Path dbSidecar(String suffix) {
+        return dbSidecar(pool, suffix);
+    }
+
+    static java.nio.file.Path dbSidecar(ConnectionPool of, String suffix) {
+        String url = of.url;
+        String file = url.startsWith("jdbc:sqlite:") ? url.substring("jdbc:sqlite:".length()) : url;
+        return java.nio.file.Paths.get(file + suffix);
+    }
+
+    /** Points every DAO at another database file, closing the old pool. Used by tools and benchmarks. */
+    static synchronized void useDatabase(String url) {
+        Ledger l = ledger;
+        if (l != null) l.shutdown();
+        ledger = null;
+        UserCache.clear();
+        Archive.reset();
+        Journal.reset();
+        Shards.reset();
+        IdempotencyKeys.reset();
+        Velocity.reset();
+        ConnectionPool old = pool;
+        pool = new ConnectionPool(url, WRITER_CONNECTIONS, POOL_SIZE);
+        old.close();
+    }
+
+    /**
+     * Bounded pool of long-lived SQLite connections. Each connection is configured once
+     * (WAL, synchronous level, busy timeout, page cache) and keeps its own prepared-statement cache.
+     *
+     * A database file has a write pool (one connection by default: SQLite admits one writer at
+     * a time anyway, so more only turns waits into busy retries) and, behind readers(), a pool
+     * of query_only connections. In WAL mode a reader sees the snapshot that was current when
+     * its read transaction began, so reads neither wait for the writer nor hold it up. Each
+     * borrow of a reader is one read transaction, begun by acquire() with a first SELECT, so all
+     * the borrower's statements see one snapshot; its age at release is recorded as readSnapshot.
+     */
+    static class ConnectionPool {
+        final String url;
+        final int maxSize;
+        final boolean readOnly;
+        private final ConnectionPool readers;   // null if this pool has no separate readers
+        private final ArrayBlockingQueue<PooledConnection> idle;
+        private final AtomicInteger created = new AtomicInteger();
+        private final Set<PooledConnection> borrowed = ConcurrentHashMap.newKeySet();   // readers only
+        private volatile boolean closed;
+
+        // metrics
+        final LongAdder acquires = new LongAdder();
+        final LongAdder waits = new LongAdder();
+        final LongAdder waitNanos = new LongAdder();
+        final LongAdder stmtHits = new LongAdder();
+        final LongAdder stmtMisses = new LongAdder();
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+
+        /** A write pool of the given size with a companion pool of readers (none if readers is 0). */
+        ConnectionPool(String url, int writers, int readers) {
+            this(url, writers, false, readers > 0 ? new ConnectionPool(url, readers, true, null) : null);
+        }
+
+        private ConnectionPool(String url, int maxSize, boolean readOnly, ConnectionPool readers) {
+            this.url = url;
+            this.maxSize = Math.max(1, maxSize);
+            this.readOnly = readOnly;
+            this.readers = readers;
+            this.idle = new ArrayBlockingQueue<>(this.maxSize);
+        }
+
+        /** The pool to read from: the read-only companion, or this pool if there is none. */
+        ConnectionPool readers() {
+            return readers == null ? this : readers;
+        }
+
+        PooledConnection acquire() throws SQLException {
+            PooledConnection pc = take();
+            if (readOnly) {
+                try {
+                    pc.beginRead();
+                } catch (SQLException e) {
+                    release(pc);
+                    throw e;
+                }
+                borrowed.add(pc);
+            }
+            return pc;
+        }
+
+        private PooledConnection take() throws SQLException {
+            if (closed) throw new SQLException("Connection pool is closed");
+            acquires.increment();
+            PooledConnection pc = idle.poll();
+            if (pc != null) return pc;
+
+            long start = System.nanoTime();
+            while (true) {
+                int n = created.get();
+                if (n < maxSize) {
+                    if (created.compareAndSet(n, n + 1)) {
+                        try {
+                            return open();
+                        } catch (SQLException e) {
+                            created.decrementAndGet();
+                            throw e;
+                        }
+                    }
+                    continue;
+                }
+                try {
+                    pc = idle.poll(POOL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted while waiting for a connection", e);
+                }
+                long waited = System.nanoTime() - start;
+                waits.increment();
+                waitNanos.add(waited);
+                maxWaitNanos.accumulateAndGet(waited, Math::max);
+                if (pc == null) throw new SQLException("Timed out after " + POOL_TIMEOUT_MS + " ms waiting for a pooled connection");
+                return pc;
+            }
+        }
+
+        private PooledConnection open() throws SQLException {
+            Connection c = DriverManager.getConnection(url);
+            try (Statement s = c.createStatement()) {
+                s.execute("PRAGMA journal_mode=WAL");
+                s.execute("PRAGMA synchronous=" + SYNCHRONOUS);
+                s.execute("PRAGMA busy_timeout=" + BUSY_TIMEOUT_MS);
+                s.execute("PRAGMA cache_size=-" + CACHE_SIZE_KB);
+                s.execute("PRAGMA foreign_keys=ON");
+                if (readOnly) s.execute("PRAGMA query_only=ON");
+            } catch (SQLException e) {
+                c.close();
+                throw e;
+            }
+            return new PooledConnection(this, c);
+        }
+
+        void release(PooledConnection pc) {
+            if (readOnly && borrowed.remove(pc) && Metrics.ENABLED) Metrics.READ_SNAPSHOT.record(System.nanoTime() - pc.snapshotAt);
+            boolean healthy;
+            try {
+                if (!pc.conn.getAutoCommit()) {
+                    pc.conn.rollback();   // for a reader this ends its read transaction
+                    if (!readOnly) pc.conn.setAutoCommit(true);
+                }
+                healthy = !pc.conn.isClosed();
+            } catch (SQLException e) {
+                healthy = false;
+            }
+            if (healthy && !closed && idle.offer(pc)) return;
+            pc.closeQuietly();
+            created.decrementAndGet();
+        }
+
+        void close() {
+            closed = true;
+            PooledConnection pc;
+            while ((pc = idle.poll()) != null) {
+                pc.closeQuietly();
+                created.decrementAndGet();
+            }
+            if (readers != null) readers.close();
+        }
+
+        /** Age in ms of the oldest snapshot a reader is holding right now, 0 if none. */
+        double oldestSnapshotMillis() {
+            long now = System.nanoTime(), oldest = now;
+            for (PooledConnection pc : borrowed) oldest = Math.min(oldest, pc.snapshotAt);
+            return (now - oldest) / 1e6;
+        }
+
+        String stats() {
+            long a = acquires.sum(), w = waits.sum();
+            long hits = stmtHits.sum(), misses = stmtMisses.sum();
+            String line = String.format("%s[%s] size=%d/%d idle=%d acquires=%d waits=%d (%.1f%%) avgWait=%.3fms maxWait=%.3fms stmtCacheHit=%.1f%% (%d/%d)",
+                    readOnly ? "readers" : "pool", url, created.get(), maxSize, idle.size(), a, w, a == 0 ? 0.0 : 100.0 * w / a,
+                    w == 0 ? 0.0 : waitNanos.sum() / 1e6 / w, maxWaitNanos.get() / 1e6,
+                    hits + misses == 0 ? 0.0 : 100.0 * hits / (hits + misses), hits, hits + misses);
+            if (readOnly) line += String.format(" openSnapshots=%d oldestSnapshot=%.1fms", borrowed.size(), oldestSnapshotMillis());
+            return readers == null ? line : line + "\n" + readers.stats();
+        }
+    }
+
+    /** A borrowed pool connection; {@link #close()} hands it back instead of closing it. */
+    static class PooledConnection implements AutoCloseable {
+        final ConnectionPool owner;
+        final Connection conn;
+        private final Map<String, PreparedStatement> stmts;
+        static final String BEGIN_READ_SQL = "SELECT 1 FROM sqlite_master LIMIT 1";
+        long snapshotAt;   // readers only: when the current borrower's read transaction took its snapshot
+
+        PooledConnection(ConnectionPool owner, Connection conn) {
+            this.owner = owner;
+            this.conn = conn;
+            this.stmts = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if (size() <= STMT_CACHE_SIZE) return false;
+                    try { eldest.getValue().close(); } catch (SQLException ignored) { }
+                    return true;
+                }
+            };
+        }
+
+        /** Returns a cached statement for sql. Callers must not close it. */
+        PreparedStatement prepare(String sql) throws SQLException {
+            return prepare(sql, Statement.NO_GENERATED_KEYS);
+        }
+
+        PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+            String key = autoGeneratedKeys == Statement.RETURN_GENERATED_KEYS ? "K:" + sql : sql;
+            PreparedStatement p = stmts.get(key);
+            if (p != null) {
+                owner.stmtHits.increment();
+                return p;
+            }
+            owner.stmtMisses.increment();
+            p = conn.prepareStatement(sql, autoGeneratedKeys);
+            stmts.put(key, p);
+            return p;
+        }
+
+        Statement createStatement() throws SQLException {
+            return conn.createStatement();
+        }
+
+        void setAutoCommit(boolean autoCommit) throws SQLException { conn.setAutoCommit(autoCommit); }
+        void commit() throws SQLException { conn.commit(); }
+        void rollback() throws SQLException { conn.rollback(); }
+
+        /** Readers: opens the read transaction and reads once, which fixes its snapshot. */
+        void beginRead() throws SQLException {
+            if (conn.getAutoCommit()) conn.setAutoCommit(false);
+            try (ResultSet rs = prepare(BEGIN_READ_SQL).executeQuery()) {
+                rs.next();
+            }
+            snapshotAt = System.nanoTime();
+        }
+
+        @Override
+        public void close() {
+            owner.release(this);
+        }
+
+        void closeQuietly() {
+            for (PreparedStatement p : stmts.values()) {
+                try { p.close(); } catch (SQLException ignored) { }
+            }
+            stmts.clear();
+            try { conn.close(); } catch (SQLException ignored) { }
+        }
+    }
+
+    private static final SecureRandom SALT_RANDOM = new SecureRandom();
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    });
+
+    static String generateSalt() {
+        byte[] salt = new byte[16];
+        SALT_RANDOM.nextBytes(salt);
+        return bytesToHex(salt);
+    }
+
+    static String hash(String password, String salt) {
+        MessageDigest md = SHA256.get();
+        md.reset();
+        md.update(salt.getBytes(StandardCharsets.UTF_8));
+        md.update(password.getBytes(StandardCharsets.UTF_8));
+        return bytesToHex(md.digest());
+    }
+
+    static String bytesToHex(byte[] b) {
+        char[] out = new char[b.length * 2];
+        for (int i = 0, j = 0; i < b.length; i++) {
+            int v = b[i] & 0xff;
+            out[j++] = HEX[v >>> 4];
+            out[j++] = HEX[v & 0x0f];
+        }
+        return new String(out);
+    }
+
+    /**
+     * Money is a long count of minor units (cents) everywhere: in memory, in SQLite and on the
+     * wire. Arithmetic is checked for overflow; parsing and formatting do not box or use BigDecimal.
+     */
+    static final class Money {
+        static final int SCALE = 100;
+
+        private Money() { }
+
+        /** Parses "123", "123.4" or "123.45" (optionally signed) into cents. */
+        static long parse(CharSequence s) {
+            int n = s.length(), i = 0;
+            if (n == 0) throw new NumberFormatException("Empty amount");
+            boolean negative = false;
+            char first = s.charAt(0);
+            if (first == '-' || first == '+') {
+                negative = first == '-';
+                i++;
+            }
+            long units = 0;
+            int digits = 0;
+            for (; i < n && s.charAt(i) != '.'; i++) {
+                int d = s.charAt(i) - '0';
+                if (d < 0 || d > 9) throw new NumberFormatException("Invalid amount: " + s);
+                units = Math.addExact(Math.multiplyExact(units, 10), d);
+                digits++;
+            }
+            long cents = 0;
+            int fraction = 0;
+            if (i < n) {
+                for (i++; i < n; i++) {
+                    int d = s.charAt(i) - '0';
+                    if (d < 0 || d > 9 || ++fraction > 2) throw new NumberFormatException("Invalid amount: " + s);
+                    cents = cents * 10 + d;
+                }
+                if (fraction == 1) cents *= 10;
+            }
+            if (digits == 0 && fraction == 0) throw new NumberFormatException("Invalid amount: " + s);
+            long v = Math.addExact(Math.multiplyExact(units, SCALE), cents);
+            return negative ? -v : v;
+        }
+
+        static String format(long cents) {
+            return formatTo(new StringBuilder(24), cents).toString();
+        }
+
+        /** Appends cents as "-1234.05" without allocating beyond the builder itself. */
+        static StringBuilder formatTo(StringBuilder sb, long cents) {
+            if (cents < 0) {
+                sb.append('-');
+                if (cents == Long.MIN_VALUE) return sb.append("92233720368547758.08");
+                cents = -cents;
+            }
+            long frac = cents % SCALE;
+            sb.append(cents / SCALE).append('.');
+            if (frac < 10) sb.append('0');
+            return sb.append(frac);
+        }
+
+        static long add(long a, long b) {
+            return Math.addExact(a, b);
+        }
+
+        static long subtract(long a, long b) {
+            return Math.subtractExact(a, b);
+        }
+    }
+
+    /** A user's profile, credentials and primary account id as loaded for login. */
+    static class Credentials {
+        final User user;
+        final String passwordHash, salt;
+        final int accId;   // -1 if the user has no account
+        final String accType;
+        final long loadedAt;
+        Credentials(User user, String passwordHash, String salt, int accId, String accType) {
+            this.user = user; this.passwordHash = passwordHash; this.salt = salt; this.accId = accId; this.accType = accType;
+            this.loadedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Size-bounded LRU of login credentials keyed by email, with a TTL so changes made by other
+     * processes are picked up. UserDAO.setStatus invalidates a user's entry immediately.
+     */
+    static class UserCache {
+        static final int MAX_SIZE = Integer.getInteger("bank.userCache.size", 10000);
+        static final long TTL_MS = Long.getLong("bank.userCache.ttlMs", 60000);
+
+        private static final Map<String, Credentials> byEmail = new LinkedHashMap<String, Credentials>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Credentials> eldest) {
+                if (size() <= MAX_SIZE) return false;
+                emailById.remove(eldest.getValue().user.userId);
+                return true;
+            }
+        };
+        private static final Map<Integer, String> emailById = new HashMap<>();
+        static final LongAdder hits = new LongAdder();
+        static final LongAdder misses = new LongAdder();
+        /** Bumped on every invalidation so a load that raced with one is not cached. */
+        private static long generation;
+
+        static synchronized long generation() {
+            return generation;
+        }
+
+        static synchronized Credentials get(String email) {
+            Credentials c = byEmail.get(email);
+            if (c != null && System.currentTimeMillis() - c.loadedAt > TTL_MS) {
+                byEmail.remove(email);
+                emailById.remove(c.user.userId);
+                c = null;
+            }
+            if (c == null) misses.increment();
+            else hits.increment();
+            return c;
+        }
+
+        static synchronized void put(Credentials c, long loadedGeneration) {
+            if (MAX_SIZE <= 0 || loadedGeneration != generation) return;
+            byEmail.put(c.user.email, c);
+            emailById.put(c.user.userId, c.user.email);
+        }
+
+        static synchronized void invalidate(int userId) {
+            generation++;
+            String email = emailById.remove(userId);
+            if (email != null) byEmail.remove(email);
+        }
+
+        static synchronized void clear() {
+            byEmail.clear();
+            emailById.clear();
+        }
+
+        static String stats() {
+            long h = hits.sum(), m = misses.sum();
+            return String.format("userCache hits=%d misses=%d (%.1f%% hit)", h, m, h + m == 0 ? 0.0 : 100.0 * h / (h + m));
+        }
+    }
+
+    private static volatile Ledger ledger;
+
+    /** The in-memory balance ledger for the current database, warm-loaded on first use. */
+    static Ledger ledger() throws Exception {
+        Ledger l = ledger;
+        if (l == null) {
+            synchronized (BankSystemSQLite.class) {
+                l = ledger;
+                if (l == null) {
+                    l = new Ledger();
+                    l.load();
+                    ledger = l;
+                }
+            }
+        }
+        return l;
+    }
+
+    /** A money movement applied to the ledger and waiting to be written to SQLite. */
+    static class Posting {
+        final String type;   // DEPOSIT, WITHDRAW or TRANSFER
+        final int accId;
+        final int toAccId;   // only for TRANSFER
+        final long amount;   // cents
+        String key;          // client idempotency key, or null
+        String description;  // batch import reference; null for the default wording
+        /** Completed with TRUE once the batch holding this posting has committed. */
+        final CompletableFuture<Boolean> durable = new CompletableFuture<>();
+        /** Cross-shard transfers only: the coordinator's id, its logged intent and the legs still to commit. */
+        long xid;
+        CompletableFuture<Void> logged;
+        AtomicInteger openLegs;
+        TransferCoordinator coordinator;
+        Posting(String type, int accId, int toAccId, long amount) {
+            this.type = type; this.accId = accId; this.toAccId = toAccId; this.amount = amount;
+        }
+
+        /** Called by a writer once its part of this posting is in SQLite. */
+        void committed() {
+            if (openLegs != null && openLegs.decrementAndGet() > 0) return;
+            durable.complete(Boolean.TRUE);
+            if (coordinator != null) coordinator.done(xid);
+        }
+    }
+
+    /** Open-addressing acc_id -> long map that keeps insertion order and is cleared, not reallocated. */
+    static class DeltaMap {
+        private static final int EMPTY = Integer.MIN_VALUE;
+        private int[] slots;        // acc_id, or EMPTY
+        private int[] slotIndex;    // index into keys/values
+        private int[] keys;
+        private long[] values;
+        private int size;
+
+        DeltaMap(int expected) {
+            int cap = Integer.highestOneBit(Math.max(4, expected) * 2 - 1) << 1;
+            slots = new int[cap];
+            slotIndex = new int[cap];
+            Arrays.fill(slots, EMPTY);
+            keys = new int[cap / 2];
+            values = new long[cap / 2];
+        }
+
+        void add(int key, long delta) {
+            int mask = slots.length - 1;
+            int i = (key * 0x9E3779B9) >>> 16 & mask;
+            while (slots[i] != EMPTY) {
+                if (slots[i] == key) {
+                    int idx = slotIndex[i];
+                    values[idx] = Math.addExact(values[idx], delta);
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            if (size == keys.length) {
+                grow();
+                add(key, delta);
+                return;
+            }
+            slots[i] = key;
+            slotIndex[i] = size;
+            keys[size] = key;
+            values[size++] = delta;
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            long[] oldValues = values;
+            int n = size;
+            slots = new int[slots.length * 2];
+            slotIndex = new int[slots.length];
+            Arrays.fill(slots, EMPTY);
+            keys = new int[slots.length / 2];
+            values = new long[slots.length / 2];
+            size = 0;
+            for (int k = 0; k < n; k++) add(oldKeys[k], oldValues[k]);
+        }
+
+        int size() { return size; }
+        int keyAt(int i) { return keys[i]; }
+        long valueAt(int i) { return values[i]; }
+
+        boolean contains(int key) {
+            return indexOf(key) >= 0;
+        }
+
+        /** The value for key, 0 if absent. */
+        long get(int key) {
+            int idx = indexOf(key);
+            return idx < 0 ? 0 : values[idx];
+        }
+
+        private int indexOf(int key) {
+            int mask = slots.length - 1;
+            for (int i = (key * 0x9E3779B9) >>> 16 & mask; slots[i] != EMPTY; i = (i + 1) & mask) {
+                if (slots[i] == key) return slotIndex[i];
+            }
+            return -1;
+        }
+
+        void clear() {
+            if (size == 0) return;
+            Arrays.fill(slots, EMPTY);
+            size = 0;
+        }
+    }
+
+    /**
+     * Balance deltas of one write batch plus the running balance after each row, for
+     * transactions.balance_after: an account's balance in SQLite is read once, on the batch's
+     * writer connection, the first time the batch touches it. Every batch writer applies its
+     * deltas after adding its rows, so that read sees the balance before the batch.
+     */
+    static class RunningBalances {
+        final DeltaMap deltas;
+        private final DeltaMap before;
+        private final PooledConnection c;
+
+        RunningBalances(PooledConnection c, DeltaMap deltas) {
+            this.c = c;
+            this.deltas = deltas;
+            this.before = new DeltaMap(Math.max(4, deltas.size()));
+        }
+
+        /** Adds delta to accId and returns its balance after this row. */
+        long add(int accId, long delta) throws SQLException {
+            deltas.add(accId, delta);
+            if (!before.contains(accId)) {
+                PreparedStatement q = c.prepare("SELECT balance FROM accounts WHERE acc_id = ?");
+                q.setInt(1, accId);
+                try (ResultSet rs = q.executeQuery()) {
+                    before.add(accId, rs.next() ? rs.getLong(1) : 0);
+                }
+            }
+            return before.get(accId) + deltas.get(accId);
+        }
+
+        /**
+         * Month-close balances: the balance right after the newest row of each (account, month)
+         * the archiver moved out of SQLite, so a point-in-time lookup never walks more than one
+         * month of archived rows.
+         */
+        static void createTables(Statement stmt) throws SQLException {
+            stmt.execute("CREATE TABLE IF NOT EXISTS balance_checkpoints (" +
+                "acc_id INTEGER NOT NULL, " +
+                "tx_time TEXT NOT NULL, " +
+                "tx_id INTEGER NOT NULL, " +
+                "balance INTEGER NOT NULL, " +
+                "PRIMARY KEY (acc_id, tx_time, tx_id)) WITHOUT ROWID");
+        }
+
+        /**
+         * Adds transactions.balance_after to a file that predates it and fills it in, working
+         * back from each account's current balance; with archived set, also walks the archive
+         * segments to write their month-close checkpoints. One transaction, so a crash part way
+         * leaves the file as it was and the next start does it again.
+         */
+        static void upgrade(PooledConnection c, boolean archived) throws Exception {
+            if (columnType(c, "transactions", "balance_after") != null) return;
+            long start = System.nanoTime();
+            long checkpoints = 0;
+            c.setAutoCommit(false);
+            try (Statement st = c.createStatement()) {
+                st.execute("ALTER TABLE transactions ADD COLUMN balance_after INTEGER");
+                createTables(st);
+                // newest row first per account: balance minus everything that came after it
+                int rows = st.executeUpdate("UPDATE transactions SET balance_after = r.b FROM (" +
+                    "SELECT t.tx_id, a.balance - COALESCE(SUM(" + TransactionDAO.SIGNED_SQL + ") OVER (PARTITION BY t.acc_id " +
+                    "ORDER BY t.tx_time DESC, t.tx_id DESC ROWS BETWEEN UNBOUNDED PRECEDING AND 1 PRECEDING), 0) AS b " +
+                    "FROM transactions t JOIN accounts a ON a.acc_id = t.acc_id) r WHERE transactions.tx_id = r.tx_id");
+                if (archived) checkpoints = backfillCheckpoints(c);
+                c.commit();
+                System.out.printf("Running balances: filled %d rows and %d checkpoints in %.1f s%n",
+                        rows, checkpoints, (System.nanoTime() - start) / 1e9);
+            } catch (Exception e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+        }
+
+        /** Checkpoints for rows archived before there were any; segments are read from disk directly. */
+        private static long backfillCheckpoints(PooledConnection c) throws Exception {
+            List<Archive.Segment> segs = new ArrayList<>();
+            try (Statement st = c.createStatement();
+                 ResultSet rs = st.executeQuery("SELECT file FROM archive_segments ORDER BY seq DESC")) {
+                while (rs.next()) segs.add(Archive.Segment.open(Archive.dir(c.owner).resolve(rs.getString(1))));
+            }
+            if (segs.isEmpty()) return 0;
+            // balance just before each account's oldest live row, then carried from segment to segment
+            PreparedStatement first = c.prepare("SELECT COALESCE((SELECT balance_after - " + TransactionDAO.SIGNED_SQL +
+                    " FROM transactions WHERE acc_id = ?1 ORDER BY tx_time, tx_id LIMIT 1), " +
+                    "(SELECT balance FROM accounts WHERE acc_id = ?1))");
+            PreparedStatement ins = c.prepare("INSERT OR REPLACE INTO balance_checkpoints (acc_id, tx_time, tx_id, balance) VALUES (?,?,?,?)");
+            Map<Integer, Long> carried = new HashMap<>();
+            long n = 0;
+            for (Archive.Segment seg : segs) {
+                for (int accId : seg.accIds) {
+                    Long balance = carried.get(accId);
+                    if (balance == null) {
+                        first.setInt(1, accId);
+                        try (ResultSet rs = first.executeQuery()) {
+                            balance = rs.next() ? rs.getLong(1) : 0;
+                        }
+                    }
+                    String month = null;
+                    try (TxSource src = seg.scan(accId, null)) {
+                        for (Transaction t; (t = src.next()) != null; ) {
+                            if (!t.time.startsWith(month == null ? "-" : month)) {
+                                month = t.time.substring(0, 7);
+                                ins.setInt(1, accId);
+                                ins.setString(2, t.time);
+                                ins.setLong(3, t.txId);
+                                ins.setLong(4, balance);
+                                ins.addBatch();
+                                if (++n % Archive.DELETE_CHUNK == 0) ins.executeBatch();
+                            }
+                            balance -= TransactionDAO.signed(t.type, t.amount);
+                        }
+                    }
+                    carried.put(accId, balance);
+                }
+            }
+            ins.executeBatch();
+            return n;
+        }
+    }
+
+    /**
+     * Single-writer group commit: postings from many callers are queued and written as one
+     * SQLite transaction per batch (batched balance updates plus transaction inserts), so one
+     * fsync covers the whole batch. Each caller's future completes only after its batch commits.
+     * There is one writer per database file (shard); a batch holding a cross-shard transfer
+     * leg waits for the coordinator to log that transfer before it commits.
+     */
+    static class GroupCommitWriter {
+        static final int BATCH_SIZE = Integer.getInteger("bank.commit.batchSize", 512);
+        static final long LINGER_MICROS = Long.getLong("bank.commit.lingerMicros", 1000);
+        static final int MAX_ATTEMPTS = Integer.getInteger("bank.commit.maxAttempts", 5);
+        static final long LOG_WAIT_MS = Long.getLong("bank.xfer.logWaitMs", 10_000);
+
+        final Ledger ledger;
+        final ConnectionPool pool;
+        final int shard;
+        private final LinkedBlockingQueue<Posting> queue = new LinkedBlockingQueue<>();
+        private final AtomicLong pending = new AtomicLong();
+        private final Thread thread;
+        private volatile boolean running = true;
+
+        // per-batch metrics
+        final LongAdder batches = new LongAdder();
+        final LongAdder postings = new LongAdder();
+        final LongAdder commitNanos = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        /** Postings given up on after every retry. */
+        final LongAdder rejected = new LongAdder();
+        private final AtomicLong maxBatch = new AtomicLong();
+        private volatile int lastBatchSize;
+        private volatile long lastCommitNanos;
+
+        GroupCommitWriter(Ledger ledger, ConnectionPool pool, int shard) {
+            this.ledger = ledger;
+            this.pool = pool;
+            this.shard = shard;
+            thread = new Thread(this::run, shard == 0 ? "group-commit-writer" : "group-commit-writer-" + shard);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void submit(Posting p) {
+            pending.incrementAndGet();
+            queue.add(p);
+        }
+
+        private void run() {
+            List<Posting> batch = new ArrayList<>(BATCH_SIZE);
+            while (running || !queue.isEmpty()) {
+                try {
+                    Posting first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) continue;
+                    batch.add(first);
+                    long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(LINGER_MICROS);
+                    while (batch.size() < BATCH_SIZE) {
+                        queue.drainTo(batch, BATCH_SIZE - batch.size());
+                        long remaining = deadline - System.nanoTime();
+                        if (batch.size() >= BATCH_SIZE || remaining <= 0) break;
+                        Posting next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null) break;
+                        batch.add(next);
+                    }
+                } catch (InterruptedException e) {
+                    if (batch.isEmpty()) continue;
+                }
+                int n = batch.size();
+                commitWithRetry(batch);
+                batch.clear();
+                synchronized (pending) {
+                    if (pending.addAndGet(-n) == 0) pending.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * The ledger has already applied these postings. A batch that fails is retried up to
+         * MAX_ATTEMPTS times (once if SQLite refused it on a constraint), then written one
+         * posting at a time so a single bad posting cannot sink the rest; a posting that still
+         * fails is taken back out of the ledger and its future fails. Completes every posting in
+         * the batch either way.
+         *
+         * A later posting may only have been funded by a credit that is taken back, so once a
+         * credit to an account fails, every later debit of that account in the batch fails with
+         * it, in queue order. accounts.balance >= 0 in SQLite catches the same in later batches.
+         */
+        private void commitWithRetry(List<Posting> batch) {
+            Set<Integer> undone = new HashSet<>();
+            batch.removeIf(p -> {
+                if (p.logged != null && !awaitLogged(p)) {
+                    // a failed transfer was taken back by the coordinator; its credit here is gone
+                    if (p.logged.isCompletedExceptionally() && Shards.of(p.toAccId) == shard) undone.add(p.toAccId);
+                    return true;
+                }
+                if (dependsOn(p, undone)) {
+                    fail(p, new SQLException("Funded by a credit that could not be saved"));
+                    undone.addAll(credited(p));
+                    return true;
+                }
+                return false;
+            });
+            if (batch.isEmpty()) return;
+            Exception last = tryWrite(batch, MAX_ATTEMPTS);
+            if (last == null) {
+                for (Posting p : batch) p.committed();
+                return;
+            }
+            boolean retry = batch.size() > 1 && !Thread.currentThread().isInterrupted();
+            List<Posting> one = new ArrayList<>(1);
+            for (Posting p : batch) {
+                Exception ex = last;
+                if (dependsOn(p, undone)) {
+                    ex = new SQLException("Funded by a credit that could not be saved", last);
+                } else if (retry) {
+                    one.add(p);
+                    ex = tryWrite(one, 1);
+                    one.clear();
+                }
+                if (ex == null) {
+                    p.committed();
+                } else {
+                    fail(p, ex);
+                    if (p.xid == 0) undone.addAll(credited(p));
+                }
+            }
+        }
+
+        /** Whether p debits one of accIds. A logged cross-shard leg is never taken back, so never. */
+        private static boolean dependsOn(Posting p, Set<Integer> accIds) {
+            return p.xid == 0 && !accIds.isEmpty() && !p.type.equals("DEPOSIT") && accIds.contains(p.accId);
+        }
+
+        /** The account whose balance taking p back lowers, if any. */
+        private static List<Integer> credited(Posting p) {
+            if (p.type.equals("DEPOSIT")) return List.of(p.accId);
+            if (p.type.equals("TRANSFER")) return List.of(p.toAccId);
+            return List.of();
+        }
+
+        /** Writes batch, trying up to attempts times; returns the last failure, or null once it commits. */
+        private Exception tryWrite(List<Posting> batch, int attempts) {
+            for (int attempt = 1; ; attempt++) {
+                long start = System.nanoTime();
+                try {
+                    write(batch);
+                    long took = System.nanoTime() - start;
+                    batches.increment();
+                    postings.add(batch.size());
+                    commitNanos.add(took);
+                    maxBatch.accumulateAndGet(batch.size(), Math::max);
+                    lastBatchSize = batch.size();
+                    lastCommitNanos = took;
+                    return null;
+                } catch (Exception ex) {
+                    failures.increment();
+                    System.out.println("Group commit of " + batch.size() + " postings failed (attempt " + attempt + "/" + attempts + "): " + ex.getMessage());
+                    if (attempt >= attempts || isConstraint(ex)) return ex;
+                    try {
+                        Thread.sleep(Math.min(1000, 10L * attempt));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return ex;
+                    }
+                }
+            }
+        }
+
+        /** SQLITE_CONSTRAINT (primary code 19) anywhere in the cause chain: retrying cannot help. */
+        static boolean isConstraint(Throwable e) {
+            for (; e != null; e = e.getCause()) {
+                if (e instanceof SQLException && (((SQLException) e).getErrorCode() & 0xff) == 19) return true;
+            }
+            return false;
+        }
+
+        /**
+         * A leg is never committed before its transfer is in the coordinator log. False if the
+         * leg must not go in this batch: the transfer failed (the coordinator took it back), or
+         * the log did not answer within LOG_WAIT_MS and the coordinator finishes the leg later.
+         */
+        private boolean awaitLogged(Posting p) {
+            try {
+                p.logged.get(LOG_WAIT_MS, TimeUnit.MILLISECONDS);
+                return true;
+            } catch (ExecutionException e) {
+                return false;
+            } catch (TimeoutException e) {
+                p.coordinator.retryLeg(p, shard);
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                p.coordinator.retryLeg(p, shard);
+                return false;
+            }
+        }
+
+        /**
+         * Gives up on p: its delta comes back out of the ledger and its caller gets the error.
+         * A leg of a logged cross-shard transfer cannot be taken back, so the coordinator gets it.
+         */
+        private void fail(Posting p, Exception cause) {
+            if (p.xid != 0) {
+                if (isConstraint(cause) && Shards.of(p.accId) == shard) {
+                    System.out.println("Debit of logged cross-shard transfer " + p.xid + " broke a constraint; the coordinator"
+                            + " records it anyway, which can leave account " + p.accId + " overdrawn");
+                }
+                p.coordinator.retryLeg(p, shard);
+                return;
+            }
+            rejected.increment();
+            try {
+                ledger.undo(p);
+            } catch (Exception e) {
+                System.out.println("Could not take back failed " + p.type + " on account " + p.accId + ": " + e.getMessage());
+            }
+            p.durable.completeExceptionally(new SQLException("The " + p.type.toLowerCase() + " could not be saved and was not applied", cause));
+        }
+
+        /** Reused by the writer thread for every batch. */
+        private final DeltaMap deltas = new DeltaMap(BATCH_SIZE * 2);
+        private final List<Journal.Record> records = new ArrayList<>(BATCH_SIZE);
+
+        private void write(List<Posting> batch) throws Exception {
+            DeltaMap deltas = this.deltas;
+            List<Journal.Record> records = this.records;
+            records.clear();
+            boolean legs = false, keys = false;
+            for (Posting p : batch) {
+                if (p.logged != null) legs = true;
+                if (p.key != null) keys = true;
+                records.add(Journal.Record.of(p, shard));
+            }
+            try (PooledConnection c = getConnection(pool)) {
+                PreparedStatement ins = c.prepare(TransactionDAO.INSERT_SQL);
+                PreparedStatement legIns = legs ? c.prepare(TransferCoordinator.LEG_SQL) : null;
+                PreparedStatement keyIns = keys ? c.prepare(IdempotencyKeys.INSERT_SQL) : null;
+                try {
+                    Journal.commit(c, () -> {
+                        deltas.clear();
+                        RunningBalances balances = new RunningBalances(c, deltas);
+                        for (Journal.Record r : records) r.addRows(ins, legIns, keyIns, balances, null);
+                        AccountDAO.applyDeltas(c, deltas);
+                        ins.executeBatch();
+                        if (legIns != null) legIns.executeBatch();
+                        if (keyIns != null) keyIns.executeBatch();
+                        return records;
+                    });
+                } finally {
+                    ins.clearBatch();
+                    if (legIns != null) legIns.clearBatch();
+                    if (keyIns != null) keyIns.clearBatch();
+                }
+            }
+        }
+
+        /** Blocks until every posting submitted so far is durable. */
+        void flush() throws InterruptedException {
+            synchronized (pending) {
+                while (pending.get() > 0) pending.wait(100);
+            }
+        }
+
+        void shutdown() {
+            try {
+                flush();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            running = false;
+        }
+
+        String stats() {
+            long b = batches.sum(), n = postings.sum();
+            return String.format((shard == 0 ? "groupCommit" : "groupCommit[" + shard + "]") + " batches=%d postings=%d avgBatch=%.1f maxBatch=%d avgCommit=%.3fms last=%d/%.3fms failures=%d rejected=%d queued=%d",
+                    b, n, b == 0 ? 0.0 : (double) n / b, maxBatch.get(), b == 0 ? 0.0 : commitNanos.sum() / 1e6 / b,
+                    lastBatchSize, lastCommitNanos / 1e6, failures.sum(), rejected.sum(), queue.size());
+        }
+    }
+
+    /**
+     * Authoritative account balances, in cents, held in primitive arrays indexed by acc_id.
+     * Each account maps to one of a fixed set of lock stripes; transfers take both stripes
+     * in index order so they can never deadlock. Postings are written behind to SQLite
+     * through the {@link GroupCommitWriter} of each account's shard; mutators return a future
+     * that completes once durable. A transfer between shards is queued to both writers under
+     * both locks, so each file sees it in the same order as every other posting on its
+     * accounts, and goes through the {@link TransferCoordinator}.
+     */
+    static class Ledger {
+        static final int PAGE_BITS = 16;
+        static final int PAGE_SIZE = 1 << PAGE_BITS;
+        static final int PAGE_MASK = PAGE_SIZE - 1;
+        static final int STRIPES = Integer.getInteger("bank.ledger.stripes", 1024);
+
+        private final Object[] locks;
+        private final int stripeMask;
+        /** Marks an acc_id slot this process has not loaded; also returned by balance() for unknown accounts. */
+        static final long NO_ACCOUNT = Long.MIN_VALUE;
+
+        private volatile long[][] pages = new long[0][];
+        /**
+         * Per-user totals: the owner's total by acc_id for every account whose owner has a cached
+         * total (null for the rest), and the totals by user id, least recently read first. A total
+         * changes under the same stripe lock as the balance it follows, so it never misses or
+         * double counts a posting. Totals are dropped when their user's session ends, and past
+         * MAX_TOTALS the least recently read one goes.
+         */
+        private volatile UserTotal[][] totalPages = new UserTotal[0][];
+        private final LinkedHashMap<Integer, UserTotal> totals = new LinkedHashMap<>(16, 0.75f, true);
+        static final int MAX_TOTALS = Math.max(1, Integer.getInteger("bank.portfolio.cachedTotals", 100_000));
+
+        /** One user's cached total and the accounts counted in it. */
+        private static final class UserTotal {
+            final LongAdder sum = new LongAdder();
+            /** Guarded by this; read by retire() to find the slots to clear. */
+            final List<Integer> accIds = new ArrayList<>();
+            /** Set (under this) before any slot is cleared; a retired total is never read again. */
+            volatile boolean retired;
+        }
+        /** One writer per shard; writers[0] writes the main database file. */
+        final GroupCommitWriter[] writers;
+        /** null unless storage is sharded. */
+        final TransferCoordinator coordinator;
+
+        static final CompletableFuture<Boolean> REJECTED = CompletableFuture.completedFuture(Boolean.FALSE);
+
+        Ledger() throws Exception {
+            int n = Integer.highestOneBit(Math.max(1, STRIPES - 1) << 1);
+            locks = new Object[n];
+            for (int i = 0; i < n; i++) locks[i] = new Object();
+            stripeMask = n - 1;
+            writers = new GroupCommitWriter[Shards.count()];
+            for (int s = 0; s < writers.length; s++) writers[s] = new GroupCommitWriter(this, Shards.pool(s), s);
+            coordinator = writers.length > 1 ? new TransferCoordinator(this) : null;
+        }
+
+        void load() throws Exception {
+            for (int s = 0; s < Shards.count(); s++) {
+                ConnectionPool p = Shards.pool(s);
+                if (Journal.open(p).loadInto(this) >= 0) continue;
+                int count = 0;
+                try (PooledConnection c = getReadConnection(p);
+                     ResultSet rs = c.prepare("SELECT acc_id, balance FROM accounts").executeQuery()) {
+                    while (rs.next()) {
+                        register(rs.getInt(1), rs.getLong(2));
+                        count++;
+                    }
+                }
+                System.out.println("Ledger loaded " + count + " accounts");
+            }
+        }
+
+        private Object lockFor(int accId) {
+            return locks[accId & stripeMask];
+        }
+
+        /** Makes a slot for accId; never moves existing pages, so concurrent writers are unaffected. */
+        private long[] page(int accId, boolean create) {
+            int pi = accId >>> PAGE_BITS;
+            long[][] ps = pages;
+            if (pi < ps.length && ps[pi] != null) return ps[pi];
+            if (!create) return null;
+            synchronized (this) {
+                ps = pages;
+                if (pi >= ps.length) ps = Arrays.copyOf(ps, pi + 1);
+                if (ps[pi] == null) {
+                    long[] pg = new long[PAGE_SIZE];
+                    Arrays.fill(pg, NO_ACCOUNT);
+                    ps[pi] = pg;
+                }
+                pages = ps;
+                return ps[pi];
+            }
+        }
+
+        void register(int accId, long balance) {
+            if (accId < 0) return;
+            long[] pg = page(accId, true);
+            synchronized (lockFor(accId)) {
+                if (pg[accId & PAGE_MASK] == NO_ACCOUNT) pg[accId & PAGE_MASK] = balance;
+            }
+        }
+
+        /**
+         * Journal replay during load: applies delta to accounts already in memory. Accounts the
+         * snapshot never saw are skipped; they load from SQLite, which has the change, on first use.
+         */
+        void replay(int accId, long delta) {
+            long[] pg = page(accId, false);
+            if (pg == null) return;
+            synchronized (lockFor(accId)) {
+                if (pg[accId & PAGE_MASK] != NO_ACCOUNT) {
+                    pg[accId & PAGE_MASK] += delta;
+                    moved(accId, delta);
+                }
+            }
+        }
+
+        /** Returns the page holding accId, loading the account from SQLite if this process has not seen it. */
+        private long[] slot(int accId) throws Exception {
+            if (accId < 0) return null;
+            long[] pg = page(accId, false);
+            if (pg != null && pg[accId & PAGE_MASK] != NO_ACCOUNT) return pg;
+            Account acc = AccountDAO.findById(accId);
+            if (acc == null) return null;
+            register(accId, acc.balance);
+            return page(accId, false);
+        }
+
+        long balance(int accId) throws Exception {
+            long[] pg = slot(accId);
+            if (pg == null) return NO_ACCOUNT;
+            synchronized (lockFor(accId)) {
+                return pg[accId & PAGE_MASK];
+            }
+        }
+
+        boolean exists(int accId) throws Exception {
+            return slot(accId) != null;
+        }
+
+        /**
+         * Total balance of userId, whose accounts are accIds. The first call sums them; after that
+         * every posting moves the total as it is applied, so this is a map lookup (plus a check
+         * that each of accIds is already counted, for accounts opened since). A total retired
+         * while this ran is not trusted; the loop starts a fresh one.
+         */
+        long userTotal(int userId, int[] accIds) throws Exception {
+            while (true) {
+                UserTotal t, dropped = null;
+                synchronized (totals) {
+                    t = totals.get(userId);
+                    if (t == null) {
+                        t = new UserTotal();
+                        totals.put(userId, t);
+                        if (totals.size() > MAX_TOTALS) {
+                            Iterator<UserTotal> eldest = totals.values().iterator();
+                            dropped = eldest.next();
+                            eldest.remove();
+                        }
+                    }
+                }
+                if (dropped != null) retire(dropped);
+                for (int accId : accIds) track(t, accId);
+                long sum = t.sum.sum();
+                if (!t.retired) return sum;
+            }
+        }
+
+        /** Counts a newly opened account in its owner's total, if that total is cached. */
+        void addToTotal(int userId, int accId) throws Exception {
+            UserTotal t;
+            synchronized (totals) {
+                t = totals.get(userId);
+            }
+            if (t != null) track(t, accId);
+        }
+
+        /** Drops userId's cached total, if any (their session ended); the next read sums afresh. */
+        void dropTotal(int userId) {
+            UserTotal t;
+            synchronized (totals) {
+                t = totals.remove(userId);
+            }
+            if (t != null) retire(t);
+        }
+
+        int cachedTotals() {
+            synchronized (totals) {
+                return totals.size();
+            }
+        }
+
+        private void track(UserTotal t, int accId) throws Exception {
+            long[] pg = slot(accId);
+            if (pg == null) return;
+            int pi = accId >>> PAGE_BITS;
+            UserTotal[] tp;
+            synchronized (this) {
+                UserTotal[][] tps = totalPages;
+                if (pi >= tps.length) tps = Arrays.copyOf(tps, pi + 1);
+                if (tps[pi] == null) tps[pi] = new UserTotal[PAGE_SIZE];
+                totalPages = tps;
+                tp = tps[pi];
+            }
+            synchronized (lockFor(accId)) {
+                if (tp[accId & PAGE_MASK] == t) return;
+                synchronized (t) {
+                    if (t.retired) return;
+                    t.accIds.add(accId);
+                }
+                // a slot still holding a retired total is taken over; retire() only clears its own
+                tp[accId & PAGE_MASK] = t;
+                t.sum.add(pg[accId & PAGE_MASK]);
+            }
+        }
+
+        /** Stops t following its accounts. Lock order is stripe then total, so t is released first. */
+        private void retire(UserTotal t) {
+            Integer[] ids;
+            synchronized (t) {
+                t.retired = true;
+                ids = t.accIds.toArray(new Integer[0]);
+            }
+            UserTotal[][] tps = totalPages;
+            for (int accId : ids) {
+                UserTotal[] tp = tps[accId >>> PAGE_BITS];
+                synchronized (lockFor(accId)) {
+                    if (tp[accId & PAGE_MASK] == t) tp[accId & PAGE_MASK] = null;
+                }
+            }
+        }
+
+        /** Follows a balance change in its owner's total; the caller holds accId's stripe lock. */
+        private void moved(int accId, long delta) {
+            UserTotal[][] tps = totalPages;
+            int pi = accId >>> PAGE_BITS;
+            if (pi >= tps.length || tps[pi] == null) return;
+            UserTotal t = tps[pi][accId & PAGE_MASK];
+            if (t != null) t.sum.add(delta);
+        }
+
+        /**
+         * Memory-only bulk debit for callers that persist their own postings (batch jobs).
+         * Walks amounts[0..n) in order and accepts each one the account can still cover,
+         * setting accepted[i]. pending is credit the caller holds back until it commits; it is
+         * spent first, and only the rest of the accepted total is debited, under one lock.
+         * Returns that debited part.
+         */
+        long debitWhileFunded(int accId, long[] amounts, boolean[] accepted, int n, long pending) throws Exception {
+            long[] pg = slot(accId);
+            if (pg == null) return 0;
+            int i = accId & PAGE_MASK;
+            synchronized (lockFor(accId)) {
+                long available = pg[i] + pending, total = 0;
+                for (int k = 0; k < n; k++) {
+                    accepted[k] = amounts[k] <= available;
+                    if (accepted[k]) {
+                        available -= amounts[k];
+                        total += amounts[k];
+                    }
+                }
+                long debit = Math.max(0, total - pending);
+                pg[i] -= debit;
+                moved(accId, -debit);
+                return debit;
+            }
+        }
+
+        /** Memory-only unconditional adjustment; the caller is responsible for persisting it. */
+        void adjust(int accId, long delta) throws Exception {
+            long[] pg = slot(accId);
+            if (pg == null) throw new IllegalStateException("Unknown account " + accId);
+            synchronized (lockFor(accId)) {
+                pg[accId & PAGE_MASK] = Money.add(pg[accId & PAGE_MASK], delta);
+                moved(accId, delta);
+            }
+        }
+
+        /** Reverses a DEPOSIT, WITHDRAW or TRANSFER that could not be written. */
+        void undo(Posting p) throws Exception {
+            if (p.type.equals("DEPOSIT")) {
+                adjust(p.accId, -p.amount);
+            } else if (p.type.equals("WITHDRAW")) {
+                adjust(p.accId, p.amount);
+            } else {
+                long[] from = slot(p.accId), to = slot(p.toAccId);
+                int sf = p.accId & stripeMask, st = p.toAccId & stripeMask;
+                synchronized (locks[Math.min(sf, st)]) {
+                    synchronized (locks[Math.max(sf, st)]) {
+                        from[p.accId & PAGE_MASK] = Money.add(from[p.accId & PAGE_MASK], p.amount);
+                        to[p.toAccId & PAGE_MASK] -= p.amount;
+                        moved(p.accId, p.amount);
+                        moved(p.toAccId, -p.amount);
+                    }
+                }
+            }
+        }
+
+        /** key is the client's idempotency key, committed with the posting; null for none. */
+        CompletableFuture<Boolean> deposit(int accId, long amount, String key) throws Exception {
+            long[] pg = slot(accId);
+            if (pg == null) return REJECTED;
+            Posting p = new Posting("DEPOSIT", accId, -1, amount);
+            p.key = key;
+            synchronized (lockFor(accId)) {
+                pg[accId & PAGE_MASK] = Money.add(pg[accId & PAGE_MASK], amount);
+                moved(accId, amount);
+                writers[Shards.of(accId)].submit(p);
+            }
+            return p.durable;
+        }
+
+        CompletableFuture<Boolean> withdraw(int accId, long amount, String key) throws Exception {
+            long[] pg = slot(accId);
+            if (pg == null) return REJECTED;
+            int i = accId & PAGE_MASK;
+            long now = System.currentTimeMillis();
+            if (!Velocity.admit(accId, -1, amount, now)) return REJECTED;
+            Posting p = new Posting("WITHDRAW", accId, -1, amount);
+            p.key = key;
+            synchronized (lockFor(accId)) {
+                if (pg[i] >= amount) {
+                    pg[i] -= amount;
+                    moved(accId, -amount);
+                    writers[Shards.of(accId)].submit(p);
+                    return p.durable;
+                }
+            }
+            Velocity.release(accId, amount, now);
+            return REJECTED;
+        }
+
+        CompletableFuture<Boolean> transfer(int fromAcc, int toAcc, long amount, String key) throws Exception {
+            long[] from = slot(fromAcc);
+            long[] to = slot(toAcc);
+            if (from == null || to == null) return REJECTED;
+            long now = System.currentTimeMillis();
+            if (!Velocity.admit(fromAcc, toAcc, amount, now)) return REJECTED;
+            int sf = fromAcc & stripeMask, st = toAcc & stripeMask;
+            Object first = locks[Math.min(sf, st)], second = locks[Math.max(sf, st)];
+            Posting p = new Posting("TRANSFER", fromAcc, toAcc, amount);
+            p.key = key;
+            int fromShard = Shards.of(fromAcc), toShard = Shards.of(toAcc);
+            boolean funded = false;
+            try {
+                synchronized (first) {
+                    synchronized (second) {
+                        int fi = fromAcc & PAGE_MASK;
+                        if (from[fi] < amount) return REJECTED;
+                        long credited = Money.add(to[toAcc & PAGE_MASK], amount);
+                        from[fi] -= amount;
+                        to[toAcc & PAGE_MASK] = credited;
+                        moved(fromAcc, -amount);
+                        moved(toAcc, amount);
+                        funded = true;
+                        if (fromShard != toShard) {
+                            coordinator.log(p);
+                            writers[toShard].submit(p);
+                        }
+                        writers[fromShard].submit(p);
+                    }
+                }
+            } finally {
+                if (!funded) Velocity.release(fromAcc, amount, now);
+            }
+            return p.durable;
+        }
+
+        /** Blocks until every posting accepted so far is in SQLite. */
+        void flush() throws InterruptedException {
+            for (GroupCommitWriter w : writers) w.flush();
+        }
+
+        void shutdown() {
+            for (GroupCommitWriter w : writers) w.shutdown();
+            if (coordinator != null) coordinator.shutdown();
+        }
+
+        String writerStats() {
+            StringBuilder sb = new StringBuilder();
+            for (GroupCommitWriter w : writers) sb.append(sb.length() == 0 ? "" : "\n").append(w.stats());
+            if (coordinator != null) sb.append('\n').append(coordinator.stats());
+            return sb.toString();
+        }
+    }
+
+    static class UserDAO {
+        /** Same text for an unknown email and a wrong password, so a login never reveals which emails exist. */
+        static final String BAD_CREDENTIALS = "Invalid email or password";
+
+        static User findByEmail(String email) throws Exception {
+            return Metrics.time(Metrics.USER_FIND_BY_EMAIL, () -> {
+                String sql = "SELECT user_id,name,email,phone,role,status FROM users WHERE email = ?";
+                try (PooledConnection c = getReadConnection()) {
+                    PreparedStatement p = c.prepare(sql);
+                    p.setString(1, email);
+                    try (ResultSet rs = p.executeQuery()) {
+                        if (rs.next()) {
+                            return new User(rs.getInt("user_id"), rs.getString("name"), rs.getString("email"),
+                                    rs.getString("role"), rs.getString("status"), rs.getString("phone"));
+                        }
+                    }
+                }
+                return null;
+            });
+        }
+
+        static int createUser(String name, String email, String phone, String plainPassword, String role) throws Exception {
+            return Metrics.time(Metrics.USER_CREATE, () -> {
+                String salt = generateSalt();
+                String hashVal = hash(plainPassword, salt);
+                String sql = "INSERT INTO users (name,email,phone,role,password_hash,salt,status) VALUES (?,?,?,?,?,?,?)";
+                try (PooledConnection c = getConnection()) {
+                    PreparedStatement p = c.prepare(sql, Statement.RETURN_GENERATED_KEYS);
+                    p.setString(1, name);
+                    p.setString(2, email);
+                    p.setString(3, phone);
+                    p.setString(4, role == null ? "CUSTOMER" : role);
+                    p.setString(5, hashVal);
+                    p.setString(6, salt);
+                    p.setString(7, "ACTIVE");
+                    p.executeUpdate();
+                    try (ResultSet rs = p.getGeneratedKeys()) {
+                        if (rs.next()) return rs.getInt(1);
+                    }
+                }
+                return -1;
+            });
+        }
+
+        /**
+         * The login path: one query for the user, their credentials and primary account (or none
+         * at all on a cache hit), then the password check in memory.
+         */
+        static LoginResult authenticate(String email, String plainPassword) throws Exception {
+            return Metrics.time(Metrics.USER_AUTHENTICATE, () -> {
+                Credentials cred = UserCache.get(email);
+                if (cred == null) {
+                    long gen = UserCache.generation();
+                    cred = loadCredentials(email);
+                    if (cred == null) return new LoginResult(null, null, BAD_CREDENTIALS);
+                    UserCache.put(cred, gen);
+                }
+                if (!cred.passwordHash.equals(hash(plainPassword, cred.salt))) return new LoginResult(null, null, BAD_CREDENTIALS);
+                User u = cred.user;
+                if ("PENDING".equals(u.status)) return new LoginResult(null, null, "Account pending approval");
+                if ("FROZEN".equals(u.status)) return new LoginResult(null, null, "Account is frozen");
+                Account acc = cred.accId < 0 ? null : new Account(cred.accId, u.userId, cred.accType, BankService.balance(cred.accId));
+                return new LoginResult(u, acc, null);
+            });
+        }
+
+        static Credentials loadCredentials(String email) throws Exception {
+            String sql = "SELECT u.user_id,u.name,u.email,u.phone,u.role,u.status,u.password_hash,u.salt," +
+                "(SELECT MIN(a.acc_id) FROM accounts a WHERE a.user_id = u.user_id) AS acc_id, " +
+                "(SELECT a.acc_type FROM accounts a WHERE a.user_id = u.user_id ORDER BY a.acc_id LIMIT 1) AS acc_type " +
+                "FROM users u WHERE u.email = ?";
+            try (PooledConnection c = getReadConnection()) {
+                PreparedStatement p = c.prepare(sql);
                 p.setString(1, email);
                 try (ResultSet rs = p.executeQuery()) {
-                    if (rs.next()) {
-                        String storedHash = rs.getString("password_hash");
-                        String salt = rs.getString("salt");
-                        return storedHash.equals(hash(plainPassword, salt));
+                    if (!rs.next()) return null;
+                    User u = new User(rs.getInt("user_id"), rs.getString("name"), rs.getString("email"),
+                            rs.getString("role"), rs.getString("status"), rs.getString("phone"));
+                    int accId = rs.getInt("acc_id");
+                    if (rs.wasNull()) accId = -1;
+                    String accType = rs.getString("acc_type");
+                    if (Shards.forUser(u.userId) != 0) {
+                        List<Account> accs = AccountDAO.findByUserId(u.userId);   // the subqueries only see the main file
+                        accId = accs.isEmpty() ? -1 : accs.get(0).accId;
+                        accType = accs.isEmpty() ? null : accs.get(0).accType;
+                    }
+                    return new Credentials(u, rs.getString("password_hash"), rs.getString("salt"), accId, accType);
+                }
+            }
+        }
+
+        static boolean verifyPassword(String email, String plainPassword) throws Exception {
+            return Metrics.time(Metrics.USER_VERIFY_PASSWORD, () -> {
+                String sql = "SELECT password_hash, salt FROM users WHERE email = ?";
+                try (PooledConnection c = getReadConnection()) {
+                    PreparedStatement p = c.prepare(sql);
+                    p.setString(1, email);
+                    try (ResultSet rs = p.executeQuery()) {
+                        if (rs.next()) {
+                            String storedHash = rs.getString("password_hash");
+                            String salt = rs.getString("salt");
+                            return storedHash.equals(hash(plainPassword, salt));
+                        }
+                    }
+                }
+                return false;
+            });
+        }
+
+        /** Told each user set to a status other than ACTIVE, so their sessions can be ended. */
+        static final List<java.util.function.IntConsumer> deactivated = new CopyOnWriteArrayList<>();
+
+        static void setStatus(int userId, String status) throws Exception {
+            Metrics.run(Metrics.USER_SET_STATUS, () -> {
+                String sql = "UPDATE users SET status = ? WHERE user_id = ?";
+                try (PooledConnection c = getConnection()) {
+                    PreparedStatement p = c.prepare(sql);
+                    p.setString(1, status);
+                    p.setInt(2, userId);
+                    p.executeUpdate();
+                    if (!"ACTIVE".equals(status)) {
+                        for (java.util.function.IntConsumer l : deactivated) l.accept(userId);
+                    }
+                } finally {
+                    UserCache.invalidate(userId);
+                }
+            });
+        }
+
+        static User findById(int id) throws Exception {
+            return Metrics.time(Metrics.USER_FIND_BY_ID, () -> {
+                String sql = "SELECT user_id,name,email,phone,role,status FROM users WHERE user_id = ?";
+                try (PooledConnection c = getReadConnection()) {
+                    PreparedStatement p = c.prepare(sql);
+                    p.setInt(1, id);
+                    try (ResultSet rs = p.executeQuery()) {
+                        if (rs.next()) return new User(rs.getInt("user_id"), rs.getString("name"), rs.getString("email"),
+                                    rs.getString("role"), rs.getString("status"), rs.getString("phone"));
+                    }
+                }
+                return null;
+            });
+        }
+
+        /**
+         * Sets status on all of userIds in one transaction, for the admin browser's bulk
+         * approve/freeze. Returns how many users were actually updated.
+         */
+        static int setStatus(int[] userIds, String status) throws Exception {
+            return Metrics.time(Metrics.USER_SET_STATUS_BULK, () -> {
+                String sql = "UPDATE users SET status = ? WHERE user_id = ?";
+                int updated = 0;
+                try (PooledConnection c = getConnection()) {
+                    PreparedStatement p = c.prepare(sql);
+                    c.setAutoCommit(false);
+                    try {
+                        for (int id : userIds) {
+                            p.setString(1, status);
+                            p.setInt(2, id);
+                            p.addBatch();
+                        }
+                        for (int n : p.executeBatch()) updated += n;
+                        c.commit();
+                        if (!"ACTIVE".equals(status)) {
+                            for (java.util.function.IntConsumer l : deactivated) {
+                                for (int id : userIds) l.accept(id);
+                            }
+                        }
+                    } catch (Exception e) {
+                        p.clearBatch();
+                        c.rollback();
+                        throw e;
+                    } finally {
+                        c.setAutoCommit(true);
+                        for (int id : userIds) UserCache.invalidate(id);
+                    }
+                }
+                return updated;
+            });
+        }
+
+        /** Number of users with the given status, or all users if status is null. */
+        static int countUsers(String status) throws Exception {
+            return Metrics.time(Metrics.USER_COUNT, () -> {
+                String sql = status == null ? "SELECT COUNT(*) FROM users" : "SELECT COUNT(*) FROM users WHERE status = ?";
+                try (PooledConnection c = getReadConnection()) {
+                    PreparedStatement p = c.prepare(sql);
+                    if (status != null) p.setString(1, status);
+                    try (ResultSet rs = p.executeQuery()) {
+                        return rs.next() ? rs.getInt(1) : 0;
+                    }
+                }
+            });
+        }
+
+        /** Columns the admin browser may sort on; each is indexed with and without a status filter. */
+        static final List<String> BROWSE_SORTS = Arrays.asList("user_id", "name", "email");
+
+        /**
+         * One page of the admin user browser: users with the given status (null = any), ordered
+         * by sort then user_id. If after is set the page starts just past that row, which is an
+         * index seek; otherwise the first offset rows are skipped.
+         */
+        static List<User> browse(String status, String sort, boolean desc, User after, int offset, int limit) throws Exception {
+            if (!BROWSE_SORTS.contains(sort)) throw new IllegalArgumentException("Cannot sort users by " + sort);
+            return Metrics.time(Metrics.USER_BROWSE, () -> {
+                String dir = desc ? " DESC" : "";
+                String cmp = desc ? " < " : " > ";
+                StringBuilder sql = new StringBuilder("SELECT user_id,name,email,phone,role,status FROM users WHERE 1=1");
+                if (status != null) sql.append(" AND status = ?");
+                if (after != null) {
+                    sql.append("user_id".equals(sort) ? " AND user_id" + cmp + "?" : " AND (" + sort + ", user_id)" + cmp + "(?, ?)");
+                }
+                sql.append(" ORDER BY ");
+                if (!"user_id".equals(sort)) sql.append(sort).append(dir).append(", ");
+                sql.append("user_id").append(dir).append(" LIMIT ? OFFSET ?");
+                
+                List<User> list = new ArrayList<>(limit);
+                try (PooledConnection c = getReadConnection()) {
+                    PreparedStatement p = c.prepare(sql.toString());
+                    int i = 1;
+                    if (status != null) p.setString(i++, status);
+                    if (after != null) {
+                        if ("name".equals(sort)) p.setString(i++, after.name);
+                        else if ("email".equals(sort)) p.setString(i++, after.email);
+                        p.setInt(i++, after.userId);
+                    }
+                    p.setInt(i++, limit);
+                    p.setInt(i, after != null ? 0 : offset);
+                    try (ResultSet rs = p.executeQuery()) {
+                        while (rs.next()) list.add(new User(rs.getInt("user_id"), rs.getString("name"), rs.getString("email"),
+                                rs.getString("role"), rs.getString("status"), rs.getString("phone")));
+                    }
+                }
+                return list;
+            });
+        }
+
+        static final String SEARCH_SQL = "SELECT u.user_id,u.name,u.email,u.phone,u.role,u.status " +
+                "FROM users_search s JOIN users u ON u.user_id = s.rowid " +
+                "WHERE users_search MATCH ? AND s.rowid > ? ORDER BY s.rowid LIMIT ?";
+
+        /**
+         * One page of the admin search: users matching text (see UserSearch.matchQuery), plus the
+         * user whose id it is if text is a number, in user_id order after afterUserId. Empty if
+         * text has nothing to search for.
+         */
+        static List<User> search(String text, int afterUserId, int limit) throws Exception {
+            String match = UserSearch.matchQuery(text);
+            int id = UserSearch.userId(text);
+            if (match == null && id <= afterUserId) return new ArrayList<>();
+            return Metrics.time(Metrics.USER_SEARCH, () -> {
+                List<User> list = new ArrayList<>(Math.min(limit, 1024) + 1);
+                try (PooledConnection c = getReadConnection()) {
+                    if (match != null) {
+                        PreparedStatement p = c.prepare(SEARCH_SQL);
+                        p.setString(1, match);
+                        p.setInt(2, afterUserId);
+                        p.setInt(3, limit);
+                        try (ResultSet rs = p.executeQuery()) {
+                            while (rs.next()) list.add(new User(rs.getInt("user_id"), rs.getString("name"), rs.getString("email"),
+                                    rs.getString("role"), rs.getString("status"), rs.getString("phone")));
+                        }
+                    }
+                    // the id match joins the page in order, so paging after the last row still works
+                    if (id > afterUserId && list.stream().noneMatch(u -> u.userId == id)) {
+                        PreparedStatement p = c.prepare("SELECT user_id,name,email,phone,role,status FROM users WHERE user_id = ?");
+                        p.setInt(1, id);
+                        try (ResultSet rs = p.executeQuery()) {
+                            if (rs.next()) {
+                                int at = 0;
+                                while (at < list.size() && list.get(at).userId < id) at++;
+                                list.add(at, new User(rs.getInt("user_id"), rs.getString("name"), rs.getString("email"),
+                                        rs.getString("role"), rs.getString("status"), rs.getString("phone")));
+                                if (list.size() > limit) list.remove(list.size() - 1);
+                            }
+                        }
+                    }
+                }
+                return list;
+            });
+        }
+    }
+
+    /**
+     * Prefix index over users for the admin search box. users_search is a contentless FTS5
+     * table of each user's name, email and phone words, kept in step with users by triggers,
+     * so registration and any other write to users update it in their own transaction. Status
+     * is not indexed (results join users for it), so setStatus never touches the index.
+     * Prefixes of 2-8 characters have their own index entries: without them a prefix shared by
+     * many words (every "smith42" in the emails) merges all of their postings before the first
+     * row comes back. Positions are not stored (detail=column), which keeps all that small.
+     */
+    static class UserSearch {
+        static final int PAGE_SIZE = Integer.getInteger("bank.search.pageSize", 50);
+        /** Shorter words are ignored; a one-letter prefix would match most of the table. */
+        static final int MIN_PREFIX = 2;
+        private static final java.util.regex.Pattern PHONE = java.util.regex.Pattern.compile("[+(]?\\d[\\d\\s().-]*");
+        /** Anything the unicode61 tokenizer does not keep in a word. */
+        private static final java.util.regex.Pattern WORD_BREAK = java.util.regex.Pattern.compile("[^\\p{L}\\p{N}\\p{M}]+");
+
+        /**
+         * What is indexed for the phone of row r: its digits run together, then the number as
+         * written, so "+1 (555) 010-0199" matches both 1555010 and 555 010.
+         */
+        private static String phone(String r) {
+            String e = "COALESCE(" + r + ".phone, '')";
+            String digits = e;
+            for (String ch : new String[] {" ", "-", "(", ")", "+", "."}) digits = "replace(" + digits + ", '" + ch + "', '')";
+            return digits + " || ' ' || " + e;
+        }
+
+        static void createTables(Statement st) throws SQLException {
+            st.execute("CREATE VIRTUAL TABLE IF NOT EXISTS users_search USING fts5(name, email, phone, " +
+                "content='', detail=column, prefix='2 3 4 5 6 7 8', tokenize='unicode61 remove_diacritics 2')");
+            String insert = "INSERT INTO users_search (rowid, name, email, phone) VALUES (new.user_id, new.name, new.email, " + phone("new") + ");";
+            String delete = "INSERT INTO users_search (users_search, rowid, name, email, phone) " +
+                "VALUES ('delete', old.user_id, old.name, old.email, " + phone("old") + ");";
+            st.execute("CREATE TRIGGER IF NOT EXISTS users_search_insert AFTER INSERT ON users BEGIN " + insert + " END");
+            st.execute("CREATE TRIGGER IF NOT EXISTS users_search_delete AFTER DELETE ON users BEGIN " + delete + " END");
+            st.execute("CREATE TRIGGER IF NOT EXISTS users_search_update AFTER UPDATE OF name, email, phone ON users BEGIN " +
+                delete + " " + insert + " END");
+        }
+
+        /**
+         * (Re)creates the index and its triggers and fills it from users, in one transaction, so
+         * a crash part way leaves the file as it was and the next start does it again.
+         */
+        static void rebuild(PooledConnection c) throws Exception {
+            long start = System.nanoTime();
+            c.setAutoCommit(false);
+            try (Statement st = c.createStatement()) {
+                for (String t : new String[] {"insert", "delete", "update"}) st.execute("DROP TRIGGER IF EXISTS users_search_" + t);
+                st.execute("DROP TABLE IF EXISTS users_search");
+                createTables(st);
+                st.executeUpdate("INSERT INTO users_search (rowid, name, email, phone) " +
+                    "SELECT user_id, name, email, " + phone("u") + " FROM users u");
+                long n;
+                try (ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM users")) {
+                    n = rs.next() ? rs.getLong(1) : 0;
+                }
+                c.commit();
+                System.out.printf("User search: indexed %d users in %.1f s%n", n, (System.nanoTime() - start) / 1e9);
+            } catch (Exception e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+        }
+
+        /**
+         * FTS5 query for what the admin typed, or null if nothing is searchable. Every typed
+         * word must match as a prefix, so "ali smi" finds Alice Smith. Within a word, the parts
+         * before the last punctuation are already whole and must match exactly, so
+         * "alice.smith@ex" follows an email as it is typed. Input that looks like a phone
+         * number only searches phone, on its digits or its groups as written.
+         */
+        static String matchQuery(String text) {
+            String t = text == null ? "" : text.trim();
+            if (PHONE.matcher(t).matches()) {
+                String digits = t.replaceAll("\\D", "");
+                if (digits.length() < MIN_PREFIX) return null;
+                String groups = terms(new String[] {t});
+                String run = "\"" + digits + "\"*";
+                return groups.isEmpty() || groups.equals(run) ? "phone : " + run : "phone : (" + run + " OR (" + groups + "))";
+            }
+            String q = terms(t.split("\\s+"));
+            return q.isEmpty() ? null : q;
+        }
+
+        /**
+         * The words as FTS5 terms split the way the tokenizer splits them, all required. The
+         * last part of each word is a prefix; one shorter than MIN_PREFIX is left out until more
+         * is typed, since it would match most of the index.
+         */
+        private static String terms(String[] words) {
+            StringBuilder q = new StringBuilder();
+            for (String word : words) {
+                String[] parts = WORD_BREAK.split(word);
+                for (int i = 0; i < parts.length; i++) {
+                    boolean last = i == parts.length - 1;
+                    if (parts[i].isEmpty() || last && parts[i].length() < MIN_PREFIX) continue;
+                    if (q.length() > 0) q.append(' ');
+                    q.append('"').append(parts[i]).append(last ? "\"*" : "\"");
+                }
+            }
+            return q.toString();
+        }
+
+        /** The user id text spells, or -1. */
+        static int userId(String text) {
+            String t = text == null ? "" : text.trim();
+            return t.matches("\\d{1,9}") ? Integer.parseInt(t) : -1;
+        }
+
+        static boolean searchable(String text) {
+            return matchQuery(text) != null || userId(text) > 0;
+        }
+    }
+
+    static class AccountDAO {
+        /** Sharded storage picks the next free id in the shard's residue class, see Shards.of. */
+        static final String INSERT_SHARDED_SQL = "INSERT INTO accounts (acc_id, user_id, acc_type, balance) " +
+                "VALUES ((SELECT COALESCE(MAX(acc_id), ?) + ? FROM accounts), ?, ?, ?)";
+
+        /** Account types a customer can open; the first is the one registration opens. */
+        static final String[] TYPES = {"SAVINGS", "CURRENT"};
+        static final int RECENT_ROWS = Integer.getInteger("bank.portfolio.recentRows", 10);
+
+        static int createAccountForUser(int userId, long initialDeposit) throws Exception {
+            return createAccount(userId, TYPES[0], initialDeposit);
+        }
+
+        static int createAccount(int userId, String accType, long initialDeposit) throws Exception {
+            if (!Arrays.asList(TYPES).contains(accType)) throw new IllegalArgumentException("Unknown account type " + accType);
+            return Metrics.time(Metrics.ACCOUNT_CREATE, () -> {
+                String sql = "INSERT INTO accounts (user_id, acc_type, balance) VALUES (?,?,?)";
+                int shard = Shards.forUser(userId), n = Shards.count();
+                int[] accId = {-1};
+                try (PooledConnection c = getConnection(Shards.pool(shard))) {
+                    PreparedStatement p = c.prepare(n == 1 ? sql : INSERT_SHARDED_SQL, Statement.RETURN_GENERATED_KEYS);
+                    // the journal lock serialises account creation per file, so MAX(acc_id) cannot race
+                    Journal.commit(c, () -> {
+                        int i = 1;
+                        if (n > 1) {
+                            p.setInt(i++, shard + 1 - n);
+                            p.setInt(i++, n);
+                        }
+                        p.setInt(i++, userId);
+                        p.setString(i++, accType);
+                        p.setLong(i, initialDeposit);
+                        p.executeUpdate();
+                        try (ResultSet rs = p.getGeneratedKeys()) {
+                            if (!rs.next()) return Collections.emptyList();
+                            accId[0] = rs.getInt(1);
+                        }
+                        return Collections.singletonList(Journal.Record.open(accId[0], userId, accType, initialDeposit));
+                    });
+                }
+                Ledger l = ledger;
+                if (l != null && accId[0] > 0) {
+                    l.register(accId[0], initialDeposit);
+                    l.addToTotal(userId, accId[0]);
+                }
+                return accId[0];
+            });
+        }
+
+        static Account findById(int accId) throws Exception {
+            return Metrics.time(Metrics.ACCOUNT_FIND_BY_ID, () -> {
+                try (PooledConnection c = Shards.reader(accId)) {
+                    return findById(c, accId);
+                }
+            });
+        }
+
+        static Account findById(PooledConnection c, int accId) throws Exception {
+            PreparedStatement p = c.prepare("SELECT acc_id,user_id,acc_type,balance FROM accounts WHERE acc_id = ?");
+            p.setInt(1, accId);
+            try (ResultSet rs = p.executeQuery()) {
+                if (rs.next()) return readAccount(rs);
+            }
+            return null;
+        }
+
+        /** Every account of the user, in acc_id order (the first is the one opened at registration). */
+        static List<Account> findByUserId(int userId) throws Exception {
+            return Metrics.time(Metrics.ACCOUNT_FIND_BY_USER, () -> {
+                String sql = "SELECT acc_id,user_id,acc_type,balance FROM accounts WHERE user_id = ? ORDER BY acc_id";
+                List<Account> out = new ArrayList<>();
+                try (PooledConnection c = getReadConnection(Shards.pool(Shards.forUser(userId)))) {
+                    PreparedStatement p = c.prepare(sql);
+                    p.setInt(1, userId);
+                    try (ResultSet rs = p.executeQuery()) {
+                        while (rs.next()) out.add(readAccount(rs));
+                    }
+                }
+                return out;
+            });
+        }
+
+        /**
+         * The user's accounts and their recent rows in one query on one snapshot: each account
+         * joined to its own newest recentRows transactions (an index seek per account), merged
+         * here into the user's newest recentRows overall. Balances are as committed to SQLite.
+         */
+        static Portfolio portfolio(int userId, int recentRows) throws Exception {
+            return Metrics.time(Metrics.ACCOUNT_PORTFOLIO, () -> {
+                String sql = "SELECT a.acc_id, a.user_id, a.acc_type, a.balance, " +
+                    "t.tx_id, t.tx_type, t.amount, t.tx_time, t.description, t.target_acc_id " +
+                    "FROM accounts a LEFT JOIN transactions t ON t.tx_id IN " +
+                    "(SELECT tx_id FROM transactions WHERE acc_id = a.acc_id ORDER BY tx_time DESC, tx_id DESC LIMIT ?) " +
+                    "WHERE a.user_id = ? ORDER BY a.acc_id";
+                List<Account> accounts = new ArrayList<>();
+                List<Transaction> recent = new ArrayList<>();
+                try (PooledConnection c = getReadConnection(Shards.pool(Shards.forUser(userId)))) {
+                    PreparedStatement p = c.prepare(sql);
+                    p.setInt(1, recentRows);
+                    p.setInt(2, userId);
+                    try (ResultSet rs = p.executeQuery()) {
+                        while (rs.next()) {
+                            int accId = rs.getInt("acc_id");
+                            if (accounts.isEmpty() || accounts.get(accounts.size() - 1).accId != accId) accounts.add(readAccount(rs));
+                            rs.getLong("tx_id");
+                            if (!rs.wasNull()) recent.add(TransactionDAO.readTransaction(rs));
+                        }
+                    }
+                }
+                recent.sort((x, y) -> x.time.equals(y.time) ? Long.compare(y.txId, x.txId) : y.time.compareTo(x.time));
+                return new Portfolio(accounts, new ArrayList<>(recent.subList(0, Math.min(recentRows, recent.size()))));
+            });
+        }
+
+        static Account readAccount(ResultSet rs) throws SQLException {
+            return new Account(rs.getInt("acc_id"), rs.getInt("user_id"), rs.getString("acc_type"), rs.getLong("balance"));
+        }
+
+        static final String ADJUST_SQL = "UPDATE accounts SET balance = balance + ? WHERE acc_id = ?";
+
+        /** Adds every delta to its account's balance in one executeBatch. */
+        static void applyDeltas(PooledConnection c, DeltaMap deltas) throws SQLException {
+            PreparedStatement upd = c.prepare(ADJUST_SQL);
+            try {
+                for (int k = 0; k < deltas.size(); k++) {
+                    upd.setLong(1, deltas.valueAt(k));
+                    upd.setInt(2, deltas.keyAt(k));
+                    upd.addBatch();
+                }
+                upd.executeBatch();
+            } finally {
+                upd.clearBatch();
+            }
+        }
+
+        static void adjustBalance(PooledConnection c, int accId, long delta) throws Exception {
+            PreparedStatement p = c.prepare(ADJUST_SQL);
+            p.setLong(1, delta);
+            p.setInt(2, accId);
+            p.executeUpdate();
+        }
+    }
+
+    static class TransactionDAO {
+        static final String INSERT_SQL = "INSERT INTO transactions (acc_id, tx_type, amount, description, target_acc_id, balance_after) VALUES (?,?,?,?,?,?)";
+        /** INSERT_SQL with an explicit tx_time, for rows replayed from the journal. */
+        static final String INSERT_AT_SQL = "INSERT INTO transactions (acc_id, tx_type, amount, description, target_acc_id, balance_after, tx_time) VALUES (?,?,?,?,?,?,?)";
+
+        /** balanceAfter is the account's balance once this row is applied (see RunningBalances). */
+        static void record(PooledConnection c, int accId, String type, long amount, String desc, Integer targetAccId, long balanceAfter) throws Exception {
+            Metrics.run(Metrics.TX_RECORD, () -> {
+                PreparedStatement p = c.prepare(INSERT_SQL);
+                bind(p, accId, type, amount, desc, targetAccId, balanceAfter);
+                p.executeUpdate();
+            });
+        }
+
+        static void bind(PreparedStatement p, int accId, String type, long amount, String desc, Integer targetAccId, long balanceAfter) throws SQLException {
+            p.setInt(1, accId);
+            p.setString(2, type);
+            p.setLong(3, amount);
+            p.setString(4, desc);
+            if (targetAccId == null) p.setNull(5, Types.INTEGER);
+            else p.setInt(5, targetAccId);
+            p.setLong(6, balanceAfter);
+        }
+
+        /** A row's effect on its own account: TRANSFER rows are the sending side, DEPOSIT rows include transfers in. */
+        static final String SIGNED_SQL = "CASE WHEN tx_type IN ('WITHDRAW', 'TRANSFER') THEN -amount ELSE amount END";
+
+        static long signed(String type, long amount) {
+            return "WITHDRAW".equals(type) || "TRANSFER".equals(type) ? -amount : amount;
+        }
+
+        /**
+         * Balance of accId as of time ("yyyy-MM-dd HH:mm:ss", inclusive), or null if the account
+         * did not exist yet. Normally one index seek: the newest row at or before time carries
+         * balance_after. When that row has been archived, the nearest later anchor (the oldest
+         * live row, or a month-close checkpoint the archiver left) is walked back over the
+         * archived rows in between, which all fall in one calendar month. Every query runs in the
+         * reader's one read transaction, so they agree with each other.
+         */
+        static Long balanceAt(int accId, String time) throws Exception {
+            return Metrics.time(Metrics.TX_BALANCE_AT, () -> {
+                try (PooledConnection c = Shards.reader(accId)) {
+                    PreparedStatement p = c.prepare("SELECT balance_after FROM transactions WHERE acc_id = ? AND tx_time <= ? " +
+                            "ORDER BY tx_time DESC, tx_id DESC LIMIT 1");
+                    p.setInt(1, accId);
+                    p.setString(2, time);
+                    try (ResultSet rs = p.executeQuery()) {
+                        if (rs.next()) return rs.getLong(1);
+                    }
+                    long current;
+                    p = c.prepare("SELECT balance, created_at FROM accounts WHERE acc_id = ?");
+                    p.setInt(1, accId);
+                    try (ResultSet rs = p.executeQuery()) {
+                        if (!rs.next()) return null;
+                        String created = rs.getString(2);
+                        if (created != null && created.compareTo(time) > 0) return null;
+                        current = rs.getLong(1);
+                    }
+
+                    // anchor: the oldest live row after time, or a nearer checkpoint
+                    String anchorTime = null;
+                    long anchorTxId = 0, balance = current;
+                    p = c.prepare("SELECT tx_time, tx_id, balance_after, tx_type, amount FROM transactions WHERE acc_id = ? AND tx_time > ? " +
+                            "ORDER BY tx_time, tx_id LIMIT 1");
+                    p.setInt(1, accId);
+                    p.setString(2, time);
+                    try (ResultSet rs = p.executeQuery()) {
+                        if (rs.next()) {
+                            anchorTime = rs.getString(1);
+                            anchorTxId = rs.getLong(2);
+                            balance = rs.getLong(3) - signed(rs.getString(4), rs.getLong(5));   // before this row
+                        }
+                    }
+                    p = c.prepare("SELECT tx_time, tx_id, balance FROM balance_checkpoints WHERE acc_id = ? AND tx_time > ? " +
+                            "ORDER BY tx_time, tx_id LIMIT 1");
+                    p.setInt(1, accId);
+                    p.setString(2, time);
+                    try (ResultSet rs = p.executeQuery()) {
+                        if (rs.next() && (anchorTime == null || rs.getString(1).compareTo(anchorTime) < 0
+                                || (rs.getString(1).equals(anchorTime) && rs.getLong(2) < anchorTxId))) {
+                            // after the checkpoint's own (archived) row, so walk back over that row too
+                            anchorTime = rs.getString(1);
+                            anchorTxId = rs.getLong(2) + 1;
+                            balance = rs.getLong(3);
+                        }
+                    }
+                    if (anchorTime == null) return balance;   // nothing happened after time
+                    StatementCursor before = new StatementCursor(anchorTime, anchorTxId);
+                    for (Archive.Segment seg : Archive.segments(accId)) {
+                        if (seg.account(accId) < 0) continue;
+                        try (TxSource src = seg.scan(accId, before)) {
+                            for (Transaction t; (t = src.next()) != null && t.time.compareTo(time) > 0; ) balance -= signed(t.type, t.amount);
+                        }
+                    }
+                    return balance;
+                }
+            });
+        }
+
+        static List<String> miniStatement(int accId, int limit) throws Exception {
+            List<String> res = new ArrayList<>();
+            for (Transaction t : statement(accId, null, null, null, limit).rows) res.add(t.toString());
+            return res;
+        }
+
+        /**
+         * One page of an account's history, newest first. from (inclusive) and to (exclusive)
+         * are optional "yyyy-MM-dd HH:mm:ss" bounds; pass the previous page's cursor as after
+         * to continue. Each page is a single index seek on (acc_id, tx_time), however deep.
+         */
+        static StatementPage statement(int accId, String from, String to, StatementCursor after, int pageSize) throws Exception {
+            return Metrics.time(Metrics.TX_STATEMENT, () -> {
+                if (pageSize <= 0) return new StatementPage(new ArrayList<>(), null);
+                StringBuilder sql = new StringBuilder(
+                    "SELECT tx_id, acc_id, tx_type, amount, tx_time, description, target_acc_id FROM transactions WHERE acc_id = ?");
+                if (from != null) sql.append(" AND tx_time >= ?");
+                if (to != null) sql.append(" AND tx_time < ?");
+                if (after != null) sql.append(" AND (tx_time, tx_id) < (?, ?)");
+                sql.append(" ORDER BY tx_time DESC, tx_id DESC LIMIT ?");
+
+                List<Transaction> rows = new ArrayList<>(Math.min(pageSize, 1024));
+                try (PooledConnection c = Shards.reader(accId)) {
+                    PreparedStatement p = c.prepare(sql.toString());
+                    int i = 1;
+                    p.setInt(i++, accId);
+                    if (from != null) p.setString(i++, from);
+                    if (to != null) p.setString(i++, to);
+                    if (after != null) {
+                        p.setString(i++, after.time);
+                        p.setLong(i++, after.txId);
+                    }
+                    p.setInt(i, pageSize + 1);
+                    try (ResultSet rs = p.executeQuery()) {
+                        while (rs.next()) rows.add(readTransaction(rs));
+                    }
+                }
+                if (mergeArchived(rows, accId, from, to, after, pageSize)) {
+                    rows.sort(NEWEST_FIRST);
+                    int kept = 0;
+                    for (Transaction t : rows) {
+                        if (kept > 0 && rows.get(kept - 1).txId == t.txId) continue;
+                        rows.set(kept++, t);
+                        if (kept > pageSize) break;
+                    }
+                    rows.subList(kept, rows.size()).clear();
+                }
+                StatementCursor next = null;
+                if (rows.size() > pageSize) {
+                    rows.remove(pageSize);
+                    Transaction last = rows.get(pageSize - 1);
+                    next = new StatementCursor(last.time, last.txId);
+                }
+                return new StatementPage(rows, next);
+            });
+        }
+
+        /**
+         * Adds up to pageSize + 1 matching rows from each archive segment that could still
+         * reach the page. Returns false when no segment contributed, so the page is already in order.
+         */
+        private static boolean mergeArchived(List<Transaction> rows, int accId, String from, String to,
+                                             StatementCursor after, int pageSize) throws Exception {
+            boolean merged = false;
+            StatementCursor bound = after;
+            if (to != null && (bound == null || to.compareTo(bound.time) <= 0)) bound = new StatementCursor(to, Long.MIN_VALUE);
+            for (Archive.Segment seg : Archive.segments(accId)) {
+                if (seg.account(accId) < 0) continue;
+                // the live rows already fill the page with rows newer than anything in this segment
+                if (rows.size() > pageSize && rows.get(pageSize).time.compareTo(seg.maxTime) > 0) continue;
+                try (TxSource src = seg.scan(accId, bound)) {
+                    Transaction t;
+                    for (int n = 0; n <= pageSize && (t = src.next()) != null; n++) {
+                        if (from != null && t.time.compareTo(from) < 0) break;
+                        rows.add(t);
+                        merged = true;
+                    }
+                }
+            }
+            return merged;
+        }
+
+        static Transaction readTransaction(ResultSet rs) throws SQLException {
+            int target = rs.getInt("target_acc_id");
+            return new Transaction(rs.getLong("tx_id"), rs.getInt("acc_id"), rs.getString("tx_type"), rs.getLong("amount"),
+                    rs.getString("tx_time"), rs.getString("description"), rs.wasNull() ? null : target);
+        }
+    }
+
+    static class BankService {
+        /** Balance in cents, or Ledger.NO_ACCOUNT. */
+        static long balance(int accId) throws Exception {
+            // timed inline: this is an in-memory read, too cheap to box through Metrics.time
+            Metrics.Timer t = Metrics.SERVICE_BALANCE;
+            long start = t.start();
+            try {
+                return ledger().balance(accId);
+            } catch (Exception e) {
+                t.error();
+                throw e;
+            } finally {
+                t.stop(start);
+            }
+        }
+
+        static boolean deposit(int accId, long amount) throws Exception {
+            return deposit(accId, amount, null);
+        }
+
+        /**
+         * With a non-null idempotencyKey, a repeat of the same request (same account, key, amount)
+         * returns the first call's outcome instead of moving the money again; see IdempotencyKeys.
+         */
+        static boolean deposit(int accId, long amount, String idempotencyKey) throws Exception {
+            return Metrics.time(Metrics.SERVICE_DEPOSIT, () -> {
+                if (amount <= 0) return false;
+                if (idempotencyKey == null) return await(ledger().deposit(accId, amount, null));
+                return IdempotencyKeys.get().execute("DEPOSIT", accId, -1, amount, idempotencyKey,
+                        () -> ledger().deposit(accId, amount, idempotencyKey));
+            });
+        }
+
+        static boolean withdraw(int accId, long amount) throws Exception {
+            return withdraw(accId, amount, null);
+        }
+
+        static boolean withdraw(int accId, long amount, String idempotencyKey) throws Exception {
+            return Metrics.time(Metrics.SERVICE_WITHDRAW, () -> {
+                if (amount <= 0) return false;
+                if (idempotencyKey == null) return await(ledger().withdraw(accId, amount, null));
+                return IdempotencyKeys.get().execute("WITHDRAW", accId, -1, amount, idempotencyKey,
+                        () -> ledger().withdraw(accId, amount, idempotencyKey));
+            });
+        }
+
+        static boolean transfer(int fromAcc, int toAcc, long amount) throws Exception {
+            return transfer(fromAcc, toAcc, amount, null);
+        }
+
+        static boolean transfer(int fromAcc, int toAcc, long amount, String idempotencyKey) throws Exception {
+            return Metrics.time(Metrics.SERVICE_TRANSFER, () -> {
+                if (amount <= 0 || fromAcc == toAcc) return false;
+                if (idempotencyKey == null) return await(ledger().transfer(fromAcc, toAcc, amount, null));
+                return IdempotencyKeys.get().execute("TRANSFER", fromAcc, toAcc, amount, idempotencyKey,
+                        () -> ledger().transfer(fromAcc, toAcc, amount, idempotencyKey));
+            });
+        }
+
+        /** The user's accounts at their current balances, their recent activity and their total. */
+        static Portfolio portfolio(int userId) throws Exception {
+            return Metrics.time(Metrics.SERVICE_PORTFOLIO, () -> {
+                Portfolio p = AccountDAO.portfolio(userId, AccountDAO.RECENT_ROWS);
+                Ledger l = ledger();
+                int[] ids = new int[p.accounts.size()];
+                for (int i = 0; i < ids.length; i++) {
+                    Account a = p.accounts.get(i);
+                    ids[i] = a.accId;
+                    a.balance = l.balance(a.accId);   // SQLite can be a commit behind the ledger
+                }
+                p.total = l.userTotal(userId, ids);
+                return p;
+            });
+        }
+
+        /** The user logged out or their session expired: their cached total is no longer kept. */
+        static void endSession(int userId) {
+            Ledger l = ledger;
+            if (l != null) l.dropTotal(userId);
+        }
+
+        /** Opens another (empty) account of accType for the user; returns its id. */
+        static int openAccount(int userId, String accType) throws Exception {
+            return AccountDAO.createAccount(userId, accType, 0);
+        }
+
+        static final long AWAIT_MS = Long.getLong("bank.commit.awaitMs", 30_000);
+
+        /** Waits up to AWAIT_MS for a posting to become durable. */
+        static boolean await(CompletableFuture<Boolean> f) throws Exception {
+            try {
+                return f.get(AWAIT_MS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                throw new TimeoutException("Not saved after " + AWAIT_MS + " ms; check the balance before retrying");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * A virtual-thread-per-task executor when the running JVM has one (Java 21+), otherwise a
+     * bounded pool of daemon threads. queueCapacity <= 0 means an unbounded queue.
+     */
+    static ExecutorService newWorkerExecutor(String name, int threads, int queueCapacity) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger n = new AtomicInteger();
+            BlockingQueue<Runnable> queue = queueCapacity > 0 ? new ArrayBlockingQueue<>(queueCapacity) : new LinkedBlockingQueue<>();
+            ThreadPoolExecutor ex = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, queue, r -> {
+                Thread t = new Thread(r, name + "-" + n.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            ex.allowCoreThreadTimeOut(true);
+            return ex;
+        }
+    }
+
+    /** Result of a background login: either the user and their account, or a message for the login screen. */
+    static class LoginResult {
+        final User user;
+        final Account account;
+        final String error;
+        LoginResult(User user, Account account, String error) { this.user = user; this.account = account; this.error = error; }
+    }
+
+    /**
+     * Asynchronous facade over BankService and the DAOs. Every call runs on DB_EXECUTOR
+     * (virtual threads when the JVM has them, otherwise a bounded pool) and never on the EDT.
+     * Calls made before start() has finished initializing the database wait for it.
+     */
+    static class AsyncBank {
+        static final int THREADS = Integer.getInteger("bank.async.threads", POOL_SIZE * 2);
+        static final int QUEUE = Integer.getInteger("bank.async.queue", 1000);
+        static final ExecutorService DB_EXECUTOR = newWorkerExecutor("db-worker", THREADS, QUEUE);
+        private static final CompletableFuture<Void> ready = new CompletableFuture<>();
+        private static final AtomicBoolean started = new AtomicBoolean();
+
+        /** Initializes the schema and warm-loads the ledger once; later calls return the same future. */
+        static CompletableFuture<Void> start() {
+            if (!started.compareAndSet(false, true)) return ready;
+            DB_EXECUTOR.execute(() -> {
+                try {
+                    long t = Startup.begin();
+                    try {
+                        Class.forName("org.sqlite.JDBC");
+                        System.out.println("SQLite JDBC Driver loaded successfully");
+                    } catch (Exception e) {
+                        System.out.println("SQLite driver not found, will try to continue: " + e.getMessage());
+                    }
+                    Startup.end("jdbc driver", t);
+                    initializeDatabase();
+                    t = Startup.begin();
+                    ledger();
+                    Startup.end("ledger load", t);
+                    t = Startup.begin();
+                    Archive.schedule();
+                    InterestJob.schedule();
+                    Metrics.schedule();
+                    Startup.end("background jobs", t);
+                    ready.complete(null);
+                } catch (Throwable t) {
+                    ready.completeExceptionally(t);
+                }
+            });
+            return ready;
+        }
+
+        /** Runs task in the background; cancelling the returned future interrupts or skips it. */
+        static <T> CompletableFuture<T> submit(Callable<T> task) {
+            start();
+            CompletableFuture<T> f = new CompletableFuture<>();
+            Future<?> running;
+            try {
+                running = DB_EXECUTOR.submit(() -> {
+                    if (f.isDone()) return;
+                    try {
+                        ready.get();
+                        f.complete(task.call());
+                    } catch (Throwable t) {
+                        f.completeExceptionally(t);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                f.completeExceptionally(e);
+                return f;
+            }
+            f.whenComplete((v, t) -> {
+                if (f.isCancelled()) running.cancel(true);
+            });
+            return f;
+        }
+
+        static Throwable rootCause(Throwable t) {
+            while ((t instanceof CompletionException || t instanceof ExecutionException) && t.getCause() != null) t = t.getCause();
+            return t;
+        }
+
+        static CompletableFuture<LoginResult> login(String email, String password) {
+            return submit(() -> UserDAO.authenticate(email, password));
+        }
+
+        /** Creates the user and their first account; returns the new user id, or -1. */
+        static CompletableFuture<Integer> register(String name, String email, String phone, String password) {
+            return submit(() -> {
+                int uid = UserDAO.createUser(name, email, phone, password, "CUSTOMER");
+                if (uid > 0) AccountDAO.createAccountForUser(uid, 0);
+                return uid;
+            });
+        }
+
+        static CompletableFuture<Long> balance(int accId) {
+            return submit(() -> BankService.balance(accId));
+        }
+
+        static CompletableFuture<Boolean> deposit(int accId, long amount) {
+            return submit(() -> BankService.deposit(accId, amount));
+        }
+
+        static CompletableFuture<Boolean> withdraw(int accId, long amount) {
+            return submit(() -> BankService.withdraw(accId, amount));
+        }
+
+        static CompletableFuture<Boolean> transfer(int fromAcc, int toAcc, long amount) {
+            return submit(() -> BankService.transfer(fromAcc, toAcc, amount));
+        }
+
+        static CompletableFuture<StatementPage> statement(int accId, StatementCursor after, int pageSize) {
+            return submit(() -> TransactionDAO.statement(accId, null, null, after, pageSize));
+        }
+
+        /** Streams the account's whole history to a file; progress gets rows written so far. */
+        static CompletableFuture<Long> exportStatement(int accId, java.nio.file.Path out, boolean pdf, java.util.function.LongConsumer progress) {
+            return submit(() -> StatementExporter.export(accId, out, pdf, progress));
+        }
+
+        static CompletableFuture<Portfolio> portfolio(int userId) {
+            return submit(() -> BankService.portfolio(userId));
+        }
+
+        static CompletableFuture<Integer> openAccount(int userId, String accType) {
+            return submit(() -> BankService.openAccount(userId, accType));
+        }
+
+        static CompletableFuture<Long> countTransactions(int accId) {
+            return submit(() -> StatementExporter.count(accId));
+        }
+
+        static CompletableFuture<Integer> countUsers(String status) {
+            return submit(() -> UserDAO.countUsers(status));
+        }
+
+        static CompletableFuture<List<User>> browseUsers(String status, String sort, boolean desc, User after, int offset, int limit) {
+            return submit(() -> UserDAO.browse(status, sort, desc, after, offset, limit));
+        }
+
+        static CompletableFuture<List<User>> searchUsers(String text, int afterUserId, int limit) {
+            return submit(() -> UserDAO.search(text, afterUserId, limit));
+        }
+
+        static CompletableFuture<User> findUser(int userId) {
+            return submit(() -> UserDAO.findById(userId));
+        }
+
+        /** Activates the user; completes with false if there is no such user. */
+        static CompletableFuture<Boolean> approve(int userId) {
+            return submit(() -> {
+                if (UserDAO.findById(userId) == null) return false;
+                UserDAO.setStatus(userId, "ACTIVE");
+                return true;
+            });
+        }
+
+        static CompletableFuture<Void> setStatus(int userId, String status) {
+            return submit(() -> {
+                UserDAO.setStatus(userId, status);
+                return null;
+            });
+        }
+
+        /** Bulk status change in one transaction; completes with the number of users updated. */
+        static CompletableFuture<Integer> setStatus(int[] userIds, String status) {
+            return submit(() -> UserDAO.setStatus(userIds, status));
+        }
+    }
+
+    // ========== LOAD GENERATOR ==========
+    /**
+     * Synthetic workload: builds a scratch database of N users with one account each through
+     * the normal DAOs, then runs M client threads that pick operations from a weighted mix of
+     * login, balance, deposit, withdraw, transfer and statement for a fixed time or op count.
+     * Reports throughput and a latency histogram per operation, then checks that the money
+     * in the ledger and in the accounts table both equal the opening balances plus deposits
+     * minus withdrawals.
+     */
+    static final class LoadGenerator {
+        static final String[] OPS = {"login", "balance", "deposit", "withdraw", "transfer", "statement"};
+        static final String DEFAULT_MIX = "login:5,balance:40,deposit:15,withdraw:15,transfer:20,statement:5";
+        static final String PASSWORD = "loadtest";
+
+        final int users, clients, hot;
+        final long seconds, maxOps, initial, maxAmount, seed;
+        final int[] weights = new int[OPS.length];
+        final Metrics.Timer[] timers = new Metrics.Timer[OPS.length];
+        final LongAdder[] declined = new LongAdder[OPS.length];
+        final LongAdder deposited = new LongAdder();
+        final LongAdder withdrawn = new LongAdder();
+        final AtomicLong issued = new AtomicLong();
+        /** -1: no idempotency keys; otherwise every posting is keyed and this % of them is sent twice. */
+        int retryPercent = -1;
+        final AtomicLong keySeq = new AtomicLong();
+        final LongAdder retried = new LongAdder();
+        final LongAdder retryMismatches = new LongAdder();
+        int[] accIds;
+        String[] emails;
+
+        /** seconds > 0 runs for that long, otherwise until maxOps operations have been issued. */
+        LoadGenerator(int users, int clients, long seconds, long maxOps, String mix, long initial, long maxAmount, int hot, long seed) {
+            this.users = users; this.clients = clients; this.seconds = seconds; this.maxOps = maxOps;
+            this.initial = initial; this.maxAmount = maxAmount; this.hot = hot; this.seed = seed;
+            for (String part : mix.split(",")) {
+                String[] kv = part.trim().split(":");
+                int op = Arrays.asList(OPS).indexOf(kv[0].trim().toLowerCase());
+                if (op < 0 || kv.length != 2) throw new IllegalArgumentException("Bad mix entry '" + part + "', expected op:weight with op one of " + String.join("/", OPS));
+                weights[op] = Integer.parseInt(kv[1].trim());
+            }
+            if (Arrays.stream(weights).sum() <= 0) throw new IllegalArgumentException("Mix has no weight");
+            if (users < 2) throw new IllegalArgumentException("Need at least 2 users");
+            for (int i = 0; i < OPS.length; i++) {
+                timers[i] = new Metrics.Timer(OPS[i]);
+                declined[i] = new LongAdder();
+            }
+        }
+
+        /** Creates the users and accounts, clients threads at a time. */
+        void populate() throws Exception {
+            accIds = new int[users];
+            emails = new String[users];
+            long t0 = System.nanoTime();
+            ExecutorService pool = Executors.newFixedThreadPool(clients);
+            try {
+                List<Future<?>> fs = new ArrayList<>();
+                for (int c = 0; c < clients; c++) {
+                    int first = c;
+                    fs.add(pool.submit(() -> {
+                        for (int i = first; i < users; i += clients) {
+                            emails[i] = "load" + i + "@example.com";
+                            int userId = UserDAO.createUser("Load User " + i, emails[i], "0000000000", PASSWORD, null);
+                            accIds[i] = AccountDAO.createAccountForUser(userId, initial);
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> f : fs) f.get();
+            } finally {
+                pool.shutdown();
+            }
+            System.out.printf("Created %d users and accounts in %.1f s%n", users, (System.nanoTime() - t0) / 1e9);
+        }
+
+        /** Runs the clients and prints the report; returns false if money was not conserved. */
+        boolean run() throws Exception {
+            int total = Arrays.stream(weights).sum();
+            long deadline = seconds > 0 ? System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds) : Long.MAX_VALUE;
+            ExecutorService pool = Executors.newFixedThreadPool(clients);
+            long t0 = System.nanoTime();
+            try {
+                List<Future<?>> fs = new ArrayList<>();
+                for (int c = 0; c < clients; c++) {
+                    SplittableRandom rnd = new SplittableRandom(seed + c);
+                    fs.add(pool.submit(() -> {
+                        while (System.nanoTime() < deadline && (seconds > 0 || issued.getAndIncrement() < maxOps)) {
+                            int pick = rnd.nextInt(total), op = 0;
+                            while (pick >= weights[op]) pick -= weights[op++];
+                            execute(op, rnd);
+                        }
+                        return null;
+                    }));
+                }
+                long last = 0;
+                while (!fs.stream().allMatch(Future::isDone)) {
+                    Thread.sleep(1000);
+                    long secs = (System.nanoTime() - t0) / 1_000_000_000L;
+                    if (secs / 5 > last / 5) {
+                        last = secs;
+                        System.out.printf("  %3ds  %,d ops%n", secs, completed());
+                    }
+                }
+                for (Future<?> f : fs) f.get();
+            } finally {
+                pool.shutdown();
+            }
+            double elapsed = (System.nanoTime() - t0) / 1e9;
+            
+            System.out.printf("%n%,d ops in %.1f s from %d clients: %,.0f ops/s%n", completed(), elapsed, clients, completed() / elapsed);
+            System.out.printf("%-10s %10s %9s %8s %10s %10s %10s %10s %10s%n", "op", "count", "declined", "errors", "ops/s", "p50 us", "p99 us", "p999 us", "max us");
+            for (int i = 0; i < OPS.length; i++) {
+                Metrics.Timer t = timers[i];
+                if (t.getCount() == 0) continue;
+                System.out.printf("%-10s %,10d %,9d %,8d %,10.0f %10.1f %10.1f %10.1f %10.1f%n", OPS[i], t.getCount(), declined[i].sum(), t.getErrors(),
+                        t.getCount() / elapsed, t.getP50Micros(), t.getP99Micros(), t.getP999Micros(), t.getMaxMicros());
+            }
+            if (retryPercent >= 0) {
+                System.out.printf("Idempotency keys on every posting; %,d retried, %,d retries with a different outcome%n", retried.sum(), retryMismatches.sum());
+                System.out.println(IdempotencyKeys.statsLine());
+            }
+            return checkConservation() && retryMismatches.sum() == 0;
+        }
+
+        long completed() {
+            long n = 0;
+            for (Metrics.Timer t : timers) n += t.getCount();
+            return n;
+        }
+
+        /** An account index: with hot > 0, half of all picks go to the first hot accounts. */
+        int pick(SplittableRandom rnd) {
+            return hot > 0 && rnd.nextBoolean() ? rnd.nextInt(Math.min(hot, users)) : rnd.nextInt(users);
+        }
+
+        void execute(int op, SplittableRandom rnd) {
+            int i = pick(rnd);
+            long amount = 1 + rnd.nextLong(maxAmount);
+            Metrics.Timer t = timers[op];
+            long start = System.nanoTime();
+            try {
+                boolean ok = true;
+                switch (OPS[op]) {
+                    case "login":
+                        ok = UserDAO.authenticate(emails[i], PASSWORD).error == null;
+                        break;
+                    case "balance":
+                        ok = BankService.balance(accIds[i]) != Ledger.NO_ACCOUNT;
+                        break;
+                    case "deposit":
+                        ok = deposit(accIds[i], amount, key(), rnd);
+                        if (ok) deposited.add(amount);
+                        break;
+                    case "withdraw":
+                        ok = withdraw(accIds[i], amount, key(), rnd);
+                        if (ok) withdrawn.add(amount);
+                        break;
+                    case "transfer":
+                        int j = pick(rnd);
+                        if (j == i) j = (i + 1) % users;
+                        ok = transfer(accIds[i], accIds[j], amount, key(), rnd);
+                        break;
+                    default:
+                        TransactionDAO.statement(accIds[i], null, null, null, 10);
+                        break;
+                }
+                if (!ok) declined[op].increment();
+            } catch (Exception e) {
+                t.error();
+                if (t.getErrors() <= 10) System.out.println(OPS[op] + " failed: " + e);
+            } finally {
+                t.record(System.nanoTime() - start);
+            }
+        }
+
+        private String key() {
+            return retryPercent < 0 ? null : "lt-" + keySeq.incrementAndGet();
+        }
+
+        /** Sends a keyed posting a second time, as a client would after a lost response; the outcome must not change. */
+        private boolean retry(boolean first, String key, SplittableRandom rnd, Callable<Boolean> again) throws Exception {
+            if (key == null || rnd.nextInt(100) >= retryPercent) return first;
+            retried.increment();
+            if (again.call() != first) retryMismatches.increment();
+            return first;
+        }
+
+        private boolean deposit(int acc, long amount, String key, SplittableRandom rnd) throws Exception {
+            return retry(BankService.deposit(acc, amount, key), key, rnd, () -> BankService.deposit(acc, amount, key));
+        }
+
+        private boolean withdraw(int acc, long amount, String key, SplittableRandom rnd) throws Exception {
+            return retry(BankService.withdraw(acc, amount, key), key, rnd, () -> BankService.withdraw(acc, amount, key));
+        }
+
+        private boolean transfer(int from, int to, long amount, String key, SplittableRandom rnd) throws Exception {
+            return retry(BankService.transfer(from, to, amount, key), key, rnd, () -> BankService.transfer(from, to, amount, key));
+        }
+
+        /** Ledger total, accounts table total and the expected total must all agree. */
+        boolean checkConservation() throws Exception {
+            ledger().flush();
+            long expected = initial * users + deposited.sum() - withdrawn.sum();
+            long inLedger = 0;
+            for (int accId : accIds) inLedger += BankService.balance(accId);
+            long inDb = 0, negative = 0;
+            for (int s = 0; s < Shards.count(); s++) {
+                try (PooledConnection c = getReadConnection(Shards.pool(s)); Statement st = c.createStatement();
+                     ResultSet rs = st.executeQuery("SELECT COALESCE(SUM(balance), 0), COUNT(CASE WHEN balance < 0 THEN 1 END) FROM accounts")) {
+                    rs.next();
+                    inDb += rs.getLong(1);
+                    negative += rs.getLong(2);
+                }
+            }
+            boolean ok = inLedger == expected && inDb == expected && negative == 0;
+            System.out.printf("%nMoney check: expected %s, ledger %s, database %s, negative balances %d -> %s%n",
+                    Money.format(expected), Money.format(inLedger), Money.format(inDb), negative, ok ? "OK" : "MISMATCH");
+            return ok;
+        }
+    }
+    
+    // ========== STARTUP PROFILE ==========
+    /**
+     * Timed breakdown of GUI start-up, printed once the login window is open and the database
+     * is ready. The UI thread and the db-worker record phases in parallel, so start offsets
+     * are from entering main and the phases overlap. -Dbank.startup.profile=false turns it off.
+     */
+    static final class Startup {
+        static final boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty("bank.startup.profile"));
+        private static final long T0 = System.nanoTime();
+        private static final List<String> lines = new ArrayList<>();   // guarded by Startup.class
+        private static boolean finished;
+        
+        /** Start of a phase; pass the result to end(). */
+        static long begin() {
+            return System.nanoTime();
+        }
+        
+        static void end(String phase, long begin) {
+            if (!ENABLED) return;
+            long now = System.nanoTime();
+            record(String.format("  %-32s %-18s %8.1f %8.1f", phase, Thread.currentThread().getName(),
+                (begin - T0) / 1e6, (now - begin) / 1e6));
+        }
+        
+        /** A point in time rather than a phase, e.g. the window appearing. */
+        static void mark(String event) {
+            if (!ENABLED) return;
+            record(String.format("  %-32s %-18s %8.1f", event, Thread.currentThread().getName(),
+                (System.nanoTime() - T0) / 1e6));
+        }
+        
+        private static synchronized void record(String line) {
+            if (!finished) lines.add(line);
+        }
+        
+        /** Prints the breakdown; later phases (opening a dashboard, say) are not recorded. */
+        static synchronized void finish() {
+            if (finished) return;
+            finished = true;
+            if (!ENABLED) return;
+            long sinceJvm = java.lang.management.ManagementFactory.getRuntimeMXBean().getUptime();
+            long sinceMain = (System.nanoTime() - T0) / 1_000_000;
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("Startup profile (ms; JVM start to main %d, main to ready %d)%n",
+                Math.max(0, sinceJvm - sinceMain), sinceMain));
+            sb.append(String.format("  %-32s %-18s %8s %8s%n", "phase", "thread", "start", "took"));
+            for (String l : lines) sb.append(l).append(System.lineSeparator());
+            System.out.print(sb);
+            lines.clear();
+        }
+    }
+    
+    // ========== METRICS ==========
+    /**
+     * Call counts, error counts and latency histograms for the DAOs, BankService and
+     * getConnection, published as JMX MBeans (bank:type=Latency,name=...) and appended to
+     * bank.metrics.log every bank.metrics.dumpSeconds.
+     *
+     * Recording is lock-free: one atomic increment into a log-linear histogram (32 sub-buckets
+     * per power of two, so any percentile is within about 3% of the true value), a LongAdder
+     * for the total and a max that is only CASed when it grows. -Dbank.metrics.enabled=false
+     * turns every timer into a plain call.
+     */
+    static final class Metrics {
+        static final boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty("bank.metrics.enabled"));
+        static final long DUMP_SECONDS = Long.getLong("bank.metrics.dumpSeconds", 60);
+        static final String LOG_FILE = System.getProperty("bank.metrics.log", "bank-metrics.log");
+
+        private static final Map<String, Timer> TIMERS = new ConcurrentSkipListMap<>();
+        private static ScheduledExecutorService dumper;
+
+        static final Timer GET_CONNECTION = timer("getConnection");
+        static final Timer GET_READ_CONNECTION = timer("getReadConnection");
+        /** Age of each reader's snapshot when it is released: from its read transaction's first SELECT. */
+        static final Timer READ_SNAPSHOT = timer("readSnapshot");
+        static final Timer USER_FIND_BY_EMAIL = timer("UserDAO.findByEmail");
+        static final Timer USER_CREATE = timer("UserDAO.createUser");
+        static final Timer USER_AUTHENTICATE = timer("UserDAO.authenticate");
+        static final Timer USER_VERIFY_PASSWORD = timer("UserDAO.verifyPassword");
+        static final Timer USER_SET_STATUS = timer("UserDAO.setStatus");
+        static final Timer USER_FIND_BY_ID = timer("UserDAO.findById");
+        static final Timer USER_SET_STATUS_BULK = timer("UserDAO.setStatusBulk");
+        static final Timer USER_COUNT = timer("UserDAO.countUsers");
+        static final Timer USER_BROWSE = timer("UserDAO.browse");
+        static final Timer USER_SEARCH = timer("UserDAO.search");
+        static final Timer ACCOUNT_CREATE = timer("AccountDAO.createAccountForUser");
+        static final Timer ACCOUNT_FIND_BY_ID = timer("AccountDAO.findById");
+        static final Timer ACCOUNT_FIND_BY_USER = timer("AccountDAO.findByUserId");
+        static final Timer ACCOUNT_PORTFOLIO = timer("AccountDAO.portfolio");
+        static final Timer TX_RECORD = timer("TransactionDAO.record");
+        static final Timer TX_STATEMENT = timer("TransactionDAO.statement");
+        static final Timer TX_BALANCE_AT = timer("TransactionDAO.balanceAt");
+        static final Timer SERVICE_BALANCE = timer("BankService.balance");
+        static final Timer SERVICE_DEPOSIT = timer("BankService.deposit");
+        static final Timer SERVICE_WITHDRAW = timer("BankService.withdraw");
+        static final Timer SERVICE_TRANSFER = timer("BankService.transfer");
+        static final Timer SERVICE_PORTFOLIO = timer("BankService.portfolio");
+        static final Timer IDEMPOTENCY_LOOKUP = timer("IdempotencyKeys.lookup");
+
+        /** JMX view of one timer; latencies in microseconds. */
+        public interface TimerMBean {
+            long getCount();
+            long getErrors();
+            double getMeanMicros();
+            double getP50Micros();
+            double getP99Micros();
+            double getP999Micros();
+            double getMaxMicros();
+            void reset();
+        }
+
+        interface Action {
+            void run() throws Exception;
+        }
+
+        static final class Timer implements TimerMBean {
+            // values below 64 ns get a bucket each; above that, 32 buckets per power of two
+            static final int SUB_BUCKETS = 32;
+            static final int BUCKETS = 64 + 57 * SUB_BUCKETS;
+
+            final String name;
+            private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+            private final LongAdder totalNanos = new LongAdder();
+            private final LongAdder errors = new LongAdder();
+            private final AtomicLong max = new AtomicLong();
+
+            Timer(String name) {
+                this.name = name;
+            }
+
+            long start() {
+                return ENABLED ? System.nanoTime() : 0;
+            }
+
+            void stop(long start) {
+                if (ENABLED) record(System.nanoTime() - start);
+            }
+
+            void error() {
+                errors.increment();
+            }
+
+            void record(long nanos) {
+                if (nanos < 0) nanos = 0;
+                buckets.incrementAndGet(bucket(nanos));
+                totalNanos.add(nanos);
+                long m = max.get();
+                while (nanos > m && !max.compareAndSet(m, nanos)) m = max.get();
+            }
+
+            static int bucket(long v) {
+                if (v < 64) return (int) v;
+                int shift = 63 - Long.numberOfLeadingZeros(v) - 5;
+                return 64 + (shift - 1) * SUB_BUCKETS + (int) ((v >>> shift) - SUB_BUCKETS);
+            }
+
+            /** Largest value that lands in bucket i. */
+            static long bucketMax(int i) {
+                if (i < 64) return i;
+                int shift = (i - 64) / SUB_BUCKETS + 1;
+                long sub = (i - 64) % SUB_BUCKETS + SUB_BUCKETS;
+                return ((sub + 1) << shift) - 1;
+            }
+
+            /** Upper bound of the bucket holding quantile q, in nanoseconds. */
+            long percentile(double q) {
+                long[] counts = new long[BUCKETS];
+                long total = 0;
+                for (int i = 0; i < BUCKETS; i++) total += counts[i] = buckets.get(i);
+                if (total == 0) return 0;
+                long rank = Math.max(1, (long) Math.ceil(q * total)), seen = 0;
+                for (int i = 0; i < BUCKETS; i++) {
+                    seen += counts[i];
+                    if (seen >= rank) return Math.min(bucketMax(i), max.get());
+                }
+                return max.get();
+            }
+
+            @Override
+            public long getCount() {
+                long n = 0;
+                for (int i = 0; i < BUCKETS; i++) n += buckets.get(i);
+                return n;
+            }
+
+            @Override public long getErrors() { return errors.sum(); }
+            @Override public double getMeanMicros() { long n = getCount(); return n == 0 ? 0 : totalNanos.sum() / 1e3 / n; }
+            @Override public double getP50Micros() { return percentile(0.50) / 1e3; }
+            @Override public double getP99Micros() { return percentile(0.99) / 1e3; }
+            @Override public double getP999Micros() { return percentile(0.999) / 1e3; }
+            @Override public double getMaxMicros() { return max.get() / 1e3; }
+
+            @Override
+            public void reset() {
+                for (int i = 0; i < BUCKETS; i++) buckets.set(i, 0);
+                totalNanos.reset();
+                errors.reset();
+                max.set(0);
+            }
+
+            String summary() {
+                return String.format("%s count=%d errors=%d mean=%.1fus p50=%.1fus p99=%.1fus p999=%.1fus max=%.1fus",
+                        name, getCount(), getErrors(), getMeanMicros(), getP50Micros(), getP99Micros(), getP999Micros(), getMaxMicros());
+            }
+        }
+
+        private static Timer timer(String name) {
+            Timer t = new Timer(name);
+            TIMERS.put(name, t);
+            try {
+                java.lang.management.ManagementFactory.getPlatformMBeanServer().registerMBean(
+                        new javax.management.StandardMBean(t, TimerMBean.class),
+                        new javax.management.ObjectName("bank:type=Latency,name=" + name));
+            } catch (javax.management.InstanceAlreadyExistsException ignored) {
+                // a second class loader in the same JVM (benchmarks, tests) keeps the first one's beans
+            } catch (Exception e) {
+                System.out.println("Could not register MBean for " + name + ": " + e.getMessage());
+            }
+            return t;
+        }
+
+        /** Runs body and records its latency against t; exceptions count as errors and are rethrown. */
+        static <T> T time(Timer t, Callable<T> body) throws Exception {
+            if (!ENABLED) return body.call();
+            long start = System.nanoTime();
+            try {
+                return body.call();
+            } catch (Exception | Error e) {
+                t.error();
+                throw e;
+            } finally {
+                t.record(System.nanoTime() - start);
+            }
+        }
+
+        static void run(Timer t, Action body) throws Exception {
+            time(t, () -> {
+                body.run();
+                return null;
+            });
+        }
+
+        /** One line per timer that has been used. */
+        static String report() {
+            StringBuilder sb = new StringBuilder();
+            for (Timer t : TIMERS.values()) {
+                if (t.getCount() > 0) sb.append(t.summary()).append('\n');
+            }
+            return sb.toString();
+        }
+
+        /** Appends report() to LOG_FILE every DUMP_SECONDS on a daemon thread; 0 disables it. */
+        static synchronized void schedule() {
+            if (dumper != null || DUMP_SECONDS <= 0 || !ENABLED) return;
+            dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "metrics-dump");
+                t.setDaemon(true);
+                return t;
+            });
+            dumper.scheduleAtFixedRate(Metrics::dump, DUMP_SECONDS, DUMP_SECONDS, TimeUnit.SECONDS);
+        }
+
+        static void dump() {
+            String report = report();
+            if (report.isEmpty()) return;
+            String stamp = java.time.LocalDateTime.now().format(java.time.format.DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+            try {
+                java.nio.file.Files.write(java.nio.file.Paths.get(LOG_FILE), ("# " + stamp + "\n" + report).getBytes(StandardCharsets.UTF_8),
+                        java.nio.file.StandardOpenOption.CREATE, java.nio.file.StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                System.out.println("Could not write " + LOG_FILE + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // ========== IDEMPOTENCY ==========
+    /**
+     * Client idempotency keys for deposits, withdrawals and transfers. A keyed posting writes
+     * (acc_id, key, request, outcome) to idempotency_keys in the same SQLite transaction and
+     * journal record as the money movement, in the source account's shard, so a retry after a
+     * timeout or a crash finds either both or neither. A repeat of the same request returns the
+     * first outcome; the same key with a different request is refused.
+     *
+     * Most requests are not repeats, so a Bloom filter of every live key sits in front of the
+     * table: a key it has never seen needs no database read at all. Keys expire after
+     * bank.idempotency.ttlHours. The filter has two generations that rotate every TTL (a key
+     * is looked for in both), and expired rows are purged in the background. A repeat that
+     * arrives while the first request is still committing waits for it via inflight.
+     */
+    static final class IdempotencyKeys {
+        static final long TTL_MS = TimeUnit.HOURS.toMillis(Long.getLong("bank.idempotency.ttlHours", 24));
+        static final long EXPECTED_KEYS = Long.getLong("bank.idempotency.expectedKeys", 1_000_000);
+        static final long PURGE_INTERVAL_MS = TimeUnit.MINUTES.toMillis(10);
+        static final int PURGE_CHUNK = 10_000;
+        static final int MAX_KEY_LENGTH = 255;
+        static final String INSERT_SQL = "INSERT OR IGNORE INTO idempotency_keys (acc_id, idem_key, op, to_acc, amount, ok, created_at) VALUES (?,?,?,?,?,?,?)";
+
+        private static volatile IdempotencyKeys instance;
+
+        /** A request that is still being applied; repeats wait on outcome. */
+        private static final class Pending {
+            final String op;
+            final int toAccId;
+            final long amount;
+            final CompletableFuture<Boolean> outcome = new CompletableFuture<>();
+            Pending(String op, int toAccId, long amount) { this.op = op; this.toAccId = toAccId; this.amount = amount; }
+        }
+
+        private final ConcurrentHashMap<String, Pending> inflight = new ConcurrentHashMap<>();
+        private volatile BloomFilter current, previous;
+        private final ScheduledExecutorService expiry;
+
+        // metrics
+        final LongAdder requests = new LongAdder();
+        final LongAdder skipped = new LongAdder();          // filter said "never seen": no lookup
+        final LongAdder lookups = new LongAdder();
+        final LongAdder falsePositives = new LongAdder();   // looked up, not there
+        final LongAdder replayed = new LongAdder();
+
+        private IdempotencyKeys() throws Exception {
+            current = new BloomFilter(EXPECTED_KEYS);
+            previous = new BloomFilter(EXPECTED_KEYS);
+            long since = System.currentTimeMillis() - TTL_MS, loaded = 0;
+            for (int s = 0; s < Shards.count(); s++) {
+                try (PooledConnection c = getReadConnection(Shards.pool(s))) {
+                    PreparedStatement p = c.prepare("SELECT acc_id, idem_key FROM idempotency_keys WHERE created_at >= ?");
+                    p.setLong(1, since);
+                    try (ResultSet rs = p.executeQuery()) {
+                        while (rs.next()) {
+                            current.add(rs.getInt(1), rs.getString(2));
+                            loaded++;
+                        }
+                    }
+                }
+            }
+            if (loaded > 0) System.out.println("Idempotency: " + loaded + " live keys loaded");
+            expiry = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "idempotency-expiry");
+                t.setDaemon(true);
+                return t;
+            });
+            expiry.scheduleAtFixedRate(this::rotate, TTL_MS, TTL_MS, TimeUnit.MILLISECONDS);
+            expiry.scheduleWithFixedDelay(this::purge, PURGE_INTERVAL_MS, PURGE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+
+        /** The key store for the current database, loaded on first use. */
+        static IdempotencyKeys get() throws Exception {
+            IdempotencyKeys k = instance;
+            if (k == null) {
+                synchronized (IdempotencyKeys.class) {
+                    k = instance;
+                    if (k == null) instance = k = new IdempotencyKeys();
+                }
+            }
+            return k;
+        }
+
+        /** Forgets the key store (the database changed). */
+        static synchronized void reset() {
+            IdempotencyKeys k = instance;
+            instance = null;
+            if (k != null) k.expiry.shutdownNow();
+        }
+
+        static void createTables(Statement stmt) throws SQLException {
+            stmt.execute("CREATE TABLE IF NOT EXISTS idempotency_keys (" +
+                "acc_id INTEGER NOT NULL, " +
+                "idem_key TEXT NOT NULL, " +
+                "op TEXT NOT NULL, " +
+                "to_acc INTEGER NOT NULL, " +
+                "amount INTEGER NOT NULL, " +
+                "ok INTEGER NOT NULL, " +
+                "created_at INTEGER NOT NULL, " +   // epoch millis
+                "PRIMARY KEY (acc_id, idem_key)) WITHOUT ROWID");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_idempotency_created ON idempotency_keys(created_at)");
+        }
+
+        static void bind(PreparedStatement p, int accId, String key, String op, int toAccId, long amount, boolean ok, long time) throws SQLException {
+            p.setInt(1, accId);
+            p.setString(2, key);
+            p.setString(3, op);
+            p.setInt(4, toAccId);
+            p.setLong(5, amount);
+            p.setInt(6, ok ? 1 : 0);
+            p.setLong(7, time);
+            p.addBatch();
+        }
+
+        /**
+         * Runs post (a ledger call made with this key) unless accId has already seen key, and
+         * returns the outcome either way. Throws IllegalArgumentException if key was used for a
+         * different request.
+         */
+        boolean execute(String op, int accId, int toAccId, long amount, String key, Callable<CompletableFuture<Boolean>> post) throws Exception {
+            if (key.isEmpty() || key.length() > MAX_KEY_LENGTH) throw new IllegalArgumentException("Idempotency key must be 1-" + MAX_KEY_LENGTH + " characters");
+            requests.increment();
+            String id = accId + ":" + key;
+            Pending mine = new Pending(op, toAccId, amount);
+            Pending first = inflight.putIfAbsent(id, mine);
+            if (first != null) {
+                replayed.increment();
+                requireSame(key, first.op, first.toAccId, first.amount, op, toAccId, amount);
+                return BankService.await(first.outcome);
+            }
+            try {
+                Boolean earlier = lookup(op, accId, toAccId, amount, key);
+                if (earlier != null) {
+                    mine.outcome.complete(earlier);
+                    return earlier;
+                }
+                current.add(accId, key);
+                boolean ok = BankService.await(post.call());
+                if (!ok) recordDeclined(op, accId, toAccId, amount, key);
+                mine.outcome.complete(ok);
+                return ok;
+            } catch (Exception e) {
+                mine.outcome.completeExceptionally(e);
+                throw e;
+            } finally {
+                inflight.remove(id, mine);
+            }
+        }
+
+        /** The stored outcome for key, or null if it has not been used (or has expired). */
+        private Boolean lookup(String op, int accId, int toAccId, long amount, String key) throws Exception {
+            if (!current.mightContain(accId, key) && !previous.mightContain(accId, key)) {
+                skipped.increment();
+                return null;
+            }
+            lookups.increment();
+            return Metrics.time(Metrics.IDEMPOTENCY_LOOKUP, () -> {
+                try (PooledConnection c = Shards.reader(accId)) {
+                    PreparedStatement p = c.prepare("SELECT op, to_acc, amount, ok FROM idempotency_keys WHERE acc_id = ? AND idem_key = ? AND created_at >= ?");
+                    p.setInt(1, accId);
+                    p.setString(2, key);
+                    p.setLong(3, System.currentTimeMillis() - TTL_MS);
+                    try (ResultSet rs = p.executeQuery()) {
+                        if (!rs.next()) {
+                            falsePositives.increment();
+                            return null;
+                        }
+                        requireSame(key, rs.getString(1), rs.getInt(2), rs.getLong(3), op, toAccId, amount);
+                        replayed.increment();
+                        return rs.getInt(4) != 0;
+                    }
+                }
+            });
+        }
+
+        private static void requireSame(String key, String op0, int to0, long amount0, String op, int toAccId, long amount) {
+            if (!op0.equals(op) || to0 != toAccId || amount0 != amount) {
+                throw new IllegalArgumentException("Idempotency key " + key + " was already used for a different request");
+            }
+        }
+
+        /** Declines move no money and so have no posting; their key row is written on its own. */
+        private static void recordDeclined(String op, int accId, int toAccId, long amount, String key) throws Exception {
+            try (PooledConnection c = getConnection(Shards.pool(Shards.of(accId)))) {
+                PreparedStatement p = c.prepare(INSERT_SQL);
+                bind(p, accId, key, op, toAccId, amount, false, System.currentTimeMillis());
+                p.executeBatch();
+            }
+        }
+
+        private void rotate() {
+            previous = current;
+            current = new BloomFilter(EXPECTED_KEYS);
+        }
+
+        private void purge() {
+            for (int s = 0; s < Shards.count(); s++) {
+                try {
+                    long removed = 0;
+                    for (int n; (n = purgeChunk(Shards.pool(s))) > 0; ) removed += n;
+                    if (removed > 0) System.out.println("Idempotency: purged " + removed + " expired keys from shard " + s);
+                } catch (Exception e) {
+                    System.out.println("Idempotency key purge failed: " + e.getMessage());
+                }
+            }
+        }
+
+        /** Deletes up to PURGE_CHUNK expired rows in one short write transaction. */
+        private static int purgeChunk(ConnectionPool from) throws Exception {
+            try (PooledConnection c = getConnection(from)) {
+                PreparedStatement p = c.prepare("DELETE FROM idempotency_keys WHERE (acc_id, idem_key) IN " +
+                        "(SELECT acc_id, idem_key FROM idempotency_keys WHERE created_at < ? ORDER BY created_at LIMIT ?)");
+                p.setLong(1, System.currentTimeMillis() - TTL_MS);
+                p.setInt(2, PURGE_CHUNK);
+                return p.executeUpdate();
+            }
+        }
+
+        /** Stats for /stats, or "" if no keyed request has been made yet. */
+        static String statsLine() {
+            IdempotencyKeys k = instance;
+            if (k == null) return "";
+            return String.format("idempotency requests=%d filterSkips=%d lookups=%d falsePositives=%d replayed=%d inflight=%d",
+                    k.requests.sum(), k.skipped.sum(), k.lookups.sum(), k.falsePositives.sum(), k.replayed.sum(), k.inflight.size());
+        }
+
+        /**
+         * A fixed-size Bloom filter over (accId, key), sized for about 1% false positives at
+         * the expected key count. Bits are set with a CAS on an AtomicLongArray, so adds and
+         * queries never lock.
+         */
+        static final class BloomFilter {
+            private static final int HASHES = 7;
+            private final AtomicLongArray bits;
+            private final long mask;
+
+            BloomFilter(long expected) {
+                // m = -n ln(p) / ln(2)^2 with p = 0.01, rounded up to a power of two
+                long m = (long) Math.ceil(Math.max(1, expected) * 9.6);
+                int words = (int) Math.min(1 << 30, Long.highestOneBit(Math.max(64, m) - 1) << 1 >>> 6);
+                bits = new AtomicLongArray(words);
+                mask = (long) words * 64 - 1;
+            }
+
+            void add(int accId, String key) {
+                long h = hash(accId, key);
+                int h1 = (int) h, h2 = (int) (h >>> 32);
+                for (int i = 0; i < HASHES; i++) {
+                    long bit = (h1 + (long) i * h2) & mask;
+                    int w = (int) (bit >>> 6);
+                    long b = 1L << bit;
+                    long old;
+                    while (((old = bits.get(w)) & b) == 0 && !bits.compareAndSet(w, old, old | b)) { }
+                }
+            }
+
+            boolean mightContain(int accId, String key) {
+                long h = hash(accId, key);
+                int h1 = (int) h, h2 = (int) (h >>> 32);
+                for (int i = 0; i < HASHES; i++) {
+                    long bit = (h1 + (long) i * h2) & mask;
+                    if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) return false;
+                }
+                return true;
+            }
+
+            /** 64-bit FNV-1a over the account id and the key's chars, then a murmur finalizer. */
+            private static long hash(int accId, String key) {
+                long h = 0xcbf29ce484222325L ^ accId;
+                for (int i = 0; i < key.length(); i++) {
+                    h ^= key.charAt(i);
+                    h *= 0x100000001b3L;
+                }
+                h ^= h >>> 33;
+                h *= 0xff51afd7ed558ccdL;
+                h ^= h >>> 33;
+                h *= 0xc4ceb9fe1a85ec53L;
+                h ^= h >>> 33;
+                return h;
+            }
+        }
+    }
+
+    // ========== VELOCITY RULES ==========
+    /**
+     * Pre-posting velocity and fan-out rules for withdrawals and transfers, checked before the
+     * ledger takes its locks. Per account it keeps sliding-window counters (postings, amount and
+     * distinct payees over the last minute, hour and day) in memory, never in transactions.
+     * Each window is a ring of BUCKETS buckets, and each bucket a long packing the bucket's epoch
+     * (high EPOCH_BITS) with its value, so an update is one CAS on an AtomicLongArray slot and a
+     * bucket left over from an older epoch simply reads as empty. Payees are a 40-bit bitmap of
+     * hashed destination ids per bucket, counted by linear counting, so a payee already paid in
+     * the window never adds to the count.
+     *
+     * A posting is counted before the rules look at it (so concurrent postings see each other)
+     * and taken back out if a rule or the balance check declines it. Rules are replaced as a
+     * whole at runtime with configure() or over JMX (bank:type=Velocity); with none installed
+     * nothing is counted and a check is one volatile read.
+     */
+    static final class Velocity {
+        static final int MINUTE = 0, HOUR = 1, DAY = 2;
+        static final String[] WINDOW_NAMES = {"minute", "hour", "day"};
+        static final int COUNT = 0, AMOUNT = 1, PAYEES = 2;
+        static final String[] METRIC_NAMES = {"count", "amount", "payees"};
+        static final int BUCKETS = 6;
+        /** Bucket length per window: the window is the current bucket plus the BUCKETS - 1 before it. */
+        static final long[] BUCKET_MS = {10_000L, 600_000L, 4 * 3_600_000L};
+
+        static final int EPOCH_BITS = 24;
+        static final int VALUE_BITS = 64 - EPOCH_BITS;
+        static final long VALUE_MASK = (1L << VALUE_BITS) - 1;
+        static final long EPOCH_MASK = (1L << EPOCH_BITS) - 1;
+
+        static final int SLOTS = WINDOW_NAMES.length * METRIC_NAMES.length * BUCKETS;   // per account
+        static final int PAGE_BITS = 10;
+        static final int PAGE_MASK = (1 << PAGE_BITS) - 1;
+
+        private static volatile Rule[] rules = parse(System.getProperty("bank.velocity.rules", ""));
+        private static volatile AtomicLongArray[] pages = new AtomicLongArray[0];
+        static final LongAdder checked = new LongAdder();
+        static final LongAdder declined = new LongAdder();
+
+        static {
+            try {
+                java.lang.management.ManagementFactory.getPlatformMBeanServer().registerMBean(
+                        new javax.management.StandardMBean(new Control(), VelocityMBean.class),
+                        new javax.management.ObjectName("bank:type=Velocity"));
+            } catch (javax.management.InstanceAlreadyExistsException ignored) {
+                // a second class loader in the same JVM keeps the first one's bean
+            } catch (Exception e) {
+                System.out.println("Could not register velocity MBean: " + e.getMessage());
+            }
+        }
+
+        private Velocity() { }
+
+        /**
+         * A pre-posting check. It runs after the posting has been counted, so the counters
+         * already include it. toAccId is -1 for a withdrawal. Must not block.
+         */
+        interface Rule {
+            boolean allows(int accId, int toAccId, long amount, long now);
+        }
+
+        /** "window.metric:max", e.g. hour.amount:5000 (major units) or day.payees:20. */
+        static final class Limit implements Rule {
+            final int window, metric;
+            final long max;
+            final LongAdder hits = new LongAdder();
+
+            Limit(String spec) {
+                String[] kv = spec.trim().split(":");
+                String[] wm = kv[0].trim().split("\\.");
+                if (kv.length != 2 || wm.length != 2) throw new IllegalArgumentException("Velocity rule must be window.metric:max: " + spec);
+                window = Arrays.asList(WINDOW_NAMES).indexOf(wm[0]);
+                metric = Arrays.asList(METRIC_NAMES).indexOf(wm[1]);
+                if (window < 0 || metric < 0) throw new IllegalArgumentException("Unknown velocity window or metric: " + spec);
+                max = metric == AMOUNT ? Money.parse(kv[1].trim()) : Long.parseLong(kv[1].trim());
+            }
+
+            @Override
+            public boolean allows(int accId, int toAccId, long amount, long now) {
+                if (metric == PAYEES && toAccId < 0) return true;
+                long v = metric == PAYEES ? payees(accId, window, now) : sum(accId, window, metric, now);
+                if (v <= max) return true;
+                hits.increment();
+                return false;
+            }
+
+            @Override
+            public String toString() {
+                return WINDOW_NAMES[window] + "." + METRIC_NAMES[metric] + ":" + (metric == AMOUNT ? Money.format(max) : Long.toString(max));
+            }
+        }
+
+        /** Replaces the installed rules with a comma-separated list of Limit specs; "" removes them all. */
+        static void configure(String spec) {
+            Rule[] next = parse(spec);
+            rules = next;
+            System.out.println("Velocity rules: " + (next.length == 0 ? "none" : describe()));
+        }
+
+        /** Replaces the installed rules, for rules that are not simple limits. */
+        static void install(Rule... next) {
+            rules = next.clone();
+        }
+
+        private static Rule[] parse(String spec) {
+            List<Rule> out = new ArrayList<>();
+            for (String s : spec.split(",")) {
+                if (!s.isBlank()) out.add(new Limit(s));
+            }
+            return out.toArray(new Rule[0]);
+        }
+
+        static String describe() {
+            StringJoiner j = new StringJoiner(",");
+            for (Rule r : rules) j.add(r.toString());
+            return j.toString();
+        }
+
+        /** Forgets every counter (the database changed); the rules stay. */
+        static synchronized void reset() {
+            pages = new AtomicLongArray[0];
+        }
+
+        /**
+         * Counts the posting and runs the rules; true if it may go ahead. A caller that is
+         * then declined for another reason hands the same now to release().
+         */
+        static boolean admit(int accId, int toAccId, long amount, long now) {
+            Rule[] rs = rules;
+            if (rs.length == 0) return true;
+            checked.increment();
+            AtomicLongArray pg = page(accId);
+            int base = (accId & PAGE_MASK) * SLOTS;
+            for (int w = 0; w < BUCKET_MS.length; w++) {
+                long epoch = now / BUCKET_MS[w];
+                int at = slot(base, w, ring(epoch));
+                add(pg, at + COUNT, epoch, 1);
+                add(pg, at + AMOUNT, epoch, amount);
+                if (toAccId >= 0) or(pg, at + PAYEES, epoch, payeeBit(toAccId));
+            }
+            for (Rule r : rs) {
+                if (!r.allows(accId, toAccId, amount, now)) {
+                    release(accId, amount, now);
+                    declined.increment();
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Takes back a posting admit() counted at now. The payee bit stays: an attempt to pay
+         * someone new still counts towards fan-out.
+         */
+        static void release(int accId, long amount, long now) {
+            if (rules.length == 0) return;
+            AtomicLongArray pg = page(accId);
+            int base = (accId & PAGE_MASK) * SLOTS;
+            for (int w = 0; w < BUCKET_MS.length; w++) {
+                long epoch = now / BUCKET_MS[w];
+                int at = slot(base, w, ring(epoch));
+                add(pg, at + COUNT, epoch, -1);
+                add(pg, at + AMOUNT, epoch, -amount);
+            }
+        }
+
+        /** Postings (COUNT) or cents (AMOUNT) of accId in the window ending now. */
+        static long sum(int accId, int window, int metric, long now) {
+            AtomicLongArray pg = page(accId);
+            int base = (accId & PAGE_MASK) * SLOTS;
+            long epoch = now / BUCKET_MS[window], total = 0;
+            for (int b = 0, r = ring(epoch); b < BUCKETS; b++, r = r == 0 ? BUCKETS - 1 : r - 1) {
+                long word = pg.get(slot(base, window, r) + metric);
+                if ((word >>> VALUE_BITS) == ((epoch - b) & EPOCH_MASK)) total += word & VALUE_MASK;
+            }
+            return total;
+        }
+
+        /** Estimated distinct payees of accId in the window ending now. */
+        static long payees(int accId, int window, long now) {
+            AtomicLongArray pg = page(accId);
+            int base = (accId & PAGE_MASK) * SLOTS;
+            long epoch = now / BUCKET_MS[window], bits = 0;
+            for (int b = 0, r = ring(epoch); b < BUCKETS; b++, r = r == 0 ? BUCKETS - 1 : r - 1) {
+                long word = pg.get(slot(base, window, r) + PAYEES);
+                if ((word >>> VALUE_BITS) == ((epoch - b) & EPOCH_MASK)) bits |= word & VALUE_MASK;
+            }
+            int empty = VALUE_BITS - Long.bitCount(bits);
+            if (empty == 0) return Long.MAX_VALUE;   // saturated: more than the bitmap can tell apart
+            return Math.round(-VALUE_BITS * Math.log((double) empty / VALUE_BITS));
+        }
+
+        /** Position of an epoch's bucket in its window's ring. */
+        private static int ring(long epoch) {
+            return (int) (epoch % BUCKETS);
+        }
+
+        /** First slot of a bucket; its three metrics sit side by side, one cache line per window. */
+        private static int slot(int base, int window, int bucket) {
+            return base + (window * BUCKETS + bucket) * METRIC_NAMES.length;
+        }
+
+        private static long payeeBit(int toAccId) {
+            int h = toAccId * 0x9E3779B9;
+            return 1L << Integer.remainderUnsigned(h ^ (h >>> 16), VALUE_BITS);
+        }
+
+        /** Adds delta to a bucket, starting it over if it still holds an older epoch; saturates at 0 and VALUE_MASK. */
+        private static void add(AtomicLongArray pg, int i, long epoch, long delta) {
+            long tag = (epoch & EPOCH_MASK) << VALUE_BITS;
+            while (true) {
+                long word = pg.get(i);
+                boolean current = (word & ~VALUE_MASK) == tag;
+                if (!current && delta < 0) return;   // the bucket moved on; nothing left to take back
+                long v = Math.max(0, Math.min(VALUE_MASK, (current ? word & VALUE_MASK : 0) + delta));
+                if (pg.compareAndSet(i, word, tag | v)) return;
+            }
+        }
+
+        private static void or(AtomicLongArray pg, int i, long epoch, long bits) {
+            long tag = (epoch & EPOCH_MASK) << VALUE_BITS;
+            while (true) {
+                long word = pg.get(i);
+                long v = ((word & ~VALUE_MASK) == tag ? word & VALUE_MASK : 0) | bits;
+                if ((tag | v) == word || pg.compareAndSet(i, word, tag | v)) return;
+            }
+        }
+
+        /** Counters for accId's page of accounts, allocated on first use; pages never move. */
+        private static AtomicLongArray page(int accId) {
+            int pi = accId >>> PAGE_BITS;
+            AtomicLongArray[] ps = pages;
+            if (pi < ps.length && ps[pi] != null) return ps[pi];
+            synchronized (Velocity.class) {
+                ps = pages;
+                if (pi >= ps.length) ps = Arrays.copyOf(ps, pi + 1);
+                if (ps[pi] == null) ps[pi] = new AtomicLongArray(SLOTS << PAGE_BITS);
+                pages = ps;
+                return ps[pi];
+            }
+        }
+
+        static String statsLine() {
+            StringBuilder hits = new StringBuilder();
+            for (Rule r : rules) {
+                if (r instanceof Limit) hits.append(' ').append(r).append('=').append(((Limit) r).hits.sum());
+            }
+            return "velocity checked=" + checked.sum() + " declined=" + declined.sum() + hits;
+        }
+
+        public interface VelocityMBean {
+            String getRules();
+            void setRules(String spec);
+            long getChecked();
+            long getDeclined();
+            String getStats();
+        }
+
+        static final class Control implements VelocityMBean {
+            @Override public String getRules() { return describe(); }
+            @Override public void setRules(String spec) { configure(spec); }
+            @Override public long getChecked() { return checked.sum(); }
+            @Override public long getDeclined() { return declined.sum(); }
+            @Override public String getStats() { return statsLine(); }
+        }
+    }
+    
+    // ========== HTTP SERVER MODE ==========
+    /** Minimal JSON for the server: flat objects of strings, numbers and booleans. */
+    static class Json {
+        static Map<String, String> parseObject(String s) throws ApiException {
+            Map<String, String> out = new HashMap<>();
+            int i = skipWs(s, 0);
+            if (s.isEmpty() || i >= s.length()) return out;
+            if (s.charAt(i) != '{') throw new IllegalArgumentException("Expected JSON object");
+            i = skipWs(s, i + 1);
+            if (i < s.length() && s.charAt(i) == '}') return out;
+            while (i < s.length()) {
+                StringBuilder key = new StringBuilder();
+                i = readString(s, i, key);
+                i = skipWs(s, i);
+                if (i >= s.length() || s.charAt(i) != ':') throw new IllegalArgumentException("Expected ':'");
+                i = skipWs(s, i + 1);
+                StringBuilder val = new StringBuilder();
+                if (i < s.length() && s.charAt(i) == '"') {
+                    i = readString(s, i, val);
+                } else {
+                    while (i < s.length() && ",} \t\r\n".indexOf(s.charAt(i)) < 0) val.append(s.charAt(i++));
+                    if ("null".contentEquals(val)) val = null;
+                }
+                out.put(key.toString(), val == null ? null : val.toString());
+                i = skipWs(s, i);
+                if (i < s.length() && s.charAt(i) == ',') { i = skipWs(s, i + 1); continue; }
+                if (i < s.length() && s.charAt(i) == '}') return out;
+                throw new IllegalArgumentException("Expected ',' or '}'");
+            }
+            throw new IllegalArgumentException("Unterminated JSON object");
+        }
+
+        private static int skipWs(String s, int i) {
+            while (i < s.length() && Character.isWhitespace(s.charAt(i))) i++;
+            return i;
+        }
+
+        private static int readString(String s, int i, StringBuilder out) throws ApiException {
+            if (i >= s.length() || s.charAt(i) != '"') throw new IllegalArgumentException("Expected string");
+            for (i++; i < s.length(); i++) {
+                char ch = s.charAt(i);
+                if (ch == '"') return i + 1;
+                if (ch == '\\' && i + 1 < s.length()) {
+                    char e = s.charAt(++i);
+                    switch (e) {
+                        case 'n': out.append('\n'); break;
+                        case 't': out.append('\t'); break;
+                        case 'r': out.append('\r'); break;
+                        case 'b': out.append('\b'); break;
+                        case 'f': out.append('\f'); break;
+                        case 'u':
+                            if (i + 5 > s.length()) throw new ApiException(400, "Truncated \\u escape");
+                            int cp = 0;
+                            for (int k = i + 1; k < i + 5; k++) {
+                                int d = Character.digit(s.charAt(k), 16);
+                                if (d < 0) throw new ApiException(400, "Bad \\u escape");
+                                cp = cp << 4 | d;
+                            }
+                            out.append((char) cp);
+                            i += 4;
+                            break;
+                        default: out.append(e);
+                    }
+                } else {
+                    out.append(ch);
+                }
+            }
+            throw new IllegalArgumentException("Unterminated string");
+        }
+
+        static String quote(String v) {
+            if (v == null) return "null";
+            StringBuilder sb = new StringBuilder(v.length() + 2).append('"');
+            for (int i = 0; i < v.length(); i++) {
+                char ch = v.charAt(i);
+                switch (ch) {
+                    case '"': sb.append("\\\""); break;
+                    case '\\': sb.append("\\\\"); break;
+                    case '\n': sb.append("\\n"); break;
+                    case '\r': sb.append("\\r"); break;
+                    case '\t': sb.append("\\t"); break;
+                    default:
+                        if (ch < 0x20) sb.append(String.format("\\u%04x", (int) ch));
+                        else sb.append(ch);
+                }
+            }
+            return sb.append('"').toString();
+        }
+    }
+
+    /** A logged-in API client. */
+    static class Session {
+        final String token;
+        final int userId;
+        final String role;
+        final int accId;
+        volatile long lastSeen;
+        Session(String token, int userId, String role, int accId) {
+            this.token = token; this.userId = userId; this.role = role; this.accId = accId;
+            this.lastSeen = System.currentTimeMillis();
+        }
+    }
+
+    /** Thrown by route handlers to send an error status with a JSON message. */
+    static class ApiException extends Exception {
+        private static final long serialVersionUID = 1L;
+        final int status;
+        ApiException(int status, String message) { super(message); this.status = status; }
+    }
+
+    /**
+     * Headless HTTP/JSON front end over BankService and the DAOs, started with --server.
+     * Uses the JDK's built-in HttpServer (HTTP/1.1 keep-alive) and a virtual-thread-per-request
+     * executor where available. Clients log in once and send "Authorization: Bearer <token>".
+     *
+     *   POST /login                        {"email","password"}
+     *   GET  /portfolio
+     *   POST /accounts                     {"type"}
+     *   GET  /accounts/{id}/balance?at=
+     *   POST /accounts/{id}/deposit        {"amount"}
+     *   POST /accounts/{id}/withdraw       {"amount"}
+     *   POST /accounts/{id}/transfer       {"toAccId","amount"}
+     *   GET  /accounts/{id}/statement?limit=&from=&to=&afterTime=&afterId=
+     *   GET  /admin/users?q=&after=&limit=  (admin)
+     *   POST /admin/users/{id}/approve     (admin)
+     *   POST /admin/users/{id}/freeze      (admin)
+     *   GET  /stats
+     */
+    static class BankServer {
+        static final int DEFAULT_PORT = Integer.getInteger("bank.server.port", 8080);
+        static final int THREADS = Integer.getInteger("bank.server.threads", 256);
+        static final int BACKLOG = Integer.getInteger("bank.server.backlog", 4096);
+        static final long SESSION_IDLE_MS = Long.getLong("bank.server.sessionIdleMs", 30 * 60 * 1000L);
+        static final int MAX_PAGE = 500;
+
+        private final com.sun.net.httpserver.HttpServer http;
+        private final ExecutorService executor;
+        private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+        private final SecureRandom random = new SecureRandom();
+        private final ScheduledExecutorService expiry;
+        private final java.util.function.IntConsumer onDeactivated = this::endSessions;
+
+        BankServer(int port) throws IOException {
+            http = com.sun.net.httpserver.HttpServer.create(new java.net.InetSocketAddress(port), BACKLOG);
+            executor = newWorkerExecutor("http-worker", THREADS, 0);
+            http.setExecutor(executor);
+            http.createContext("/", this::handle);
+            expiry = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "session-expiry");
+                t.setDaemon(true);
+                return t;
+            });
+            long sweepMs = Math.max(1000, Math.min(SESSION_IDLE_MS, 60_000));
+            expiry.scheduleWithFixedDelay(this::expireSessions, sweepMs, sweepMs, TimeUnit.MILLISECONDS);
+            UserDAO.deactivated.add(onDeactivated);
+        }
+
+        void start() {
+            http.start();
+            System.out.println("Bank server listening on http://localhost:" + http.getAddress().getPort() + "/");
+        }
+
+        void stop() {
+            http.stop(1);
+            executor.shutdown();
+            expiry.shutdownNow();
+            UserDAO.deactivated.remove(onDeactivated);
+        }
+
+        /** Logs out every session of userId, whichever screen or endpoint froze them. */
+        private void endSessions(int userId) {
+            List<Session> gone = new ArrayList<>();
+            sessions.values().removeIf(s -> {
+                if (s.userId != userId) return false;
+                gone.add(s);
+                return true;
+            });
+            ended(gone);
+        }
+
+        /** Removes sessions idle past SESSION_IDLE_MS, including ones whose client never came back. */
+        private void expireSessions() {
+            long now = System.currentTimeMillis();
+            List<Session> gone = new ArrayList<>();
+            sessions.values().removeIf(s -> {
+                if (now - s.lastSeen <= SESSION_IDLE_MS) return false;
+                gone.add(s);
+                return true;
+            });
+            ended(gone);
+        }
+
+        /** Ends the cached state of users left with no session after gone were removed. */
+        private void ended(List<Session> gone) {
+            if (gone.isEmpty()) return;
+            Set<Integer> live = new HashSet<>();
+            for (Session s : sessions.values()) live.add(s.userId);
+            for (Session s : gone) {
+                if (live.add(s.userId)) BankService.endSession(s.userId);
+            }
+        }
+
+        private void handle(com.sun.net.httpserver.HttpExchange ex) throws IOException {
+            int status = 200;
+            String body;
+            try {
+                body = route(ex);
+            } catch (ApiException e) {
+                status = e.status;
+                body = "{\"error\":" + Json.quote(e.getMessage()) + "}";
+            } catch (IllegalArgumentException e) {
+                status = 400;
+                body = "{\"error\":" + Json.quote(e.getMessage()) + "}";
+            } catch (Exception e) {
+                e.printStackTrace();
+                status = 500;
+                body = "{\"error\":" + Json.quote(e.getClass().getSimpleName()) + "}";
+            }
+            byte[] out = body.getBytes(StandardCharsets.UTF_8);
+            ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            ex.sendResponseHeaders(status, out.length);
+            try (java.io.OutputStream os = ex.getResponseBody()) {
+                os.write(out);
+            }
+        }
+
+        private String route(com.sun.net.httpserver.HttpExchange ex) throws Exception {
+            String method = ex.getRequestMethod();
+            String[] parts = ex.getRequestURI().getPath().split("/");
+            Map<String, String> body = readBody(ex);
+
+            if (parts.length == 2 && "login".equals(parts[1])) {
+                requireMethod(method, "POST");
+                return login(body);
+            }
+            Session session = authenticate(ex);
+            if (parts.length == 2 && "stats".equals(parts[1])) {
+                requireMethod(method, "GET");
+                if (!"ADMIN".equals(session.role)) throw new ApiException(403, "Admin only");
+                return stats();
+            }
+            if (parts.length == 2 && "portfolio".equals(parts[1])) {
+                requireMethod(method, "GET");
+                return portfolio(session.userId);
+            }
+            if (parts.length == 2 && "accounts".equals(parts[1])) {
+                requireMethod(method, "POST");
+                String type = body.getOrDefault("type", AccountDAO.TYPES[0]).trim().toUpperCase();
+                if (!Arrays.asList(AccountDAO.TYPES).contains(type)) {
+                    throw new ApiException(400, "type must be one of " + String.join(", ", AccountDAO.TYPES));
+                }
+                return "{\"accId\":" + BankService.openAccount(session.userId, type) + ",\"type\":" + Json.quote(type) + "}";
+            }
+            if (parts.length == 4 && "accounts".equals(parts[1])) {
+                int accId = parseId(parts[2]);
+                authorizeAccount(session, accId);
+                switch (parts[3]) {
+                    case "balance":
+                        requireMethod(method, "GET");
+                        String at = queryParams(ex.getRequestURI().getRawQuery()).get("at");
+                        if (at != null) return balanceAt(accId, at);
+                        long balance = BankService.balance(accId);
+                        if (balance == Ledger.NO_ACCOUNT) throw new ApiException(404, "Account not found");
+                        return Money.formatTo(new StringBuilder(48).append("{\"accId\":").append(accId).append(",\"balance\":"), balance)
+                                .append('}').toString();
+                    case "deposit":
+                        requireMethod(method, "POST");
+                        return posted(BankService.deposit(accId, amount(body), idempotencyKey(ex)));
+                    case "withdraw":
+                        requireMethod(method, "POST");
+                        return posted(BankService.withdraw(accId, amount(body), idempotencyKey(ex)));
+                    case "transfer":
+                        requireMethod(method, "POST");
+                        return posted(BankService.transfer(accId, parseId(required(body, "toAccId")), amount(body), idempotencyKey(ex)));
+                    case "statement":
+                        requireMethod(method, "GET");
+                        return statement(accId, queryParams(ex.getRequestURI().getRawQuery()));
+                    default:
+                        break;
+                }
+            }
+            if (parts.length == 3 && "admin".equals(parts[1]) && "users".equals(parts[2])) {
+                requireMethod(method, "GET");
+                if (!"ADMIN".equals(session.role)) throw new ApiException(403, "Admin only");
+                return searchUsers(queryParams(ex.getRequestURI().getRawQuery()));
+            }
+            if (parts.length == 5 && "admin".equals(parts[1]) && "users".equals(parts[2])) {
+                requireMethod(method, "POST");
+                if (!"ADMIN".equals(session.role)) throw new ApiException(403, "Admin only");
+                int userId = parseId(parts[3]);
+                if (UserDAO.findById(userId) == null) throw new ApiException(404, "User not found");
+                switch (parts[4]) {
+                    case "approve":
+                        UserDAO.setStatus(userId, "ACTIVE");
+                        return "{\"userId\":" + userId + ",\"status\":\"ACTIVE\"}";
+                    case "freeze":
+                        UserDAO.setStatus(userId, "FROZEN");
+                        return "{\"userId\":" + userId + ",\"status\":\"FROZEN\"}";
+                    default:
+                        break;
+                }
+            }
+            throw new ApiException(404, "No such endpoint");
+        }
+
+        private String login(Map<String, String> body) throws Exception {
+            String email = required(body, "email").trim();
+            String password = required(body, "password");
+            LoginResult r = UserDAO.authenticate(email, password);
+            if (r.error != null) {
+                throw new ApiException(UserDAO.BAD_CREDENTIALS.equals(r.error) ? 401 : 403, r.error);
+            }
+            User u = r.user;
+            Account acc = r.account;
+            byte[] raw = new byte[24];
+            random.nextBytes(raw);
+            Session s = new Session(bytesToHex(raw), u.userId, u.role, acc == null ? -1 : acc.accId);
+            sessions.put(s.token, s);
+            return "{\"token\":" + Json.quote(s.token) + ",\"userId\":" + u.userId + ",\"name\":" + Json.quote(u.name)
+                    + ",\"role\":" + Json.quote(u.role) + ",\"accId\":" + s.accId + "}";
+        }
+
+        private Session authenticate(com.sun.net.httpserver.HttpExchange ex) throws ApiException {
+            String auth = ex.getRequestHeaders().getFirst("Authorization");
+            if (auth == null || !auth.startsWith("Bearer ")) throw new ApiException(401, "Missing bearer token");
+            Session s = sessions.get(auth.substring(7).trim());
+            long now = System.currentTimeMillis();
+            if (s == null || now - s.lastSeen > SESSION_IDLE_MS) {
+                if (s != null && sessions.remove(s.token) != null) ended(List.of(s));
+                throw new ApiException(401, "Session expired");
+            }
+            s.lastSeen = now;
+            return s;
+        }
+
+        private static void authorizeAccount(Session s, int accId) throws Exception {
+            if (s.accId == accId || "ADMIN".equals(s.role)) return;
+            Account acc = AccountDAO.findById(accId);
+            if (acc == null) throw new ApiException(404, "Account not found");
+            if (acc.userId != s.userId) throw new ApiException(403, "Not your account");
+        }
+
+        /** at is a UTC "yyyy-MM-dd HH:mm:ss" (or ISO 'T') time, or a date meaning the end of that day. */
+        private static String balanceAt(int accId, String at) throws Exception {
+            String time = at.trim().replace('T', ' ');
+            if (time.length() == 10) time += " 23:59:59";
+            try {
+                java.time.LocalDateTime.parse(time, java.time.format.DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+            } catch (java.time.format.DateTimeParseException e) {
+                throw new ApiException(400, "at must be yyyy-MM-dd or yyyy-MM-dd HH:mm:ss");
+            }
+            Long balance = TransactionDAO.balanceAt(accId, time);
+            if (balance == null) throw new ApiException(404, "Account not found at " + time);
+            return Money.formatTo(new StringBuilder(80).append("{\"accId\":").append(accId).append(",\"at\":").append(Json.quote(time))
+                    .append(",\"balance\":"), balance).append('}').toString();
+        }
+
+        private static String portfolio(int userId) throws Exception {
+            Portfolio p = BankService.portfolio(userId);
+            StringBuilder sb = new StringBuilder(128 + p.accounts.size() * 64 + p.recent.size() * 128);
+            Money.formatTo(sb.append("{\"userId\":").append(userId).append(",\"total\":"), p.total).append(",\"accounts\":[");
+            for (int i = 0; i < p.accounts.size(); i++) {
+                Account a = p.accounts.get(i);
+                if (i > 0) sb.append(',');
+                sb.append("{\"accId\":").append(a.accId).append(",\"type\":").append(Json.quote(a.accType)).append(",\"balance\":");
+                Money.formatTo(sb, a.balance).append('}');
+            }
+            sb.append("],\"recent\":[");
+            for (int i = 0; i < p.recent.size(); i++) {
+                Transaction t = p.recent.get(i);
+                if (i > 0) sb.append(',');
+                sb.append("{\"txId\":").append(t.txId)
+                  .append(",\"accId\":").append(t.accId)
+                  .append(",\"time\":").append(Json.quote(t.time))
+                  .append(",\"type\":").append(Json.quote(t.type))
+                  .append(",\"amount\":");
+                Money.formatTo(sb, t.amount)
+                  .append(",\"description\":").append(Json.quote(t.description))
+                  .append('}');
+            }
+            return sb.append("]}").toString();
+        }
+
+        private static String searchUsers(Map<String, String> q) throws Exception {
+            String text = q.getOrDefault("q", "");
+            if (!UserSearch.searchable(text)) {
+                throw new ApiException(400, "q needs " + UserSearch.MIN_PREFIX + "+ characters of a name, email or phone, or a user id");
+            }
+            int limit = q.containsKey("limit") ? Integer.parseInt(q.get("limit")) : UserSearch.PAGE_SIZE;
+            limit = Math.max(1, Math.min(MAX_PAGE, limit));
+            int after = q.containsKey("after") ? parseId(q.get("after")) : 0;
+            List<User> users = UserDAO.search(text, after, limit + 1);
+            boolean more = users.size() > limit;
+            if (more) users = users.subList(0, limit);
+            StringBuilder sb = new StringBuilder(32 + users.size() * 128).append("{\"users\":[");
+            for (int i = 0; i < users.size(); i++) {
+                User u = users.get(i);
+                if (i > 0) sb.append(',');
+                sb.append("{\"userId\":").append(u.userId)
+                  .append(",\"name\":").append(Json.quote(u.name))
+                  .append(",\"email\":").append(Json.quote(u.email))
+                  .append(",\"phone\":").append(Json.quote(u.phone))
+                  .append(",\"role\":").append(Json.quote(u.role))
+                  .append(",\"status\":").append(Json.quote(u.status))
+                  .append('}');
+            }
+            sb.append("],\"next\":");
+            if (more) sb.append("{\"after\":").append(users.get(users.size() - 1).userId).append('}');
+            else sb.append("null");
+            return sb.append('}').toString();
+        }
+
+        private static String statement(int accId, Map<String, String> q) throws Exception {
+            int limit = q.containsKey("limit") ? Integer.parseInt(q.get("limit")) : 10;
+            limit = Math.max(1, Math.min(MAX_PAGE, limit));
+            StatementCursor after = null;
+            if (q.containsKey("afterTime") && q.containsKey("afterId")) {
+                after = new StatementCursor(q.get("afterTime"), Long.parseLong(q.get("afterId")));
+            }
+            StatementPage page = TransactionDAO.statement(accId, q.get("from"), q.get("to"), after, limit);
+            StringBuilder sb = new StringBuilder(64 + page.rows.size() * 128).append("{\"accId\":").append(accId).append(",\"rows\":[");
+            for (int i = 0; i < page.rows.size(); i++) {
+                Transaction t = page.rows.get(i);
+                if (i > 0) sb.append(',');
+                sb.append("{\"txId\":").append(t.txId)
+                  .append(",\"time\":").append(Json.quote(t.time))
+                  .append(",\"type\":").append(Json.quote(t.type))
+                  .append(",\"amount\":");
+                Money.formatTo(sb, t.amount)
+                  .append(",\"description\":").append(Json.quote(t.description))
+                  .append(",\"targetAccId\":").append(t.targetAccId)
+                  .append('}');
+            }
+            sb.append("],\"next\":");
+            if (page.next == null) sb.append("null");
+            else sb.append("{\"afterTime\":").append(Json.quote(page.next.time)).append(",\"afterId\":").append(page.next.txId).append('}');
+            return sb.append('}').toString();
+        }
+
+        private String stats() {
+            Ledger l = ledger;
+            StringBuilder pools = new StringBuilder(), journals = new StringBuilder();
+            for (int s = 0; s < Shards.count(); s++) pools.append(s == 0 ? "" : "\n").append(Shards.pool(s).stats());
+            for (Journal j : Journal.all()) journals.append(journals.length() == 0 ? "" : "\n").append(j.stats());
+            return "{\"pool\":" + Json.quote(pools.toString()) + ",\"groupCommit\":" + Json.quote(l == null ? "" : l.writerStats())
+                    + ",\"journal\":" + Json.quote(journals.toString())
+                    + ",\"latency\":" + Json.quote(Metrics.report())
+                    + ",\"userCache\":" + Json.quote(UserCache.stats())
+                    + ",\"idempotency\":" + Json.quote(IdempotencyKeys.statsLine())
+                    + ",\"velocity\":" + Json.quote(Velocity.statsLine()) + ",\"sessions\":" + sessions.size()
+                    + ",\"cachedTotals\":" + (l == null ? 0 : l.cachedTotals()) + "}";
+        }
+
+        private static String posted(boolean ok) throws ApiException {
+            if (!ok) throw new ApiException(422, "Posting rejected");
+            return "{\"ok\":true}";
+        }
+
+        /** Amounts travel as decimal major units ("12.34" or 12.34) and are parsed exactly to cents. */
+        private static long amount(Map<String, String> body) throws ApiException {
+            try {
+                return Money.parse(required(body, "amount").trim());
+            } catch (NumberFormatException | ArithmeticException e) {
+                throw new ApiException(400, "Invalid amount");
+            }
+        }
+
+        /** The optional Idempotency-Key request header; retries that send the same key are not applied twice. */
+        private static String idempotencyKey(com.sun.net.httpserver.HttpExchange ex) throws ApiException {
+            String key = ex.getRequestHeaders().getFirst("Idempotency-Key");
+            if (key == null) return null;
+            key = key.trim();
+            if (key.isEmpty() || key.length() > IdempotencyKeys.MAX_KEY_LENGTH) throw new ApiException(400, "Invalid Idempotency-Key");
+            return key;
+        }
+
+        private static int parseId(String s) throws ApiException {
+            try {
+                return Integer.parseInt(s);
+            } catch (NumberFormatException e) {
+                throw new ApiException(400, "Invalid id: " + s);
+            }
+        }
+
+        private static String required(Map<String, String> body, String key) throws ApiException {
+            String v = body.get(key);
+            if (v == null) throw new ApiException(400, "Missing field: " + key);
+            return v;
+        }
+
+        private static void requireMethod(String actual, String expected) throws ApiException {
+            if (!expected.equals(actual)) throw new ApiException(405, "Use " + expected);
+        }
+
+        /** Always drains the body so the connection can be reused. */
+        private static Map<String, String> readBody(com.sun.net.httpserver.HttpExchange ex) throws IOException, ApiException {
+            try (java.io.InputStream in = ex.getRequestBody()) {
+                byte[] data = in.readAllBytes();
+                if (data.length == 0) return Collections.emptyMap();
+                return Json.parseObject(new String(data, StandardCharsets.UTF_8));
+            }
+        }
+
+        private static Map<String, String> queryParams(String raw) {
+            Map<String, String> q = new HashMap<>();
+            if (raw == null || raw.isEmpty()) return q;
+            for (String pair : raw.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq <= 0) continue;
+                q.put(java.net.URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                      java.net.URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+            return q;
+        }
+    }
+
+    // ========== SHARDS ==========
+    /**
+     * Optional hash-sharded storage. With -Dbank.shards=N (N > 1) accounts and their
+     * transactions are spread over N SQLite files: shard 0 is the main database, which also
+     * keeps users and everything else, and shard s > 0 is <db>.shard<s>. Each file has its own
+     * connection pool, group commit writer and journal, so postings on different shards commit
+     * in parallel instead of queueing for SQLite's one write lock.
+     *
+     * A user's accounts all live in shard userId mod N, and acc_ids there are allocated as
+     * s+1, s+1+N, s+1+2N..., so any account's shard is (accId - 1) mod N without a lookup.
+     * The count is fixed the first time a database is initialized (shard_config); a database
+     * that already has accounts stays in one file.
+     */
+    static final class Shards {
+        static final int REQUESTED = Integer.getInteger("bank.shards", 1);
+
+        /** Pools by shard, [0] being the main pool; null until open(), which means one file. */
+        private static volatile ConnectionPool[] pools;
+
+        static int count() {
+            ConnectionPool[] ps = pools;
+            return ps == null ? 1 : ps.length;
+        }
+
+        static ConnectionPool pool(int shard) {
+            ConnectionPool[] ps = pools;
+            return ps == null ? BankSystemSQLite.pool() : ps[shard];
+        }
+
+        static int of(int accId) {
+            int n = count();
+            return n == 1 ? 0 : Math.floorMod(accId - 1, n);
+        }
+
+        /** The shard a user's accounts are created in. */
+        static int forUser(int userId) {
+            int n = count();
+            return n == 1 ? 0 : Math.floorMod(userId, n);
+        }
+
+        /** A read connection to accId's shard. */
+        static PooledConnection reader(int accId) throws Exception {
+            return getReadConnection(pool(of(accId)));
+        }
+
+        /** Reads (or on a new database, records) the shard count and opens the shard files. */
+        static synchronized void open() throws Exception {
+            if (pools != null && pools[0] == BankSystemSQLite.pool()) return;
+            int n;
+            try (PooledConnection c = getConnection(); Statement st = c.createStatement()) {
+                st.execute("CREATE TABLE IF NOT EXISTS shard_config (id INTEGER PRIMARY KEY CHECK (id = 0), shards INTEGER NOT NULL)");
+                try (ResultSet rs = st.executeQuery("SELECT shards FROM shard_config WHERE id = 0")) {
+                    n = rs.next() ? rs.getInt(1) : 0;
+                }
+                if (n == 0) {
+                    n = Math.max(1, REQUESTED);
+                    if (n > 1) {
+                        try (ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM accounts")) {
+                            if (rs.next() && rs.getLong(1) > 0) {
+                                System.out.println("This database already keeps its accounts in one file; ignoring -Dbank.shards=" + REQUESTED);
+                                n = 1;
+                            }
+                        }
+                    }
+                    st.executeUpdate("INSERT INTO shard_config (id, shards) VALUES (0, " + n + ")");
+                } else if (System.getProperty("bank.shards") != null && n != REQUESTED) {
+                    System.out.println("This database was created with " + n + " shard(s); ignoring -Dbank.shards=" + REQUESTED);
+                }
+                if (n > 1) TransferCoordinator.createTables(st);
+            }
+            ConnectionPool[] ps = new ConnectionPool[n];
+            ps[0] = BankSystemSQLite.pool();
+            for (int s = 1; s < n; s++) {
+                ps[s] = new ConnectionPool(BankSystemSQLite.pool().url + ".shard" + s, WRITER_CONNECTIONS, POOL_SIZE);
+                try (PooledConnection c = getConnection(ps[s]); Statement st = c.createStatement()) {
+                    createTables(st);
+                    RunningBalances.upgrade(c, false);
+                    addBalanceCheck(c);
+                }
+            }
+            pools = ps;
+            if (n > 1) System.out.println("Storage sharded over " + n + " database files");
+        }
+
+        /** Account and transaction tables of a shard file. Users stay in the main file, so no user FK. */
+        static void createTables(Statement stmt) throws SQLException {
+            stmt.execute("CREATE TABLE IF NOT EXISTS accounts (" +
+                "acc_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "user_id INTEGER NOT NULL, " +
+                "acc_type TEXT DEFAULT 'SAVINGS', " +
+                "balance INTEGER DEFAULT 0 " + BALANCE_CHECK + ", " +
+                "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS transactions (" +
+                "tx_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "acc_id INTEGER NOT NULL, " +
+                "tx_type TEXT NOT NULL, " +
+                "amount INTEGER NOT NULL, " +
+                "tx_time TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+                "description TEXT, " +
+                "target_acc_id INTEGER, " +
+                "balance_after INTEGER, " +
+                "FOREIGN KEY(acc_id) REFERENCES accounts(acc_id))");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_transactions_acc_time ON transactions(acc_id, tx_time)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_accounts_user ON accounts(user_id)");
+            RunningBalances.createTables(stmt);
+            Archive.createTables(stmt);
+        }
+
+        /** Closes the shard files' pools (the database changed); the main pool belongs to useDatabase. */
+        static synchronized void reset() {
+            ConnectionPool[] ps = pools;
+            pools = null;
+            if (ps == null) return;
+            for (int s = 1; s < ps.length; s++) ps[s].close();
+        }
+    }
+
+    /**
+     * Two-phase commit for transfers between shards. The ledger has already checked the funds
+     * and moved the money in memory under both accounts' locks, which is both shards voting
+     * yes; the decision is made durable by logging the transfer in xfer_log in the main file,
+     * on a connection with synchronous=FULL. Each shard's writer then commits its leg (a DEBIT
+     * or CREDIT journal record plus the xid in that file's xfer_legs) with its normal batch,
+     * but never before the log entry is durable. Once both legs are in, the entry is deleted.
+     *
+     * recover() runs at startup, after the shard journals have been replayed: every transfer
+     * still in the log gets whichever legs its shards are missing, so a debit never survives
+     * without its credit. A transfer that never reached the log has no committed leg and was
+     * never acknowledged, so it did not happen. xfer_legs rows older than every transfer still
+     * in the log are pruned now and then.
+     *
+     * At run time, a log write that still fails after MAX_ATTEMPTS fails its transfers: the
+     * ledger takes them back and their legs are dropped unwritten. A leg its writer gives up on
+     * once the transfer is logged is handed back here and finished the way recover() does it.
+     */
+    static class TransferCoordinator {
+        static final String CREATE_LEGS = "CREATE TABLE IF NOT EXISTS xfer_legs (xid INTEGER PRIMARY KEY)";
+        static final String LEG_SQL = "INSERT INTO xfer_legs (xid) VALUES (?)";
+        static final String LOG_SQL = "INSERT INTO xfer_log (xid, from_acc, to_acc, amount, idem_key) VALUES (?,?,?,?,?)";
+        static final int BATCH_SIZE = 1024;
+        static final long PRUNE_INTERVAL_MS = 10_000;
+        static final long RETRY_INTERVAL_MS = 1_000;
+        static final int MAX_ATTEMPTS = GroupCommitWriter.MAX_ATTEMPTS;
+
+        private final Ledger ledger;
+        private final LinkedBlockingQueue<Posting> intents = new LinkedBlockingQueue<>();
+        private final ConcurrentLinkedQueue<Long> finished = new ConcurrentLinkedQueue<>();
+        /** xids handed out whose log entry has not been deleted yet. */
+        private final ConcurrentSkipListSet<Long> outstanding = new ConcurrentSkipListSet<>();
+        /** Legs of logged transfers that their shard's writer could not commit. */
+        private final ConcurrentLinkedQueue<Leg> stuck = new ConcurrentLinkedQueue<>();
+        private final AtomicLong nextXid;
+        /** Its own connection to the main file, so FULL sync does not slow anyone else down. */
+        private final ConnectionPool logPool = new ConnectionPool(pool().url, 1, 0);
+        private final Thread thread;
+        private volatile boolean running = true;
+        private long lastPrune = System.currentTimeMillis();
+        private long lastRetry;
+
+        // metrics
+        final LongAdder logged = new LongAdder();
+        final LongAdder batches = new LongAdder();
+        final LongAdder commitNanos = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+
+        /** One leg of a transfer: the posting and the shard it goes to. */
+        private static final class Leg {
+            final Posting p;
+            final int shard;
+            Leg(Posting p, int shard) { this.p = p; this.shard = shard; }
+        }
+
+        TransferCoordinator(Ledger ledger) throws Exception {
+            this.ledger = ledger;
+            long max = 0;
+            try (PooledConnection c = getConnection(); ResultSet rs = c.prepare("SELECT COALESCE(MAX(xid), 0) FROM xfer_log").executeQuery()) {
+                if (rs.next()) max = rs.getLong(1);
+            }
+            for (int s = 0; s < Shards.count(); s++) {
+                try (PooledConnection c = getConnection(Shards.pool(s)); ResultSet rs = c.prepare("SELECT COALESCE(MAX(xid), 0) FROM xfer_legs").executeQuery()) {
+                    if (rs.next()) max = Math.max(max, rs.getLong(1));
+                }
+            }
+            nextXid = new AtomicLong(max);
+            thread = new Thread(this::run, "transfer-coordinator");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        static void createTables(Statement stmt) throws SQLException {
+            stmt.execute("CREATE TABLE IF NOT EXISTS xfer_log (" +
+                "xid INTEGER PRIMARY KEY, " +
+                "from_acc INTEGER NOT NULL, " +
+                "to_acc INTEGER NOT NULL, " +
+                "amount INTEGER NOT NULL, " +
+                "idem_key TEXT, " +
+                "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+            stmt.execute(CREATE_LEGS);
+        }
+
+        /** Called under the ledger locks: assigns p an xid and queues its log entry. */
+        void log(Posting p) {
+            p.xid = nextXid.incrementAndGet();
+            p.logged = new CompletableFuture<>();
+            p.openLegs = new AtomicInteger(2);
+            p.coordinator = this;
+            outstanding.add(p.xid);
+            intents.add(p);
+        }
+
+        /**
+         * Makes p a logged transfer whose entry the caller writes itself (batch import logs a
+         * chunk together with its checkpoint) and whose legs it commits; p.committed() then
+         * finishes it as usual. The entry must be written before any leg.
+         */
+        void reserve(Posting p) {
+            p.xid = nextXid.incrementAndGet();
+            p.logged = CompletableFuture.completedFuture(null);
+            p.openLegs = new AtomicInteger(Shards.of(p.accId) == Shards.of(p.toAccId) ? 1 : 2);
+            p.coordinator = this;
+            outstanding.add(p.xid);
+        }
+
+        /** A reserved transfer whose entry never committed; it did not happen. */
+        void abandon(Posting p) {
+            outstanding.remove(p.xid);
+        }
+
+        static void bindIntent(PreparedStatement ins, Posting p) throws SQLException {
+            ins.setLong(1, p.xid);
+            ins.setInt(2, p.accId);
+            ins.setInt(3, p.toAccId);
+            ins.setLong(4, p.amount);
+            ins.setString(5, p.key);
+        }
+
+        /** Both legs of xid are committed; its log entry can go. */
+        void done(long xid) {
+            finished.add(xid);
+        }
+
+        /** shard's writer could not commit its leg of p; it is retried here until it goes in. */
+        void retryLeg(Posting p, int shard) {
+            System.out.println("Leg of cross-shard transfer " + p.xid + " in shard " + shard + " handed to the coordinator");
+            stuck.add(new Leg(p, shard));
+        }
+
+        private void run() {
+            List<Posting> batch = new ArrayList<>(BATCH_SIZE);
+            List<Long> done = new ArrayList<>(BATCH_SIZE);
+            while (running || !intents.isEmpty() || !finished.isEmpty()) {
+                try {
+                    Posting first = finished.isEmpty() ? intents.poll(100, TimeUnit.MILLISECONDS) : intents.poll();
+                    if (first != null) {
+                        batch.add(first);
+                        intents.drainTo(batch, BATCH_SIZE - 1);
+                    }
+                } catch (InterruptedException ignored) {
+                    // fall through and write whatever has been collected
+                }
+                retryStuck();
+                for (Long x; done.size() < BATCH_SIZE && (x = finished.poll()) != null; ) done.add(x);
+                if (!batch.isEmpty() || !done.isEmpty()) {
+                    Exception ex = writeWithRetry(batch, done);
+                    if (ex == null) {
+                        for (Posting p : batch) p.logged.complete(null);
+                        outstanding.removeAll(done);
+                    } else {
+                        for (Posting p : batch) fail(p, ex);
+                        finished.addAll(done);
+                    }
+                    batch.clear();
+                    done.clear();
+                }
+                prune();
+            }
+            if (!stuck.isEmpty()) System.out.println(stuck.size() + " cross-shard transfer legs left for recovery at the next start");
+            logPool.close();
+        }
+
+        /** Writes the entries, trying up to MAX_ATTEMPTS times; returns the last failure, or null once they commit. */
+        private Exception writeWithRetry(List<Posting> batch, List<Long> done) {
+            for (int attempt = 1; ; attempt++) {
+                long start = System.nanoTime();
+                try {
+                    write(batch, done);
+                    batches.increment();
+                    logged.add(batch.size());
+                    commitNanos.add(System.nanoTime() - start);
+                    return null;
+                } catch (Exception ex) {
+                    failures.increment();
+                    System.out.println("Transfer log write of " + batch.size() + " entries failed (attempt " + attempt + "/" + MAX_ATTEMPTS + "): " + ex.getMessage());
+                    if (attempt >= MAX_ATTEMPTS) return ex;
+                    try {
+                        Thread.sleep(Math.min(1000, 10L * attempt));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return ex;
+                    }
+                }
+            }
+        }
+
+        /** p never reached the log, so neither leg can commit: the ledger takes it back and its writers drop it. */
+        private void fail(Posting p, Exception cause) {
+            rejected.increment();
+            try {
+                ledger.undo(p);
+            } catch (Exception e) {
+                System.out.println("Could not take back failed transfer " + p.xid + ": " + e.getMessage());
+            }
+            outstanding.remove(p.xid);
+            p.durable.completeExceptionally(new SQLException("The transfer could not be saved and was not applied", cause));
+            p.logged.completeExceptionally(cause);
+        }
+
+        /** Commits the stuck legs through the same path recover() uses; those that fail again wait for the next round. */
+        private void retryStuck() {
+            long now = System.currentTimeMillis();
+            if (stuck.isEmpty() || now - lastRetry < RETRY_INTERVAL_MS) return;
+            lastRetry = now;
+            for (Iterator<Leg> it = stuck.iterator(); it.hasNext(); ) {
+                Leg l = it.next();
+                if (!l.p.logged.isDone()) continue;
+                if (l.p.logged.isCompletedExceptionally()) {
+                    it.remove();   // the transfer failed and was taken back
+                    continue;
+                }
+                try {
+                    applyMissingLeg(l.p, l.shard, null);
+                    it.remove();
+                    l.p.committed();
+                } catch (Exception e) {
+                    System.out.println("Retrying leg of cross-shard transfer " + l.p.xid + " in shard " + l.shard + " failed: " + e.getMessage());
+                }
+            }
+        }
+
+        private void write(List<Posting> batch, List<Long> done) throws Exception {
+            try (PooledConnection c = getConnection(logPool)) {
+                if (Journal.SYNC) c.createStatement().execute("PRAGMA synchronous=FULL");
+                PreparedStatement ins = c.prepare(LOG_SQL);
+                PreparedStatement del = c.prepare("DELETE FROM xfer_log WHERE xid = ?");
+                c.setAutoCommit(false);
+                try {
+                    for (Posting p : batch) {
+                        bindIntent(ins, p);
+                        ins.addBatch();
+                    }
+                    for (long xid : done) {
+                        del.setLong(1, xid);
+                        del.addBatch();
+                    }
+                    ins.executeBatch();
+                    del.executeBatch();
+                    c.commit();
+                } catch (Exception e) {
+                    c.rollback();
+                    throw e;
+                } finally {
+                    ins.clearBatch();
+                    del.clearBatch();
+                }
+            }
+        }
+
+        /**
+         * Drops xfer_legs rows below every transfer still outstanding. Runs on the coordinator
+         * thread between log writes, so no new entry (and hence no new leg) can commit while it
+         * decides what is safe to drop.
+         */
+        private void prune() {
+            long now = System.currentTimeMillis();
+            if (now - lastPrune < PRUNE_INTERVAL_MS) return;
+            lastPrune = now;
+            long below = nextXid.get() + 1;
+            if (!outstanding.isEmpty()) below = Math.min(below, outstanding.first());
+            for (int s = 0; s < Shards.count(); s++) {
+                try (PooledConnection c = getConnection(Shards.pool(s))) {
+                    PreparedStatement p = c.prepare("DELETE FROM xfer_legs WHERE xid < ?");
+                    p.setLong(1, below);
+                    p.executeUpdate();
+                } catch (Exception e) {
+                    System.out.println("Pruning transfer legs in shard " + s + " failed: " + e.getMessage());
+                }
+            }
+        }
+
+        /** Writes out the remaining log entries and deletions, then stops. */
+        void shutdown() {
+            running = false;
+            try {
+                thread.join(10_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /** Completes every transfer left in the log by a crash; see the class comment. */
+        static void recover() throws Exception {
+            if (Shards.count() == 1) return;
+            List<Posting> pending = new ArrayList<>();
+            List<String> times = new ArrayList<>();
+            try (PooledConnection c = getConnection();
+                 ResultSet rs = c.prepare("SELECT xid, from_acc, to_acc, amount, created_at, idem_key FROM xfer_log ORDER BY xid").executeQuery()) {
+                while (rs.next()) {
+                    Posting p = new Posting("TRANSFER", rs.getInt(2), rs.getInt(3), rs.getLong(4));
+                    p.xid = rs.getLong(1);
+                    p.key = rs.getString(6);
+                    pending.add(p);
+                    times.add(rs.getString(5));
+                }
+            }
+            if (pending.isEmpty()) return;
+            int applied = 0;
+            for (int i = 0; i < pending.size(); i++) {
+                Posting p = pending.get(i);
+                if (applyMissingLeg(p, Shards.of(p.accId), times.get(i))) applied++;
+                if (applyMissingLeg(p, Shards.of(p.toAccId), times.get(i))) applied++;
+            }
+            try (PooledConnection c = getConnection()) {
+                PreparedStatement del = c.prepare("DELETE FROM xfer_log WHERE xid <= ?");
+                del.setLong(1, pending.get(pending.size() - 1).xid);
+                del.executeUpdate();
+            }
+            System.out.println("Transfer recovery: finished " + pending.size() + " cross-shard transfers, re-applied " + applied + " legs");
+        }
+
+        /** Commits p's leg in shard unless that file already has it; returns whether it did. time null means now. */
+        private static boolean applyMissingLeg(Posting p, int shard, String time) throws Exception {
+            try (PooledConnection c = getConnection(Shards.pool(shard))) {
+                PreparedStatement q = c.prepare("SELECT 1 FROM xfer_legs WHERE xid = ?");
+                q.setLong(1, p.xid);
+                try (ResultSet rs = q.executeQuery()) {
+                    if (rs.next()) return false;
+                }
+                Journal.Record r = Journal.Record.of(p, shard);
+                PreparedStatement ins = c.prepare(time == null ? TransactionDAO.INSERT_SQL : TransactionDAO.INSERT_AT_SQL);
+                PreparedStatement legs = c.prepare(LEG_SQL);
+                PreparedStatement keys = c.prepare(IdempotencyKeys.INSERT_SQL);
+                DeltaMap deltas = new DeltaMap(4);
+                try {
+                    withoutBalanceCheck(c, () -> Journal.commit(c, () -> {
+                        r.addRows(ins, legs, keys, new RunningBalances(c, deltas), time);
+                        AccountDAO.applyDeltas(c, deltas);
+                        ins.executeBatch();
+                        legs.executeBatch();
+                        keys.executeBatch();
+                        return Collections.singletonList(r);
+                    }));
+                } finally {
+                    ins.clearBatch();
+                    legs.clearBatch();
+                    keys.clearBatch();
+                }
+                return true;
+            }
+        }
+
+        String stats() {
+            long b = batches.sum();
+            return String.format("transferLog logged=%d batches=%d avgBatch=%.1f avgCommit=%.3fms failures=%d rejected=%d outstanding=%d stuckLegs=%d",
+                    logged.sum(), b, b == 0 ? 0.0 : (double) logged.sum() / b, b == 0 ? 0.0 : commitNanos.sum() / 1e6 / b,
+                    failures.sum(), rejected.sum(), outstanding.size(), stuck.size());
+        }
+    }
+
+    // ========== JOURNAL ==========
+    /**
+     * Write-ahead event journal of every balance change: postings from the group commit writer,
+     * batch import transfers and account openings. Records go to preallocated, memory-mapped
+     * segment files (<db>.journal/journal-<first seq>.log) as [length][crc32][payload] and are
+     * forced to disk before the SQLite transaction that applies them commits. Each of those
+     * transactions also stores the record's seq in journal_state, and commit() holds one lock
+     * across append and commit, so journal order is commit order and SQLite always knows how
+     * far it has applied the journal.
+     *
+     * Snapshots (snapshot-<seq>.snap) hold every balance as of a journal seq. They are read from
+     * SQLite in one read transaction, so the seq and the balances always agree. On open, any
+     * journal tail SQLite has not applied is replayed into it, and the ledger starts from the
+     * newest snapshot plus the records after it. Startup cost follows the snapshot interval, not
+     * the length of history.
+     */
+    static class Journal {
+        static final long SEGMENT_BYTES = Long.getLong("bank.journal.segmentMb", 64) << 20;
+        static final boolean SYNC = !"false".equalsIgnoreCase(System.getProperty("bank.journal.sync"));
+        static final long SNAPSHOT_EVERY = Long.getLong("bank.journal.snapshotEvery", 100_000);
+        static final int SNAPSHOTS_KEPT = 2;
+        static final int SNAPSHOT_MAGIC = 0x424B534E;   // "BKSN"
+        static final int VERSION = 1;
+        /** DEBIT and CREDIT are the two legs of a cross-shard transfer, one in each shard's journal. */
+        static final String[] TYPES = {"OPEN", "DEPOSIT", "WITHDRAW", "TRANSFER", "DEBIT", "CREDIT", "INTEREST"};
+
+        /** One journal per database file (shard), keyed by its pool. */
+        private static final Map<ConnectionPool, Journal> OPEN = new ConcurrentHashMap<>();
+        private static final ExecutorService SNAPSHOTTER = newWorkerExecutor("journal-snapshot", 1, 1);
+
+        /** Guards appends and the SQLite commits that follow them. */
+        final Object lock = new Object();
+        final ConnectionPool pool;
+        final java.nio.file.Path dir;
+        private java.nio.file.Path segPath;
+        private java.nio.MappedByteBuffer seg;
+        private long nextSeq = 1;
+        private volatile long lastSnapshotSeq = -1;
+        private final AtomicBoolean snapshotting = new AtomicBoolean();
+        /** Set when verify() finds SQLite out of line with the journal; no snapshot may capture that state. */
+        private volatile boolean diverged;
+
+        // metrics
+        final LongAdder records = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder forces = new LongAdder();
+        final LongAdder forceNanos = new LongAdder();
+
+        private Journal(ConnectionPool pool) {
+            this.pool = pool;
+            this.dir = dbSidecar(pool, ".journal");
+        }
+
+        /**
+         * One journaled balance change. For OPEN, toAccId carries the owning user_id; for DEBIT
+         * and CREDIT, accId is this shard's account, toAccId the other side and xid the transfer.
+         */
+        static class Record {
+            long seq;
+            final long time;       // epoch millis
+            final String type;     // one of TYPES
+            final int accId, toAccId;   // INTEREST: toAccId is the run date as yyyymmdd
+            final long amount;     // cents
+            final String description;   // null for the default wording
+            long xid;              // DEBIT/CREDIT only
+            String key;            // idempotency key; only on the source account's record
+
+            Record(long seq, long time, String type, int accId, int toAccId, long amount, String description) {
+                this.seq = seq; this.time = time; this.type = type; this.accId = accId;
+                this.toAccId = toAccId; this.amount = amount; this.description = description;
+            }
+
+            /**
+             * The record shard writes for p: the whole posting, or its leg of a cross-shard
+             * transfer. A logged transfer within one shard (batch import) is one record with its xid.
+             */
+            static Record of(Posting p, int shard) {
+                Record r;
+                if (p.xid == 0 || Shards.of(p.accId) == Shards.of(p.toAccId)) {
+                    r = new Record(0, System.currentTimeMillis(), p.type, p.accId, p.toAccId, p.amount, p.description);
+                } else {
+                    r = Shards.of(p.accId) == shard
+                            ? new Record(0, System.currentTimeMillis(), "DEBIT", p.accId, p.toAccId, p.amount, p.description)
+                            : new Record(0, System.currentTimeMillis(), "CREDIT", p.toAccId, p.accId, p.amount, null);
+                }
+                r.xid = p.xid;
+                if (!"CREDIT".equals(r.type)) r.key = p.key;
+                return r;
+            }
+
+            static Record transfer(int from, int to, long amount, String description) {
+                return new Record(0, System.currentTimeMillis(), "TRANSFER", from, to, amount, description);
+            }
+
+            static Record interest(int accId, long amount, int runDate) {
+                return new Record(0, System.currentTimeMillis(), "INTEREST", accId, runDate, amount, null);
+            }
+
+            /** The account type rides in the description. */
+            static Record open(int accId, int userId, String accType, long balance) {
+                return new Record(0, System.currentTimeMillis(), "OPEN", accId, userId, balance, accType);
+            }
+
+            /** Type of the account an OPEN record created; records from before types were kept are savings. */
+            String accType() {
+                return description == null ? AccountDAO.TYPES[0] : description;
+            }
+
+            byte[] encode() {
+                byte[] desc = description == null ? new byte[0] : description.getBytes(StandardCharsets.UTF_8);
+                byte[] k = key == null ? null : key.getBytes(StandardCharsets.UTF_8);
+                // optional tail: xid (also written, as 0, when only a key follows), then the key
+                java.nio.ByteBuffer b = java.nio.ByteBuffer.allocate(35 + desc.length
+                        + (xid != 0 || k != null ? 8 : 0) + (k != null ? 2 + k.length : 0));
+                b.putLong(seq).putLong(time).put((byte) Arrays.asList(TYPES).indexOf(type))
+                 .putInt(accId).putInt(toAccId).putLong(amount).putShort((short) desc.length).put(desc);
+                if (xid != 0 || k != null) b.putLong(xid);
+                if (k != null) b.putShort((short) k.length).put(k);
+                return b.array();
+            }
+
+            static Record decode(java.nio.ByteBuffer b) {
+                long seq = b.getLong(), time = b.getLong();
+                String type = TYPES[b.get()];
+                int accId = b.getInt(), toAccId = b.getInt();
+                long amount = b.getLong();
+                byte[] desc = new byte[b.getShort() & 0xFFFF];
+                b.get(desc);
+                Record r = new Record(seq, time, type, accId, toAccId, amount, desc.length == 0 ? null : new String(desc, StandardCharsets.UTF_8));
+                if (b.remaining() >= 8) r.xid = b.getLong();
+                if (b.remaining() >= 2) {
+                    byte[] k = new byte[b.getShort() & 0xFFFF];
+                    b.get(k);
+                    r.key = new String(k, StandardCharsets.UTF_8);
+                }
+                return r;
+            }
+
+            /**
+             * Adds this record's transaction rows to ins and its balance changes to balances. When
+             * time is non-null ins is TransactionDAO.INSERT_AT_SQL and the rows keep that time.
+             * A transfer leg also adds its xid to legs (TransferCoordinator.LEG_SQL), and a keyed
+             * posting its key to keys (IdempotencyKeys.INSERT_SQL); either may only be null where
+             * no such record can occur.
+             */
+            void addRows(PreparedStatement ins, PreparedStatement legs, PreparedStatement keys, RunningBalances balances, String time) throws SQLException {
+                if (xid != 0) {
+                    legs.setLong(1, xid);
+                    legs.addBatch();
+                }
+                if (key != null) IdempotencyKeys.bind(keys, accId, key, "DEBIT".equals(type) ? "TRANSFER" : type, toAccId, amount, true, this.time);
+                switch (type) {
+                    case "OPEN":
+                        return;
+                    case "DEPOSIT":
+                        row(ins, accId, "DEPOSIT", description == null ? "Deposit" : description, null, balances.add(accId, amount), time);
+                        return;
+                    case "WITHDRAW":
+                        row(ins, accId, "WITHDRAW", description == null ? "Withdraw" : description, null, balances.add(accId, -amount), time);
+                        return;
+                    case "DEBIT":
+                        row(ins, accId, "TRANSFER", description == null ? "Transfer to " + toAccId : description, toAccId, balances.add(accId, -amount), time);
+                        return;
+                    case "CREDIT":
+                        row(ins, accId, "DEPOSIT", "Transfer from " + toAccId, toAccId, balances.add(accId, amount), time);
+                        return;
+                    case "INTEREST":
+                        row(ins, accId, "INTEREST", description == null ? "Interest for " + InterestJob.format(toAccId) : description, null,
+                            balances.add(accId, amount), time);
+                        return;
+                    default:
+                        row(ins, accId, "TRANSFER", description == null ? "Transfer to " + toAccId : description, toAccId, balances.add(accId, -amount), time);
+                        row(ins, toAccId, "DEPOSIT", "Transfer from " + accId, accId, balances.add(toAccId, amount), time);
+                }
+            }
+
+            private void row(PreparedStatement ins, int acc, String rowType, String desc, Integer target, long balanceAfter, String time) throws SQLException {
+                TransactionDAO.bind(ins, acc, rowType, amount, desc, target, balanceAfter);
+                if (time != null) ins.setString(7, time);
+                ins.addBatch();
+            }
+
+            /** Applies this record to an in-memory ledger that is being rebuilt. */
+            void replayInto(Ledger l) {
+                switch (type) {
+                    case "OPEN":
+                        l.register(accId, amount);
+                        return;
+                    case "DEPOSIT":
+                        l.replay(accId, amount);
+                        return;
+                    case "WITHDRAW":
+                    case "DEBIT":
+                        l.replay(accId, -amount);
+                        return;
+                    case "CREDIT":
+                    case "INTEREST":
+                        l.replay(accId, amount);
+                        return;
+                    default:
+                        l.replay(accId, -amount);
+                        l.replay(toAccId, amount);
+                }
+            }
+        }
+
+        interface RecordAction {
+            void accept(Record r) throws Exception;
+        }
+
+        // ----- opening and recovery -----
+
+        /** Every open journal, main file first. */
+        static List<Journal> all() {
+            List<Journal> out = new ArrayList<>();
+            for (int s = 0; s < Shards.count(); s++) {
+                Journal j = OPEN.get(Shards.pool(s));
+                if (j != null) out.add(j);
+            }
+            return out;
+        }
+
+        /** Opens the journal for the current database, recovering SQLite from it if needed. */
+        static Journal open() throws Exception {
+            return open(pool());
+        }
+
+        /** Opens the journal of the database behind p, recovering that file from it if needed. */
+        static Journal open(ConnectionPool p) throws Exception {
+            return open(p, null);
+        }
+
+        /**
+         * Like open(c.owner), for a caller already holding the writer connection c: start-up
+         * work runs on c instead of waiting for a second writer the pool may not have.
+         */
+        static Journal open(PooledConnection c) throws Exception {
+            return open(c.owner, c);
+        }
+
+        private static Journal open(ConnectionPool p, PooledConnection held) throws Exception {
+            Journal j = OPEN.get(p);
+            if (j != null) return j;
+            synchronized (OPEN) {
+                j = OPEN.get(p);
+                if (j == null) {
+                    j = new Journal(p);
+                    j.start(held);
+                    OPEN.put(p, j);
+                }
+                return j;
+            }
+        }
+
+        /** Forgets the open journals (the database changed). */
+        static void reset() {
+            synchronized (OPEN) {
+                OPEN.clear();
+            }
+        }
+
+        private void start(PooledConnection held) throws Exception {
+            java.nio.file.Files.createDirectories(dir);
+            PooledConnection c = held != null ? held : getConnection(pool);
+            try (Statement st = c.createStatement()) {
+                st.execute("CREATE TABLE IF NOT EXISTS journal_state (id INTEGER PRIMARY KEY CHECK (id = 0), seq INTEGER NOT NULL)");
+                st.execute("INSERT OR IGNORE INTO journal_state (id, seq) VALUES (0, 0)");
+                st.execute(TransferCoordinator.CREATE_LEGS);
+                IdempotencyKeys.createTables(st);
+                InterestJob.createTables(st);
+            } finally {
+                if (c != held) c.close();
+            }
+            long applied = appliedSeq();
+            List<java.nio.file.Path> segs = files("journal-", ".log");
+            if (segs.isEmpty()) {
+                nextSeq = applied + 1;
+                openSegment(segmentPath(nextSeq));
+            } else {
+                java.nio.file.Path last = segs.get(segs.size() - 1);
+                openSegment(last);
+                nextSeq = seqOf(last);
+                int end = 0;
+                java.nio.ByteBuffer b = seg.duplicate();
+                while (true) {
+                    Record r = next(b);
+                    if (r == null) break;
+                    nextSeq = r.seq + 1;
+                    end = b.position();
+                }
+                if (end < seg.capacity() && seg.getInt(end) != 0) {
+                    System.out.println("Journal: discarding torn record at " + last.getFileName() + ":" + end);
+                    for (int i = end; i < seg.capacity() && i < end + 65536; i++) seg.put(i, (byte) 0);
+                    seg.force();
+                }
+                seg.position(end);
+            }
+
+            if (nextSeq - 1 > applied) recover(applied, held);
+            else if (nextSeq - 1 < applied) {
+                System.out.println("Journal: ends at " + (nextSeq - 1) + " but the database has applied " + applied + "; starting a new segment");
+                nextSeq = applied + 1;
+                roll();
+            }
+
+            List<java.nio.file.Path> snaps = files("snapshot-", ".snap");
+            if (snaps.isEmpty()) snapshot();
+            else lastSnapshotSeq = seqOf(snaps.get(snaps.size() - 1));
+        }
+
+        long appliedSeq() throws Exception {
+            try (PooledConnection c = getReadConnection(pool)) {
+                try (ResultSet rs = c.prepare("SELECT seq FROM journal_state WHERE id = 0").executeQuery()) {
+                    return rs.next() ? rs.getLong(1) : 0;
+                }
+            }
+        }
+
+        /** Applies journal records after applied that never reached SQLite (crash between force and commit). */
+        private void recover(long applied, PooledConnection held) throws Exception {
+            DeltaMap deltas = new DeltaMap(1024);
+            long[] count = {0, applied};
+            PooledConnection c = held != null ? held : getConnection(pool);
+            RunningBalances balances = new RunningBalances(c, deltas);
+            try {
+                c.setAutoCommit(false);
+                PreparedStatement ins = c.prepare(TransactionDAO.INSERT_AT_SQL);
+                PreparedStatement legs = c.prepare(TransferCoordinator.LEG_SQL);
+                PreparedStatement keys = c.prepare(IdempotencyKeys.INSERT_SQL);
+                PreparedStatement open = c.prepare("INSERT OR IGNORE INTO accounts (acc_id, user_id, acc_type, balance) VALUES (?,?,?,?)");
+                PreparedStatement interest = c.prepare(InterestJob.RECOVER_SQL);
+                scan(applied, r -> {
+                    if ("OPEN".equals(r.type)) {
+                        open.setInt(1, r.accId);
+                        open.setInt(2, r.toAccId);
+                        open.setString(3, r.accType());
+                        open.setLong(4, r.amount);
+                        open.executeUpdate();
+                    } else if ("INTEREST".equals(r.type)) {
+                        InterestJob.recovered(interest, r);
+                    }
+                    r.addRows(ins, legs, keys, balances, sqlTime(r.time));
+                    count[0]++;
+                    count[1] = r.seq;
+                });
+                ins.executeBatch();
+                legs.executeBatch();
+                keys.executeBatch();
+                withoutBalanceCheck(c, () -> {
+                    AccountDAO.applyDeltas(c, deltas);
+                    return null;
+                });
+                PreparedStatement p = c.prepare("UPDATE journal_state SET seq = ? WHERE id = 0");
+                p.setLong(1, count[1]);
+                p.executeUpdate();
+                c.commit();
+            } catch (Exception e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+                if (c != held) c.close();
+            }
+            System.out.println("Journal recovery applied " + count[0] + " records to " + pool.url);
+        }
+
+        // ----- appending -----
+
+        /**
+         * Runs work in one SQLite transaction on c, journals the records it returns in the journal
+         * of c's database file, and commits. The records are forced to the journal before the
+         * commit; if anything fails the transaction is rolled back and the records are cut from
+         * the journal again.
+         */
+        static long commit(PooledConnection c, Callable<List<Record>> work) throws Exception {
+            Journal j = open(c);
+            synchronized (j.lock) {
+                c.setAutoCommit(false);
+                Mark mark = null;
+                try {
+                    // write first: a deferred transaction that reads first gets SQLITE_BUSY, not a
+                    // wait, when another connection (the transfer log) commits to the same file
+                    c.prepare("UPDATE journal_state SET seq = seq WHERE id = 0").executeUpdate();
+                    List<Record> recs = work.call();
+                    mark = j.mark();
+                    long seq = j.append(recs);
+                    PreparedStatement p = c.prepare("UPDATE journal_state SET seq = ? WHERE id = 0");
+                    p.setLong(1, seq);
+                    p.executeUpdate();
+                    c.commit();
+                    mark = null;
+                    j.maybeSnapshot();
+                    return seq;
+                } catch (Exception e) {
+                    try { c.rollback(); } catch (SQLException ignored) { }
+                    if (mark != null) j.rollback(mark);
+                    throw e;
+                }
+            }
+        }
+
+        /** Where the journal stood before an append, for undoing it. */
+        private static class Mark {
+            final java.nio.file.Path segPath;
+            final int position;
+            final long nextSeq;
+            Mark(java.nio.file.Path segPath, int position, long nextSeq) {
+                this.segPath = segPath; this.position = position; this.nextSeq = nextSeq;
+            }
+        }
+
+        private Mark mark() {
+            return new Mark(segPath, seg.position(), nextSeq);
+        }
+
+        /** Writes records with consecutive seqs and forces them; returns the last seq. */
+        private long append(List<Record> recs) throws IOException {
+            int start = seg.position();
+            for (Record r : recs) {
+                r.seq = nextSeq;
+                byte[] payload = r.encode();
+                if (payload.length + 12 > seg.capacity()) throw new IOException("Journal record too large: " + payload.length + " bytes");
+                if (seg.remaining() < payload.length + 12) {
+                    force(start, seg.position() - start);
+                    roll();
+                    start = 0;
+                }
+                java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+                crc.update(payload);
+                seg.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+                nextSeq++;
+                records.increment();
+                bytes.add(payload.length + 8);
+            }
+            force(start, seg.position() - start);
+            return nextSeq - 1;
+        }
+
+        private void force(int from, int len) {
+            if (!SYNC || len == 0) return;
+            long t = System.nanoTime();
+            seg.force(from, len);
+            forces.increment();
+            forceNanos.add(System.nanoTime() - t);
+        }
+
+        private void rollback(Mark m) {
+            try {
+                if (!m.segPath.equals(segPath)) {
+                    java.nio.file.Path rolled = segPath;
+                    openSegment(m.segPath);
+                    java.nio.file.Files.deleteIfExists(rolled);
+                }
+                for (int i = m.position, end = Math.max(m.position, seg.position()); i < end; i++) seg.put(i, (byte) 0);
+                seg.position(m.position);
+                seg.force();
+                nextSeq = m.nextSeq;
+            } catch (IOException e) {
+                System.out.println("Journal rollback failed, records after seq " + (m.nextSeq - 1) + " may be replayed: " + e.getMessage());
+            }
+        }
+
+        private void roll() throws IOException {
+            seg.force();
+            openSegment(segmentPath(nextSeq));
+        }
+
+        private void openSegment(java.nio.file.Path path) throws IOException {
+            try (java.nio.channels.FileChannel ch = java.nio.channels.FileChannel.open(path, java.nio.file.StandardOpenOption.CREATE,
+                    java.nio.file.StandardOpenOption.READ, java.nio.file.StandardOpenOption.WRITE)) {
+                seg = ch.map(java.nio.channels.FileChannel.MapMode.READ_WRITE, 0, Math.max(ch.size(), SEGMENT_BYTES));
+            }
+            segPath = path;
+        }
+
+        // ----- reading -----
+
+        /** Calls action for every intact record with seq > after, in order; returns how many. */
+        long scan(long after, RecordAction action) throws Exception {
+            List<java.nio.file.Path> segs = files("journal-", ".log");
+            int first = 0;
+            for (int i = 0; i < segs.size(); i++) {
+                if (seqOf(segs.get(i)) <= after + 1) first = i;
+            }
+            long n = 0;
+            for (int i = first; i < segs.size(); i++) {
+                java.nio.ByteBuffer b;
+                try (java.nio.channels.FileChannel ch = java.nio.channels.FileChannel.open(segs.get(i), java.nio.file.StandardOpenOption.READ)) {
+                    b = ch.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                }
+                for (Record r; (r = next(b)) != null; ) {
+                    if (r.seq <= after) continue;
+                    action.accept(r);
+                    n++;
+                }
+            }
+            return n;
+        }
+
+        /** The record at b's position, or null at the end of the written part (or a torn write). */
+        private static Record next(java.nio.ByteBuffer b) {
+            if (b.remaining() < 8) return null;
+            int len = b.getInt(b.position());
+            if (len <= 0 || len > b.remaining() - 8) return null;
+            int crcValue = b.getInt(b.position() + 4);
+            java.nio.ByteBuffer payload = b.slice(b.position() + 8, len);
+            java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != crcValue) return null;
+            b.position(b.position() + 8 + len);
+            return Record.decode(payload);
+        }
+
+        /**
+         * Loads the newest readable snapshot and the journal after it into l. Returns the number
+         * of accounts loaded, or -1 if there is no snapshot.
+         */
+        long loadInto(Ledger l) throws Exception {
+            List<java.nio.file.Path> snaps = files("snapshot-", ".snap");
+            for (int i = snaps.size() - 1; i >= 0; i--) {
+                java.nio.ByteBuffer b = readSnapshot(snaps.get(i));
+                if (b == null) {
+                    System.out.println("Journal: skipping unreadable snapshot " + snaps.get(i).getFileName());
+                    continue;
+                }
+                long seq = b.getLong(8), accounts = 0;
+                b.position(16);
+                for (int acc; (acc = b.getInt()) >= 0; accounts++) l.register(acc, b.getLong());
+                long replayed = scan(seq, r -> r.replayInto(l));
+                System.out.println("Ledger loaded " + accounts + " accounts from snapshot " + seq + " and replayed " + replayed + " journal records");
+                return accounts;
+            }
+            return -1;
+        }
+
+        /** The snapshot's bytes if its header and checksum are intact, else null. */
+        private static java.nio.ByteBuffer readSnapshot(java.nio.file.Path path) throws IOException {
+            try (java.nio.channels.FileChannel ch = java.nio.channels.FileChannel.open(path, java.nio.file.StandardOpenOption.READ)) {
+                if (ch.size() < 24) return null;
+                java.nio.ByteBuffer b = ch.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                if (b.getInt(0) != SNAPSHOT_MAGIC || b.getInt(4) != VERSION) return null;
+                java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+                crc.update(b.slice(0, b.capacity() - 4));
+                return (int) crc.getValue() == b.getInt(b.capacity() - 4) ? b : null;
+            }
+        }
+
+        // ----- snapshots -----
+
+        private void maybeSnapshot() {
+            if (nextSeq - 1 - lastSnapshotSeq < SNAPSHOT_EVERY || !snapshotting.compareAndSet(false, true)) return;
+            try {
+                SNAPSHOTTER.execute(() -> {
+                    try {
+                        snapshot();
+                    } catch (Exception e) {
+                        System.out.println("Journal snapshot failed: " + e.getMessage());
+                    } finally {
+                        snapshotting.set(false);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                snapshotting.set(false);
+            }
+        }
+
+        /** Writes every balance as of the journal seq SQLite has applied, atomically. */
+        void snapshot() throws Exception {
+            if (diverged) throw new IllegalStateException("Database differs from the journal; run --journal-repair first");
+            java.nio.file.Path tmp = dir.resolve("snapshot.tmp");
+            long seq;
+            try (PooledConnection c = getReadConnection(pool);
+                 java.nio.channels.FileChannel out = java.nio.channels.FileChannel.open(tmp, java.nio.file.StandardOpenOption.CREATE,
+                         java.nio.file.StandardOpenOption.WRITE, java.nio.file.StandardOpenOption.TRUNCATE_EXISTING)) {
+                c.setAutoCommit(false);   // one read transaction, so seq and balances agree
+                try (ResultSet rs = c.prepare("SELECT seq FROM journal_state WHERE id = 0").executeQuery()) {
+                    seq = rs.next() ? rs.getLong(1) : 0;
+                }
+                java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+                java.nio.ByteBuffer buf = java.nio.ByteBuffer.allocate(64 * 1024);
+                buf.putInt(SNAPSHOT_MAGIC).putInt(VERSION).putLong(seq);
+                try (ResultSet rs = c.prepare("SELECT acc_id, balance FROM accounts ORDER BY acc_id").executeQuery()) {
+                    while (rs.next()) {
+                        if (buf.remaining() < 12) drain(buf, out, crc);
+                        buf.putInt(rs.getInt(1)).putLong(rs.getLong(2));
+                    }
+                }
+                c.commit();
+                if (buf.remaining() < 4) drain(buf, out, crc);
+                buf.putInt(-1);
+                drain(buf, out, crc);
+                buf.putInt((int) crc.getValue()).flip();
+                while (buf.hasRemaining()) out.write(buf);
+                out.force(true);
+            }
+            java.nio.file.Files.move(tmp, dir.resolve(String.format("snapshot-%020d.snap", seq)),
+                    java.nio.file.StandardCopyOption.ATOMIC_MOVE, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            lastSnapshotSeq = seq;
+            List<java.nio.file.Path> snaps = files("snapshot-", ".snap");
+            for (int i = 0; i < snaps.size() - SNAPSHOTS_KEPT; i++) java.nio.file.Files.deleteIfExists(snaps.get(i));
+            dropSegmentsThrough(seqOf(snaps.get(Math.max(0, snaps.size() - SNAPSHOTS_KEPT))));
+        }
+
+        /**
+         * Deletes the segments whose records all have seq <= upTo (the oldest kept snapshot), so
+         * no load or verify reads them again. The current segment always stays. A segment the OS
+         * will not delete yet (still mapped, on Windows) is left for the next snapshot.
+         */
+        private void dropSegmentsThrough(long upTo) throws IOException {
+            synchronized (lock) {   // no append or rollback in flight
+                List<java.nio.file.Path> segs = files("journal-", ".log");
+                for (int i = 0; i + 1 < segs.size() && seqOf(segs.get(i + 1)) - 1 <= upTo; i++) {
+                    if (segs.get(i).equals(segPath)) break;
+                    try {
+                        java.nio.file.Files.deleteIfExists(segs.get(i));
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        private static void drain(java.nio.ByteBuffer buf, java.nio.channels.FileChannel out, java.util.zip.CRC32 crc) throws IOException {
+            buf.flip();
+            crc.update(buf.duplicate());
+            while (buf.hasRemaining()) out.write(buf);
+            buf.clear();
+        }
+
+        // ----- verification -----
+
+        /**
+         * Folds the newest snapshot and the journal after it into per-account balances and
+         * compares them with the accounts table. With repair, SQLite is corrected to match.
+         * Returns the number of accounts that differed.
+         */
+        long verify(boolean repair) throws Exception {
+            Map<Integer, Long> expected = new HashMap<>();
+            Map<Integer, Integer> owners = new HashMap<>();
+            Map<Integer, String> types = new HashMap<>();
+            List<java.nio.file.Path> snaps = files("snapshot-", ".snap");
+            java.nio.ByteBuffer b = snaps.isEmpty() ? null : readSnapshot(snaps.get(snaps.size() - 1));
+            if (b == null) throw new IOException("No readable snapshot in " + dir);
+            long seq = b.getLong(8);
+            b.position(16);
+            for (int acc; (acc = b.getInt()) >= 0; ) expected.put(acc, b.getLong());
+            long replayed = scan(seq, r -> {
+                if ("OPEN".equals(r.type)) {
+                    expected.put(r.accId, r.amount);
+                    owners.put(r.accId, r.toAccId);
+                    types.put(r.accId, r.accType());
+                } else if ("DEPOSIT".equals(r.type)) {
+                    expected.merge(r.accId, r.amount, Long::sum);
+                } else if ("WITHDRAW".equals(r.type) || "DEBIT".equals(r.type)) {
+                    expected.merge(r.accId, -r.amount, Long::sum);
+                } else if ("CREDIT".equals(r.type) || "INTEREST".equals(r.type)) {
+                    expected.merge(r.accId, r.amount, Long::sum);
+                } else {
+                    expected.merge(r.accId, -r.amount, Long::sum);
+                    expected.merge(r.toAccId, r.amount, Long::sum);
+                }
+            });
+
+            long mismatches = 0;
+            try (PooledConnection c = getConnection(pool)) {
+                c.setAutoCommit(false);
+                PreparedStatement fix = c.prepare("UPDATE accounts SET balance = ? WHERE acc_id = ?");
+                try (ResultSet rs = c.prepare("SELECT acc_id, balance FROM accounts").executeQuery()) {
+                    while (rs.next()) {
+                        Long want = expected.remove(rs.getInt(1));
+                        if (want == null || want == rs.getLong(2)) continue;
+                        mismatches++;
+                        System.out.println("Account " + rs.getInt(1) + ": database " + Money.format(rs.getLong(2)) + ", journal " + Money.format(want));
+                        fix.setLong(1, want);
+                        fix.setInt(2, rs.getInt(1));
+                        fix.addBatch();
+                    }
+                }
+                PreparedStatement add = c.prepare("INSERT INTO accounts (acc_id, user_id, acc_type, balance) VALUES (?,?,?,?)");
+                for (Map.Entry<Integer, Long> e : expected.entrySet()) {
+                    mismatches++;
+                    System.out.println("Account " + e.getKey() + ": missing from the database, journal " + Money.format(e.getValue()));
+                    Integer owner = owners.get(e.getKey());
+                    if (owner == null) continue;
+                    add.setInt(1, e.getKey());
+                    add.setInt(2, owner);
+                    add.setString(3, types.get(e.getKey()));
+                    add.setLong(4, e.getValue());
+                    add.addBatch();
+                }
+                if (repair) {
+                    withoutBalanceCheck(c, () -> {
+                        fix.executeBatch();
+                        return add.executeBatch();
+                    });
+                    c.commit();
+                } else {
+                    c.rollback();
+                    diverged = mismatches > 0;
+                }
+                fix.clearBatch();
+                add.clearBatch();
+            }
+            System.out.println(dir.getFileName() + ": checked snapshot " + seq + " + " + replayed + " journal records: " + mismatches + " accounts differ" +
+                    (repair && mismatches > 0 ? " (repaired)" : ""));
+            return mismatches;
+        }
+
+        // ----- files -----
+
+        private java.nio.file.Path segmentPath(long firstSeq) {
+            return dir.resolve(String.format("journal-%020d.log", firstSeq));
+        }
+
+        private static long seqOf(java.nio.file.Path p) {
+            String n = p.getFileName().toString();
+            return Long.parseLong(n.substring(n.indexOf('-') + 1, n.lastIndexOf('.')));
+        }
+
+        /** Files named prefix<seq>suffix, in seq order (names are zero-padded). */
+        private List<java.nio.file.Path> files(String prefix, String suffix) throws IOException {
+            List<java.nio.file.Path> out = new ArrayList<>();
+            try (java.nio.file.DirectoryStream<java.nio.file.Path> ds = java.nio.file.Files.newDirectoryStream(dir, prefix + "*" + suffix)) {
+                for (java.nio.file.Path p : ds) out.add(p);
+            }
+            Collections.sort(out);
+            return out;
+        }
+
+        static String sqlTime(long millis) {
+            return java.time.LocalDateTime.ofEpochSecond(millis / 1000, 0, java.time.ZoneOffset.UTC)
+                    .format(java.time.format.DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+        }
+
+        String stats() {
+            long f = forces.sum();
+            return String.format("journal[" + dir.getFileName() + "] records=%d bytes=%d forces=%d avgForce=%.3fms nextSeq=%d lastSnapshot=%d",
+                    records.sum(), bytes.sum(), f, f == 0 ? 0.0 : forceNanos.sum() / 1e6 / f, nextSeq, lastSnapshotSeq);
+        }
+    }
+
+    // ========== ARCHIVE ==========
+    /** A newest-first stream of one account's transactions; next() returns null at the end. */
+    interface TxSource extends AutoCloseable {
+        Transaction next() throws Exception;
+
+        /** Sources read mapped segments or a result set their caller closes, so closing one cannot fail. */
+        @Override
+        default void close() {}
+    }
+
+    /** Newest first: later tx_time, then higher tx_id. */
+    static final Comparator<Transaction> NEWEST_FIRST = (a, b) -> {
+        int c = b.time.compareTo(a.time);
+        return c != 0 ? c : Long.compare(b.txId, a.txId);
+    };
+
+    /** Merges newest-first sources into one, dropping rows that appear in more than one. */
+    static class MergedSource implements TxSource {
+        private final List<TxSource> sources;
+        private final Transaction[] heads;
+        private long lastTxId = Long.MIN_VALUE;
+        private boolean started;
+
+        MergedSource(List<TxSource> sources) {
+            this.sources = sources;
+            this.heads = new Transaction[sources.size()];
+        }
+
+        @Override
+        public Transaction next() throws Exception {
+            if (!started) {
+                for (int i = 0; i < heads.length; i++) heads[i] = sources.get(i).next();
+                started = true;
+            }
+            while (true) {
+                int best = -1;
+                for (int i = 0; i < heads.length; i++) {
+                    if (heads[i] != null && (best < 0 || NEWEST_FIRST.compare(heads[i], heads[best]) < 0)) best = i;
+                }
+                if (best < 0) return null;
+                Transaction t = heads[best];
+                heads[best] = sources.get(best).next();
+                // a row is briefly in both SQLite and its new segment while an archive run finishes
+                if (t.txId == lastTxId) continue;
+                lastTxId = t.txId;
+                return t;
+            }
+        }
+
+        @Override
+        public void close() {
+            for (TxSource s : sources) s.close();
+        }
+    }
+
+    /**
+     * Cold storage for old transactions. An archive run moves every row older than the cutoff
+     * into one immutable segment file beside the database (<db>.archive/seg-NNNNNN.seg) and then
+     * deletes those rows from SQLite, so the live table and its index only hold recent history.
+     * TransactionDAO.statement and the statement export merge segment rows back in.
+     *
+     * Segment layout: a fixed header (magic, version, index offset), then for each account in
+     * acc_id order its rows newest first, packed into Deflate-compressed blocks of up to
+     * BLOCK_ROWS rows, then a sparse index: each account's run of blocks and row count, and for
+     * each block its offset, sizes and the (tx_time, tx_id) of its oldest row. Readers map the
+     * file read-only and inflate only the blocks a query reaches.
+     *
+     * Runs are tracked in archive_segments: WRITTEN once the file is durable, DONE once the rows
+     * are gone from SQLite. Loading the archive finishes any WRITTEN run. With sharded storage
+     * every shard file has its own segments, archive_segments and directory beside it.
+     */
+    static class Archive {
+        static final int AGE_DAYS = Integer.getInteger("bank.archive.ageDays", 365);
+        static final long INTERVAL_HOURS = Long.getLong("bank.archive.intervalHours", 24);
+        static final int BLOCK_ROWS = Integer.getInteger("bank.archive.blockRows", 256);
+        static final int MAGIC = 0x424B5347;   // "BKSG"
+        static final int VERSION = 1;
+        static final int HEADER_BYTES = 16;
+        static final int DELETE_CHUNK = 10_000;
+
+        /** Loaded segments by database file (shard pool), newest first. */
+        private static final Map<ConnectionPool, List<Segment>> SEGMENTS = new ConcurrentHashMap<>();
+        private static ScheduledExecutorService scheduler;
+
+        static void createTables(Statement stmt) throws SQLException {
+            stmt.execute("CREATE TABLE IF NOT EXISTS archive_segments (" +
+                "seq INTEGER PRIMARY KEY, " +
+                "file TEXT NOT NULL, " +
+                "cutoff TEXT NOT NULL, " +
+                "max_tx_id INTEGER NOT NULL, " +
+                "row_count INTEGER NOT NULL, " +
+                "status TEXT NOT NULL, " +
+                "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+        }
+
+        /** Segment directory for a database file. */
+        static java.nio.file.Path dir(ConnectionPool pool) {
+            return dbSidecar(pool, ".archive");
+        }
+
+        static String cutoff(int ageDays) {
+            return java.time.LocalDateTime.now(java.time.ZoneOffset.UTC).minusDays(ageDays)
+                    .format(java.time.format.DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+        }
+
+        /** Segments that can hold accId's rows: those of its shard. */
+        static List<Segment> segments(int accId) throws Exception {
+            return segments(Shards.pool(Shards.of(accId)));
+        }
+
+        static List<Segment> segments(ConnectionPool pool) throws Exception {
+            List<Segment> s = SEGMENTS.get(pool);
+            if (s == null) {
+                synchronized (Archive.class) {
+                    s = SEGMENTS.get(pool);
+                    if (s == null) SEGMENTS.put(pool, s = load(pool));
+                }
+            }
+            return s;
+        }
+
+        /** Forgets the loaded segments (the database changed). */
+        static synchronized void reset() {
+            SEGMENTS.clear();
+        }
+
+        private static List<Segment> load(ConnectionPool pool) throws Exception {
+            List<Object[]> runs = new ArrayList<>();
+            try (PooledConnection c = getReadConnection(pool)) {
+                PreparedStatement p = c.prepare("SELECT seq, file, cutoff, max_tx_id, status FROM archive_segments ORDER BY seq DESC");
+                try (ResultSet rs = p.executeQuery()) {
+                    while (rs.next()) runs.add(new Object[]{rs.getLong(1), rs.getString(2), rs.getString(3), rs.getLong(4), rs.getString(5)});
+                }
+            }
+            List<Segment> list = new ArrayList<>(runs.size());
+            for (Object[] r : runs) {
+                list.add(Segment.open(dir(pool).resolve((String) r[1])));
+                if (!"DONE".equals(r[4])) deleteArchived(pool, (Long) r[0], (String) r[2], (Long) r[3]);
+            }
+            return Collections.unmodifiableList(list);
+        }
+
+        /** Runs archive(cutoff(AGE_DAYS)) every INTERVAL_HOURS on a daemon thread; 0 disables it. */
+        static synchronized void schedule() {
+            if (scheduler != null || INTERVAL_HOURS <= 0) return;
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "archiver");
+                t.setDaemon(true);
+                return t;
+            });
+            scheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    archive(cutoff(AGE_DAYS));
+                } catch (Exception e) {
+                    System.out.println("Archive run failed: " + e.getMessage());
+                }
+            }, 1, INTERVAL_HOURS * 60, TimeUnit.MINUTES);
+        }
+
+        /**
+         * Moves every transaction older than cutoff ("yyyy-MM-dd HH:mm:ss") into a new segment
+         * per shard. Only rows that exist when the run starts are touched, so it never blocks
+         * postings. Returns the number of rows archived.
+         */
+        static synchronized long archive(String cutoff) throws Exception {
+            long rows = 0;
+            for (int s = 0; s < Shards.count(); s++) rows += archive(Shards.pool(s), cutoff);
+            return rows;
+        }
+
+        private static long archive(ConnectionPool pool, String cutoff) throws Exception {
+            List<Segment> current = segments(pool);
+            long maxTxId, seq;
+            try (PooledConnection c = getReadConnection(pool); Statement st = c.createStatement()) {
+                try (ResultSet rs = st.executeQuery("SELECT COALESCE(MAX(tx_id), 0) FROM transactions")) {
+                    rs.next();
+                    maxTxId = rs.getLong(1);
+                }
+                try (ResultSet rs = st.executeQuery("SELECT COALESCE(MAX(seq), 0) + 1 FROM archive_segments")) {
+                    rs.next();
+                    seq = rs.getLong(1);
+                }
+            }
+
+            long start = System.nanoTime();
+            java.nio.file.Path dir = dir(pool);
+            java.nio.file.Files.createDirectories(dir);
+            String name = String.format("seg-%06d.seg", seq);
+            java.nio.file.Path tmp = dir.resolve(name + ".tmp");
+            long rows;
+            List<Transaction> checkpoints = new ArrayList<>();
+            List<Long> balances = new ArrayList<>();
+            try (PooledConnection c = getReadConnection(pool);
+                 PreparedStatement p = c.conn.prepareStatement(
+                    "SELECT tx_id, acc_id, tx_type, amount, tx_time, description, target_acc_id, balance_after FROM transactions " +
+                    "WHERE tx_time < ? AND tx_id <= ? ORDER BY acc_id, tx_time DESC, tx_id DESC");
+                 SegmentWriter w = new SegmentWriter(tmp)) {
+                p.setFetchSize(StatementExporter.EXPORT_FETCH_SIZE);
+                p.setString(1, cutoff);
+                p.setLong(2, maxTxId);
+                try (ResultSet rs = p.executeQuery()) {
+                    Transaction prev = null;
+                    while (rs.next()) {
+                        Transaction t = TransactionDAO.readTransaction(rs);
+                        w.add(t);
+                        // the first row of each (account, month) is its newest: that month's closing balance
+                        long after = rs.getLong("balance_after");
+                        if (!rs.wasNull() && (prev == null || prev.accId != t.accId || !t.time.regionMatches(0, prev.time, 0, 7))) {
+                            checkpoints.add(t);
+                            balances.add(after);
+                            if (checkpoints.size() == DELETE_CHUNK) saveCheckpoints(pool, checkpoints, balances);
+                        }
+                        prev = t;
+                    }
+                }
+                rows = w.finish();
+            }
+            saveCheckpoints(pool, checkpoints, balances);
+            if (rows == 0) {
+                java.nio.file.Files.delete(tmp);
+                return 0;
+            }
+            java.nio.file.Path file = dir.resolve(name);
+            java.nio.file.Files.move(tmp, file, java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+
+            try (PooledConnection c = getConnection(pool)) {
+                PreparedStatement p = c.prepare("INSERT INTO archive_segments (seq, file, cutoff, max_tx_id, row_count, status) VALUES (?,?,?,?,?,'WRITTEN')");
+                p.setLong(1, seq);
+                p.setString(2, name);
+                p.setString(3, cutoff);
+                p.setLong(4, maxTxId);
+                p.setLong(5, rows);
+                p.executeUpdate();
+            }
+            // publish before deleting so readers never miss a row; the merge drops the overlap
+            List<Segment> next = new ArrayList<>(current.size() + 1);
+            next.add(Segment.open(file));
+            next.addAll(current);
+            SEGMENTS.put(pool, Collections.unmodifiableList(next));
+            deleteArchived(pool, seq, cutoff, maxTxId);
+
+            System.out.printf("Archived %d transactions older than %s into %s in %.1f s%n",
+                    rows, cutoff, file, (System.nanoTime() - start) / 1e9);
+            return rows;
+        }
+
+        /** Writes and clears a batch of month-close checkpoints; one short write transaction. */
+        private static void saveCheckpoints(ConnectionPool pool, List<Transaction> rows, List<Long> balances) throws Exception {
+            if (rows.isEmpty()) return;
+            try (PooledConnection c = getConnection(pool)) {
+                PreparedStatement p = c.prepare("INSERT OR REPLACE INTO balance_checkpoints (acc_id, tx_time, tx_id, balance) VALUES (?,?,?,?)");
+                c.setAutoCommit(false);
+                try {
+                    for (int i = 0; i < rows.size(); i++) {
+                        Transaction t = rows.get(i);
+                        p.setInt(1, t.accId);
+                        p.setString(2, t.time);
+                        p.setLong(3, t.txId);
+                        p.setLong(4, balances.get(i));
+                        p.addBatch();
+                    }
+                    p.executeBatch();
+                    c.commit();
+                } catch (Exception e) {
+                    c.rollback();
+                    throw e;
+                } finally {
+                    c.setAutoCommit(true);
+                }
+            }
+            rows.clear();
+            balances.clear();
+        }
+
+        /** Deletes a run's rows from SQLite in small chunks so writers are never held up for long. */
+        private static void deleteArchived(ConnectionPool pool, long seq, String cutoff, long maxTxId) throws Exception {
+            try (PooledConnection c = getConnection(pool)) {
+                PreparedStatement del = c.prepare("DELETE FROM transactions WHERE tx_id IN " +
+                        "(SELECT tx_id FROM transactions WHERE tx_time < ? AND tx_id <= ? LIMIT " + DELETE_CHUNK + ")");
+                int n;
+                do {
+                    del.setString(1, cutoff);
+                    del.setLong(2, maxTxId);
+                    n = del.executeUpdate();
+                } while (n > 0);
+                PreparedStatement done = c.prepare("UPDATE archive_segments SET status = 'DONE' WHERE seq = ?");
+                done.setLong(1, seq);
+                done.executeUpdate();
+            }
+        }
+
+        /** Archived rows for one account across all segments, newest segment first. */
+        static List<TxSource> scans(int accId) throws Exception {
+            List<TxSource> out = new ArrayList<>();
+            for (Segment seg : segments(accId)) {
+                if (seg.account(accId) >= 0) out.add(seg.scan(accId, null));
+            }
+            return out;
+        }
+
+        static long count(int accId) throws Exception {
+            long n = 0;
+            for (Segment seg : segments(accId)) {
+                int a = seg.account(accId);
+                if (a >= 0) n += seg.accRows[a];
+            }
+            return n;
+        }
+
+        /** Streams rows (acc_id order, each account newest first) into compressed blocks. */
+        static class SegmentWriter implements AutoCloseable {
+            private final java.nio.channels.FileChannel ch;
+            private final java.io.ByteArrayOutputStream raw = new java.io.ByteArrayOutputStream(BLOCK_ROWS * 64);
+            private final java.io.DataOutputStream rowOut = new java.io.DataOutputStream(raw);
+            private final java.io.ByteArrayOutputStream accIndex = new java.io.ByteArrayOutputStream();
+            private final java.io.DataOutputStream accOut = new java.io.DataOutputStream(accIndex);
+            private final java.io.ByteArrayOutputStream blockIndex = new java.io.ByteArrayOutputStream();
+            private final java.io.DataOutputStream blockOut = new java.io.DataOutputStream(blockIndex);
+            private final java.util.zip.Deflater deflater = new java.util.zip.Deflater(java.util.zip.Deflater.BEST_SPEED);
+            private byte[] compressed = new byte[BLOCK_ROWS * 64];
+
+            private int accId = -1, accFirstBlock, accRowCount, accounts, blocks, blockRows;
+            private long rows, position = HEADER_BYTES;
+            private Transaction last;
+            private String maxTime = "";
+
+            SegmentWriter(java.nio.file.Path path) throws IOException {
+                ch = java.nio.channels.FileChannel.open(path, java.nio.file.StandardOpenOption.CREATE,
+                        java.nio.file.StandardOpenOption.WRITE, java.nio.file.StandardOpenOption.TRUNCATE_EXISTING);
+                ch.position(HEADER_BYTES);
+            }
+
+            void add(Transaction t) throws IOException {
+                if (t.accId != accId) {
+                    endAccount();
+                    accId = t.accId;
+                    accFirstBlock = blocks;
+                    accRowCount = 0;
+                }
+                rowOut.writeLong(t.txId);
+                rowOut.writeUTF(t.type);
+                rowOut.writeLong(t.amount);
+                rowOut.writeUTF(t.time);
+                rowOut.writeBoolean(t.description != null);
+                if (t.description != null) rowOut.writeUTF(t.description);
+                rowOut.writeBoolean(t.targetAccId != null);
+                if (t.targetAccId != null) rowOut.writeInt(t.targetAccId);
+                if (t.time.compareTo(maxTime) > 0) maxTime = t.time;
+                last = t;
+                blockRows++;
+                accRowCount++;
+                rows++;
+                if (blockRows == BLOCK_ROWS) endBlock();
+            }
+
+            private void endBlock() throws IOException {
+                if (blockRows == 0) return;
+                byte[] in = raw.toByteArray();
+                deflater.reset();
+                deflater.setInput(in);
+                deflater.finish();
+                int len = 0;
+                while (!deflater.finished()) {
+                    if (len == compressed.length) compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                    len += deflater.deflate(compressed, len, compressed.length - len);
+                }
+                java.nio.ByteBuffer buf = java.nio.ByteBuffer.wrap(compressed, 0, len);
+                while (buf.hasRemaining()) ch.write(buf);
+
+                blockOut.writeLong(position);
+                blockOut.writeInt(len);
+                blockOut.writeInt(in.length);
+                blockOut.writeInt(blockRows);
+                blockOut.writeLong(last.txId);
+                blockOut.writeUTF(last.time);
+                position += len;
+                blocks++;
+                blockRows = 0;
+                raw.reset();
+            }
+
+            private void endAccount() throws IOException {
+                if (accId < 0) return;
+                endBlock();
+                accOut.writeInt(accId);
+                accOut.writeInt(accFirstBlock);
+                accOut.writeInt(blocks - accFirstBlock);
+                accOut.writeInt(accRowCount);
+                accounts++;
+            }
+
+            /** Writes the index and header and syncs the file; returns the row count. */
+            long finish() throws IOException {
+                endAccount();
+                java.io.ByteArrayOutputStream index = new java.io.ByteArrayOutputStream(accIndex.size() + blockIndex.size() + 64);
+                java.io.DataOutputStream out = new java.io.DataOutputStream(index);
+                out.writeUTF(maxTime);
+                out.writeInt(accounts);
+                accIndex.writeTo(out);
+                out.writeInt(blocks);
+                blockIndex.writeTo(out);
+                out.flush();
+                java.nio.ByteBuffer buf = java.nio.ByteBuffer.wrap(index.toByteArray());
+                while (buf.hasRemaining()) ch.write(buf);
+
+                java.nio.ByteBuffer header = java.nio.ByteBuffer.allocate(HEADER_BYTES);
+                header.putInt(MAGIC).putInt(VERSION).putLong(position).flip();
+                ch.write(header, 0);
+                ch.force(true);
+                return rows;
+            }
+
+            @Override
+            public void close() throws IOException {
+                deflater.end();
+                ch.close();
+            }
+        }
+
+        /** A read-only, memory-mapped segment and its parsed index. */
+        static class Segment {
+            final java.nio.file.Path path;
+            final java.nio.MappedByteBuffer map;
+            final String maxTime;
+            final int[] accIds, accFirst, accBlocks, accRows;
+            final long[] blockOffset, blockOldestTxId;
+            final int[] blockLen, blockRawLen, blockRows;
+            final String[] blockOldestTime;
+
+            private Segment(java.nio.file.Path path, java.nio.MappedByteBuffer map, java.io.DataInputStream in) throws IOException {
+                this.path = path;
+                this.map = map;
+                maxTime = in.readUTF();
+                int accounts = in.readInt();
+                accIds = new int[accounts];
+                accFirst = new int[accounts];
+                accBlocks = new int[accounts];
+                accRows = new int[accounts];
+                for (int i = 0; i < accounts; i++) {
+                    accIds[i] = in.readInt();
+                    accFirst[i] = in.readInt();
+                    accBlocks[i] = in.readInt();
+                    accRows[i] = in.readInt();
+                }
+                int blocks = in.readInt();
+                blockOffset = new long[blocks];
+                blockLen = new int[blocks];
+                blockRawLen = new int[blocks];
+                blockRows = new int[blocks];
+                blockOldestTxId = new long[blocks];
+                blockOldestTime = new String[blocks];
+                for (int b = 0; b < blocks; b++) {
+                    blockOffset[b] = in.readLong();
+                    blockLen[b] = in.readInt();
+                    blockRawLen[b] = in.readInt();
+                    blockRows[b] = in.readInt();
+                    blockOldestTxId[b] = in.readLong();
+                    blockOldestTime[b] = in.readUTF();
+                }
+            }
+
+            static Segment open(java.nio.file.Path path) throws IOException {
+                try (java.nio.channels.FileChannel ch = java.nio.channels.FileChannel.open(path, java.nio.file.StandardOpenOption.READ)) {
+                    java.nio.MappedByteBuffer map = ch.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                    if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) throw new IOException("Not an archive segment: " + path);
+                    int indexOffset = (int) map.getLong(8);
+                    byte[] index = new byte[map.capacity() - indexOffset];
+                    map.get(indexOffset, index);
+                    return new Segment(path, map, new java.io.DataInputStream(new java.io.ByteArrayInputStream(index)));
+                }
+            }
+
+            /** Index of accId in the account table, or -1. */
+            int account(int accId) {
+                int a = Arrays.binarySearch(accIds, accId);
+                return a < 0 ? -1 : a;
+            }
+
+            /**
+             * Rows of accId strictly older than after (all rows if null), newest first. Blocks
+             * whose oldest row is not older than after are skipped without being inflated.
+             */
+            TxSource scan(int accId, StatementCursor after) {
+                int a = account(accId);
+                int first = a < 0 ? 0 : accFirst[a];
+                int end = a < 0 ? 0 : first + accBlocks[a];
+                while (after != null && first < end && !olderThan(blockOldestTime[first], blockOldestTxId[first], after)) first++;
+                int startBlock = first;
+                return new TxSource() {
+                    int block = startBlock, left;
+                    java.io.DataInputStream in;
+
+                    @Override
+                    public Transaction next() throws IOException {
+                        while (true) {
+                            if (left == 0) {
+                                if (block == end) return null;
+                                in = inflate(block);
+                                left = blockRows[block++];
+                            }
+                            left--;
+                            Transaction t = readRow(in, accId);
+                            if (after == null || olderThan(t.time, t.txId, after)) return t;
+                        }
+                    }
+                };
+            }
+
+            private static boolean olderThan(String time, long txId, StatementCursor c) {
+                int cmp = time.compareTo(c.time);
+                return cmp < 0 || (cmp == 0 && txId < c.txId);
+            }
+
+            private java.io.DataInputStream inflate(int b) throws IOException {
+                java.util.zip.Inflater inf = new java.util.zip.Inflater();
+                try {
+                    inf.setInput(map.slice((int) blockOffset[b], blockLen[b]));
+                    byte[] raw = new byte[blockRawLen[b]];
+                    int n = 0;
+                    while (n < raw.length) {
+                        int k = inf.inflate(raw, n, raw.length - n);
+                        if (k == 0 && (inf.finished() || inf.needsInput())) throw new IOException("Corrupt block " + b + " in " + path);
+                        n += k;
+                    }
+                    return new java.io.DataInputStream(new java.io.ByteArrayInputStream(raw));
+                } catch (java.util.zip.DataFormatException e) {
+                    throw new IOException("Corrupt block " + b + " in " + path, e);
+                } finally {
+                    inf.end();
+                }
+            }
+
+            private static Transaction readRow(java.io.DataInputStream in, int accId) throws IOException {
+                long txId = in.readLong();
+                String type = in.readUTF();
+                long amount = in.readLong();
+                String time = in.readUTF();
+                String desc = in.readBoolean() ? in.readUTF() : null;
+                Integer target = in.readBoolean() ? in.readInt() : null;
+                return new Transaction(txId, accId, type, amount, time, desc, target);
+            }
+        }
+    }
+
+    // ========== STATEMENT EXPORT ==========
+    /**
+     * Streams an account's full history to CSV or PDF without holding it in memory: rows come
+     * from a forward-only ResultSet read EXPORT_FETCH_SIZE at a time and are encoded straight
+     * into a fixed-size buffer that is drained to a FileChannel. The only state that grows with
+     * the row count is the PDF cross-reference table (two longs per page).
+     *
+     * progress receives the number of rows written so far. Interrupting the calling thread
+     * stops the export and deletes the partial file.
+     */
+    static class StatementExporter {
+        static final int EXPORT_FETCH_SIZE = Integer.getInteger("bank.export.fetchSize", 1000);
+        static final int BUFFER_BYTES = 64 * 1024;
+
+        static final String EXPORT_SQL = "SELECT tx_id, acc_id, tx_type, amount, tx_time, description, target_acc_id " +
+                "FROM transactions WHERE acc_id = ? ORDER BY tx_time DESC, tx_id DESC";
+
+        /** Row count for the progress bar: an index-only count on (acc_id, tx_time) plus archived rows. */
+        static long count(int accId) throws Exception {
+            try (PooledConnection c = Shards.reader(accId)) {
+                PreparedStatement p = c.prepare("SELECT COUNT(*) FROM transactions WHERE acc_id = ?");
+                p.setInt(1, accId);
+                try (ResultSet rs = p.executeQuery()) {
+                    return (rs.next() ? rs.getLong(1) : 0) + Archive.count(accId);
+                }
+            }
+        }
+
+        static long export(int accId, java.nio.file.Path out, boolean pdf, java.util.function.LongConsumer progress) throws Exception {
+            boolean ok = false;
+            try (PooledConnection c = Shards.reader(accId);
+                 java.nio.channels.FileChannel ch = java.nio.channels.FileChannel.open(out, java.nio.file.StandardOpenOption.CREATE,
+                         java.nio.file.StandardOpenOption.WRITE, java.nio.file.StandardOpenOption.TRUNCATE_EXISTING)) {
+                // a plain statement rather than the cache: this one stays open for the whole export
+                try (PreparedStatement p = c.conn.prepareStatement(EXPORT_SQL, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                    p.setFetchSize(EXPORT_FETCH_SIZE);
+                    p.setInt(1, accId);
+                    try (ResultSet rs = p.executeQuery()) {
+                        List<TxSource> sources = new ArrayList<>();
+                        sources.add(() -> rs.next() ? TransactionDAO.readTransaction(rs) : null);
+                        sources.addAll(Archive.scans(accId));
+                        TxSource history = new MergedSource(sources);
+                        ChannelWriter w = new ChannelWriter(ch, pdf ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+                        long rows = pdf ? writePdf(accId, history, w, progress) : writeCsv(history, w, progress);
+                        w.flush();
+                        ok = true;
+                        return rows;
                     }
                 }
+            } finally {
+                if (!ok) java.nio.file.Files.deleteIfExists(out);
             }
-            return false;
         }
 
-        static void setStatus(int userId, String status) throws Exception {
-            String sql = "UPDATE users SET status = ? WHERE user_id = ?";
-            try (Connection c = getConnection(); PreparedStatement p = c.prepareStatement(sql)) {
-                p.setString(1, status);
-                p.setInt(2, userId);
-                p.executeUpdate();
+        private static void checkpoint(long rows, java.util.function.LongConsumer progress) throws InterruptedException {
+            if (rows % EXPORT_FETCH_SIZE != 0) return;
+            if (Thread.currentThread().isInterrupted()) throw new InterruptedException("Export cancelled");
+            if (progress != null) progress.accept(rows);
+        }
+
+        static long writeCsv(TxSource history, ChannelWriter w, java.util.function.LongConsumer progress) throws Exception {
+            StringBuilder line = new StringBuilder(128);
+            w.write("tx_id,time,type,amount,target_acc_id,description\n");
+            long rows = 0;
+            for (Transaction t; (t = history.next()) != null; ) {
+                line.setLength(0);
+                line.append(t.txId).append(',').append(t.time).append(',').append(t.type).append(',');
+                Money.formatTo(line, t.amount).append(',');
+                if (t.targetAccId != null) line.append(t.targetAccId);
+                line.append(',');
+                csvField(line, t.description).append('\n');
+                w.write(line);
+                checkpoint(++rows, progress);
             }
+            if (progress != null) progress.accept(rows);
+            return rows;
         }
 
-        static User findById(int id) throws Exception {
-            String sql = "SELECT user_id,name,email,phone,role,status FROM users WHERE user_id = ?";
-            try (Connection c = getConnection(); PreparedStatement p = c.prepareStatement(sql)) {
-                p.setInt(1, id);
-                try (ResultSet rs = p.executeQuery()) {
-                    if (rs.next()) return new User(rs.getInt("user_id"), rs.getString("name"), rs.getString("email"),
-                                rs.getString("role"), rs.getString("status"), rs.getString("phone"));
+        static StringBuilder csvField(StringBuilder sb, String v) {
+            if (v == null) return sb;
+            boolean quote = false;
+            for (int i = 0; i < v.length() && !quote; i++) {
+                char ch = v.charAt(i);
+                quote = ch == ',' || ch == '"' || ch == '\n' || ch == '\r';
+            }
+            if (!quote) return sb.append(v);
+            sb.append('"');
+            for (int i = 0; i < v.length(); i++) {
+                char ch = v.charAt(i);
+                if (ch == '"') sb.append('"');
+                sb.append(ch);
+            }
+            return sb.append('"');
+        }
+
+        // --- minimal PDF: A4 pages of Courier text, objects written as they are produced ---
+        static final int LINES_PER_PAGE = 64;
+
+        static long writePdf(int accId, TxSource history, ChannelWriter w, java.util.function.LongConsumer progress) throws Exception {
+            // 1 = catalog, 2 = page tree (written last), 3 = font, then a content stream and a page per page
+            long[] offsets = new long[64];
+            w.write("%PDF-1.4\n");
+            offsets[1] = w.position();
+            w.write("1 0 obj\n<< /Type /Catalog /Pages 2 0 R >>\nendobj\n");
+            offsets[3] = w.position();
+            w.write("3 0 obj\n<< /Type /Font /Subtype /Type1 /BaseFont /Courier /Encoding /WinAnsiEncoding >>\nendobj\n");
+
+            StringBuilder page = new StringBuilder(LINES_PER_PAGE * 100);
+            StringBuilder line = new StringBuilder(128);
+            int nextObj = 4, pages = 0, onPage = 0;
+            long rows = 0;
+            Transaction t = history.next();
+            while (t != null || pages == 0) {
+                if (onPage == 0) {
+                    page.setLength(0);
+                    page.append("BT /F1 8 Tf 10 TL 36 806 Td\n");
+                    pdfLine(page, "Statement for account " + accId + " - page " + (pages + 1));
+                    pdfLine(page, String.format("%-19s  %-10s %14s  %-7s  %s", "Time", "Type", "Amount", "Target", "Description"));
+                    pdfLine(page, "");
+                }
+                if (t != null) {
+                    line.setLength(0);
+                    line.append(String.format("%-19s  %-10s ", t.time, t.type));
+                    int amountStart = line.length();
+                    Money.formatTo(line, t.amount);
+                    while (line.length() - amountStart < 14) line.insert(amountStart, ' ');
+                    line.append("  ").append(String.format("%-7s", t.targetAccId == null ? "" : String.valueOf(t.targetAccId))).append("  ");
+                    if (t.description != null) line.append(t.description, 0, Math.min(t.description.length(), 40));
+                    pdfLine(page, line);
+                    onPage++;
+                    checkpoint(++rows, progress);
+                    t = history.next();
+                }
+                if (onPage == LINES_PER_PAGE || t == null) {
+                    page.append("ET\n");
+                    if (offsets.length < nextObj + 2) offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                    offsets[nextObj] = w.position();
+                    w.write(nextObj + " 0 obj\n<< /Length " + page.length() + " >>\nstream\n");
+                    w.write(page);
+                    w.write("endstream\nendobj\n");
+                    offsets[nextObj + 1] = w.position();
+                    w.write((nextObj + 1) + " 0 obj\n<< /Type /Page /Parent 2 0 R /MediaBox [0 0 595 842] " +
+                            "/Resources << /Font << /F1 3 0 R >> >> /Contents " + nextObj + " 0 R >>\nendobj\n");
+                    nextObj += 2;
+                    pages++;
+                    onPage = 0;
                 }
             }
-            return null;
+
+            offsets[2] = w.position();
+            w.write("2 0 obj\n<< /Type /Pages /Count " + pages + " /Kids [");
+            for (int obj = 5; obj < nextObj; obj += 2) w.write(obj + " 0 R ");
+            w.write("] >>\nendobj\n");
+
+            long xref = w.position();
+            w.write("xref\n0 " + nextObj + "\n0000000000 65535 f \n");
+            for (int obj = 1; obj < nextObj; obj++) w.write(String.format("%010d 00000 n \n", offsets[obj]));
+            w.write("trailer\n<< /Size " + nextObj + " /Root 1 0 R >>\nstartxref\n" + xref + "\n%%EOF\n");
+            if (progress != null) progress.accept(rows);
+            return rows;
         }
 
-        static List<User> pendingUsers() throws Exception {
-            List<User> list = new ArrayList<>();
-            String sql = "SELECT user_id,name,email,phone,role,status FROM users WHERE status = 'PENDING'";
-            try (Connection c = getConnection(); PreparedStatement p = c.prepareStatement(sql);
-                 ResultSet rs = p.executeQuery()) {
-                while (rs.next()) list.add(new User(rs.getInt("user_id"), rs.getString("name"), rs.getString("email"),
-                        rs.getString("role"), rs.getString("status"), rs.getString("phone")));
+        /** Appends one line of text as a PDF string, escaped and limited to Latin-1. */
+        private static void pdfLine(StringBuilder page, CharSequence text) {
+            page.append('(');
+            for (int i = 0; i < text.length(); i++) {
+                char ch = text.charAt(i);
+                if (ch == '(' || ch == ')' || ch == '\\') page.append('\\').append(ch);
+                else if (ch < 0x20 || ch > 0xFF) page.append('?');
+                else page.append(ch);
+            }
+            page.append(") '\n");
+        }
+
+        /** Encodes text into a reusable buffer and drains it to the channel when full. */
+        static class ChannelWriter {
+            private final java.nio.channels.FileChannel ch;
+            private final java.nio.charset.CharsetEncoder encoder;
+            private final java.nio.ByteBuffer buf = java.nio.ByteBuffer.allocateDirect(BUFFER_BYTES);
+            private long written;
+
+            ChannelWriter(java.nio.channels.FileChannel ch, java.nio.charset.Charset cs) {
+                this.ch = ch;
+                this.encoder = cs.newEncoder()
+                        .onMalformedInput(java.nio.charset.CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(java.nio.charset.CodingErrorAction.REPLACE);
+            }
+
+            void write(CharSequence text) throws IOException {
+                java.nio.CharBuffer in = java.nio.CharBuffer.wrap(text);
+                while (true) {
+                    java.nio.charset.CoderResult r = encoder.encode(in, buf, true);
+                    if (r.isOverflow()) drain();
+                    else break;
+                }
+                encoder.reset();
+            }
+
+            /** Bytes written so far, including what is still buffered. */
+            long position() {
+                return written + buf.position();
+            }
+
+            void flush() throws IOException {
+                drain();
+                ch.force(false);
+            }
+
+            private void drain() throws IOException {
+                buf.flip();
+                while (buf.hasRemaining()) written += ch.write(buf);
+                buf.clear();
             }
-            return list;
         }
     }
 
-    static class AccountDAO {
-        static int createAccountForUser(int userId, double initialDeposit) throws Exception {
-            String sql = "INSERT INTO accounts (user_id, acc_type, balance) VALUES (?,?,?)";
-            try (Connection c = getConnection(); PreparedStatement p = c.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-                p.setInt(1, userId);
-                p.setString(2, "SAVINGS");
-                p.setDouble(3, initialDeposit);
-                p.executeUpdate();
-                try (ResultSet rs = p.getGeneratedKeys()) {
-                    if (rs.next()) return rs.getInt(1);
+    // ========== BATCH IMPORT ==========
+    /**
+     * Streams a bulk transfer file (payroll runs and the like) into the ledger and SQLite.
+     *
+     * Rows are read one chunk at a time and never held all at once. Each chunk's valid rows are
+     * grouped by source account; every source is debited once for as many of its rows as it
+     * can cover, the destinations are credited, and the whole chunk (per-account balance
+     * deltas, two transaction rows per transfer and the job checkpoint) commits as one SQLite
+     * transaction with executeBatch. Per-row results go to a CSV whose committed length is part
+     * of the checkpoint, so a re-run with the same job id truncates any uncommitted tail and
+     * continues after the last committed row. On sharded storage the chunk's transfers are
+     * logged with the checkpoint and committed leg by leg instead; see commitSharded().
+     *
+     * Input formats: csv "from_acc,to_acc,amount[,reference]" (a non-numeric first line is
+     * taken as a header) or fixed width with column widths given as e.g. 10,10,15 (reference
+     * is the rest of the line). Amounts are decimal major units.
+     */
+    static class BatchImporter {
+        static final int DEFAULT_CHUNK = 5000;
+        static final String CHECKPOINT_SQL = "UPDATE batch_jobs SET rows_done = ?, applied = ?, rejected = ?, " +
+                "result_offset = ?, status = ?, updated_at = CURRENT_TIMESTAMP WHERE job_id = ?";
+
+        final java.nio.file.Path input, results;
+        final String jobId;
+        final boolean fixedWidth;
+        final int[] widths;
+        final int chunkSize;
+
+        long rowsDone, applied, rejected;
+        private long resultOffset;
+
+        BatchImporter(java.nio.file.Path input, java.nio.file.Path results, String jobId, boolean fixedWidth, int[] widths, int chunkSize) {
+            this.input = input; this.results = results; this.jobId = jobId;
+            this.fixedWidth = fixedWidth; this.widths = widths; this.chunkSize = Math.max(1, chunkSize);
+        }
+
+        /** One input row and what happened to it. */
+        static class Row {
+            final long lineNo;
+            int from, to;
+            long amount;
+            String reference;
+            String error;      // null while the row is still valid
+            Row(long lineNo) { this.lineNo = lineNo; }
+        }
+
+        static void createTables(Statement stmt) throws SQLException {
+            stmt.execute("CREATE TABLE IF NOT EXISTS batch_jobs (" +
+                "job_id TEXT PRIMARY KEY, " +
+                "source TEXT, " +
+                "rows_done INTEGER NOT NULL DEFAULT 0, " +
+                "applied INTEGER NOT NULL DEFAULT 0, " +
+                "rejected INTEGER NOT NULL DEFAULT 0, " +
+                "result_offset INTEGER NOT NULL DEFAULT 0, " +
+                "status TEXT NOT NULL DEFAULT 'RUNNING', " +
+                "updated_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+        }
+
+        void run() throws Exception {
+            Ledger l = ledger();
+            String status = loadCheckpoint();
+            if ("DONE".equals(status)) {
+                System.out.println("Job " + jobId + " already finished: " + applied + " applied, " + rejected + " rejected");
+                return;
+            }
+            if (rowsDone > 0) System.out.println("Resuming job " + jobId + " after row " + rowsDone);
+
+            long start = System.nanoTime(), lastReport = start, startRows = rowsDone;
+            try (java.io.BufferedReader in = java.nio.file.Files.newBufferedReader(input, StandardCharsets.UTF_8);
+                 java.nio.channels.FileChannel out = java.nio.channels.FileChannel.open(results,
+                         java.nio.file.StandardOpenOption.CREATE, java.nio.file.StandardOpenOption.WRITE)) {
+                // drop any result lines written for a chunk that never committed
+                out.truncate(resultOffset);
+                out.position(resultOffset);
+                if (resultOffset == 0) {
+                    resultOffset += write(out, new StringBuilder("line,from_acc,to_acc,amount,status,message\n"));
+                }
+
+                long lineNo = 0, dataRows = 0;
+                List<Row> chunk = new ArrayList<>(chunkSize);
+                String line;
+                while ((line = in.readLine()) != null) {
+                    lineNo++;
+                    if (line.isBlank()) continue;
+                    if (lineNo == 1 && !fixedWidth && isHeader(line)) continue;
+                    if (++dataRows <= rowsDone) continue;   // committed by an earlier run
+                    chunk.add(parse(lineNo, line));
+                    if (chunk.size() == chunkSize) {
+                        applyChunk(l, chunk, out, false);
+                        chunk.clear();
+                        long now = System.nanoTime();
+                        if (now - lastReport > 5_000_000_000L) {
+                            lastReport = now;
+                            System.out.printf("  %d rows, %.0f rows/s%n", rowsDone, (rowsDone - startRows) / ((now - start) / 1e9));
+                        }
+                    }
                 }
+                applyChunk(l, chunk, out, true);
             }
-            return -1;
+            double secs = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Job %s done: %d rows (%d applied, %d rejected) in %.1f s, %.0f rows/s%n",
+                    jobId, rowsDone, applied, rejected, secs, (rowsDone - startRows) / Math.max(secs, 1e-9));
         }
 
-        static Account findById(int accId) throws Exception {
-            String sql = "SELECT acc_id,user_id,balance FROM accounts WHERE acc_id = ?";
-            try (Connection c = getConnection(); PreparedStatement p = c.prepareStatement(sql)) {
-                p.setInt(1, accId);
+        private String loadCheckpoint() throws Exception {
+            try (PooledConnection c = getConnection()) {
+                PreparedStatement p = c.prepare("SELECT rows_done, applied, rejected, result_offset, status FROM batch_jobs WHERE job_id = ?");
+                p.setString(1, jobId);
                 try (ResultSet rs = p.executeQuery()) {
-                    if (rs.next()) return new Account(rs.getInt("acc_id"), rs.getInt("user_id"), rs.getDouble("balance"));
+                    if (rs.next()) {
+                        rowsDone = rs.getLong(1);
+                        applied = rs.getLong(2);
+                        rejected = rs.getLong(3);
+                        resultOffset = rs.getLong(4);
+                        return rs.getString(5);
+                    }
                 }
+                PreparedStatement ins = c.prepare("INSERT INTO batch_jobs (job_id, source) VALUES (?, ?)");
+                ins.setString(1, jobId);
+                ins.setString(2, input.toString());
+                ins.executeUpdate();
             }
-            return null;
+            return "RUNNING";
         }
 
-        static Account findByUserId(int userId) throws Exception {
-            String sql = "SELECT acc_id,user_id,balance FROM accounts WHERE user_id = ?";
-            try (Connection c = getConnection(); PreparedStatement p = c.prepareStatement(sql)) {
-                p.setInt(1, userId);
-                try (ResultSet rs = p.executeQuery()) {
-                    if (rs.next()) return new Account(rs.getInt("acc_id"), rs.getInt("user_id"), rs.getDouble("balance"));
+        private static boolean isHeader(String line) {
+            char ch = line.trim().isEmpty() ? '0' : line.trim().charAt(0);
+            return !(Character.isDigit(ch) || ch == '"');
+        }
+
+        Row parse(long lineNo, String line) {
+            Row r = new Row(lineNo);
+            try {
+                String f, t, a, ref;
+                if (fixedWidth) {
+                    int p0 = Math.min(line.length(), widths[0]);
+                    int p1 = Math.min(line.length(), p0 + widths[1]);
+                    int p2 = Math.min(line.length(), p1 + widths[2]);
+                    f = line.substring(0, p0); t = line.substring(p0, p1); a = line.substring(p1, p2);
+                    ref = line.substring(p2).trim();
+                } else {
+                    String[] cols = line.split(",", 4);
+                    if (cols.length < 3) throw new IllegalArgumentException("Expected from_acc,to_acc,amount");
+                    f = cols[0]; t = cols[1]; a = cols[2];
+                    ref = cols.length > 3 ? cols[3].trim() : "";
+                    if (ref.length() >= 2 && ref.startsWith("\"") && ref.endsWith("\"")) ref = ref.substring(1, ref.length() - 1);
                 }
+                r.from = Integer.parseInt(f.trim());
+                r.to = Integer.parseInt(t.trim());
+                r.amount = Money.parse(a.trim());
+                r.reference = ref.isEmpty() ? null : ref;
+                if (r.amount <= 0) r.error = "Amount must be positive";
+                else if (r.from == r.to) r.error = "Source and destination are the same";
+            } catch (NumberFormatException | ArithmeticException e) {
+                r.error = "Unparseable row";
+            } catch (IllegalArgumentException e) {
+                r.error = e.getMessage();
             }
-            return null;
+            return r;
         }
 
-        static void updateBalance(Connection c, int accId, double newBalance) throws Exception {
-            String sql = "UPDATE accounts SET balance = ? WHERE acc_id = ?";
-            try (PreparedStatement p = c.prepareStatement(sql)) {
-                p.setDouble(1, newBalance);
-                p.setInt(2, accId);
-                p.executeUpdate();
+        private void applyChunk(Ledger l, List<Row> chunk, java.nio.channels.FileChannel out, boolean last) throws Exception {
+            // group valid rows by source, keeping file order within each source
+            Map<Integer, List<Row>> bySource = new LinkedHashMap<>();
+            for (Row r : chunk) {
+                if (r.error != null) continue;
+                if (!l.exists(r.from)) r.error = "Unknown source account";
+                else if (!l.exists(r.to)) r.error = "Unknown destination account";
+                else bySource.computeIfAbsent(r.from, k -> new ArrayList<>()).add(r);
+            }
+
+            // one debit per source account; credits wait for the commit so nothing else can spend
+            // them first, but a credit earlier in the chunk can fund the rows after it
+            DeltaMap debits = new DeltaMap(bySource.size() * 2);
+            DeltaMap credits = new DeltaMap(chunk.size() * 2);
+            long[] amounts = new long[16];
+            boolean[] accepted = new boolean[16];
+            for (Map.Entry<Integer, List<Row>> e : bySource.entrySet()) {
+                List<Row> rows = e.getValue();
+                if (amounts.length < rows.size()) {
+                    amounts = new long[rows.size()];
+                    accepted = new boolean[rows.size()];
+                }
+                for (int k = 0; k < rows.size(); k++) amounts[k] = rows.get(k).amount;
+                long pending = credits.get(e.getKey());
+                long debited = l.debitWhileFunded(e.getKey(), amounts, accepted, rows.size(), pending);
+                if (debited != 0) debits.add(e.getKey(), debited);
+                long spent = 0;
+                for (int k = 0; k < rows.size(); k++) {
+                    Row r = rows.get(k);
+                    if (!accepted[k]) {
+                        r.error = "Insufficient funds";
+                        continue;
+                    }
+                    spent += r.amount;
+                    credits.add(r.to, r.amount);
+                }
+                if (spent > debited) credits.add(e.getKey(), debited - spent);
+            }
+
+            long chunkApplied = 0, chunkRejected = 0;
+            StringBuilder report = new StringBuilder(chunk.size() * 48);
+            for (Row r : chunk) {
+                report.append(r.lineNo).append(',').append(r.from).append(',').append(r.to).append(',');
+                Money.formatTo(report, r.amount).append(',');
+                if (r.error == null) {
+                    chunkApplied++;
+                    report.append("APPLIED,\n");
+                } else {
+                    chunkRejected++;
+                    report.append("REJECTED,").append(r.error).append('\n');
+                }
+            }
+            long newOffset = resultOffset + write(out, report);
+            out.force(false);
+
+            if (l.coordinator != null) commitSharded(l, chunk, debits, newOffset, last, chunkApplied, chunkRejected);
+            else commit(l, chunk, debits, newOffset, last, chunkApplied, chunkRejected);
+            for (int k = 0; k < credits.size(); k++) {
+                if (credits.valueAt(k) != 0) l.adjust(credits.keyAt(k), credits.valueAt(k));
             }
+            rowsDone += chunk.size();
+            applied += chunkApplied;
+            rejected += chunkRejected;
+            resultOffset = newOffset;
         }
-    }
 
-    static class TransactionDAO {
-        static void record(Connection c, int accId, String type, double amount, String desc, Integer targetAccId) throws Exception {
-            String sql = "INSERT INTO transactions (acc_id, tx_type, amount, description, target_acc_id) VALUES (?,?,?,?,?)";
-            try (PreparedStatement p = c.prepareStatement(sql)) {
-                p.setInt(1, accId);
-                p.setString(2, type);
-                p.setDouble(3, amount);
-                p.setString(4, desc);
-                if (targetAccId == null) p.setNull(5, Types.INTEGER);
-                else p.setInt(5, targetAccId);
-                p.executeUpdate();
+        /** One file: the chunk's rows, balance deltas and checkpoint commit as one transaction. */
+        private void commit(Ledger l, List<Row> chunk, DeltaMap debits, long newOffset, boolean last,
+                            long chunkApplied, long chunkRejected) throws Exception {
+            List<Journal.Record> records = new ArrayList<>();
+            for (Row r : chunk) {
+                if (r.error == null) records.add(Journal.Record.transfer(r.from, r.to, r.amount, description(r)));
+            }
+            try (PooledConnection c = getConnection()) {
+                PreparedStatement ins = c.prepare(TransactionDAO.INSERT_SQL);
+                PreparedStatement ckpt = c.prepare(CHECKPOINT_SQL);
+                try {
+                    Journal.commit(c, () -> {
+                        DeltaMap sqlDeltas = new DeltaMap(records.size() * 2);
+                        RunningBalances balances = new RunningBalances(c, sqlDeltas);
+                        for (Journal.Record r : records) r.addRows(ins, null, null, balances, null);
+                        AccountDAO.applyDeltas(c, sqlDeltas);
+                        ins.executeBatch();
+                        bindCheckpoint(ckpt, chunk.size(), chunkApplied, chunkRejected, newOffset, last);
+                        ckpt.executeUpdate();
+                        return records;
+                    });
+                } catch (Exception ex) {
+                    refund(l, debits);
+                    throw ex;
+                } finally {
+                    ins.clearBatch();
+                }
             }
         }
 
-        static List<String> miniStatement(int accId, int limit) throws Exception {
-            List<String> res = new ArrayList<>();
-            String sql = "SELECT tx_time, tx_type, amount, description, target_acc_id FROM transactions WHERE acc_id = ? ORDER BY tx_time DESC LIMIT ?";
-            try (Connection c = getConnection(); PreparedStatement p = c.prepareStatement(sql)) {
-                p.setInt(1, accId);
-                p.setInt(2, limit);
-                try (ResultSet rs = p.executeQuery()) {
-                    while (rs.next()) {
-                        res.add(String.format("%s | %s | %.2f | %s",
-                                rs.getTimestamp("tx_time"), rs.getString("tx_type"), rs.getDouble("amount"),
-                                rs.getString("description")));
+        /**
+         * Sharded storage: the chunk's transfers go through the TransferCoordinator. Their
+         * xfer_log entries commit in one transaction with the checkpoint, which decides the
+         * chunk; each shard then commits its legs in one journal-backed transaction. A shard that
+         * fails hands its legs to the coordinator, and TransferCoordinator.recover() finishes any
+         * a crash cuts off, as for every other cross-shard transfer.
+         */
+        private void commitSharded(Ledger l, List<Row> chunk, DeltaMap debits, long newOffset, boolean last,
+                                   long chunkApplied, long chunkRejected) throws Exception {
+            TransferCoordinator tc = l.coordinator;
+            List<Posting> transfers = new ArrayList<>();
+            for (Row r : chunk) {
+                if (r.error != null) continue;
+                Posting p = new Posting("TRANSFER", r.from, r.to, r.amount);
+                p.description = description(r);
+                tc.reserve(p);
+                transfers.add(p);
+            }
+            try (PooledConnection c = getConnection(); Statement st = c.createStatement()) {
+                PreparedStatement ins = c.prepare(TransferCoordinator.LOG_SQL);
+                PreparedStatement ckpt = c.prepare(CHECKPOINT_SQL);
+                // the log entries must outlive a power cut once any leg is in
+                if (Journal.SYNC) st.execute("PRAGMA synchronous=FULL");
+                c.setAutoCommit(false);
+                try {
+                    for (Posting p : transfers) {
+                        TransferCoordinator.bindIntent(ins, p);
+                        ins.addBatch();
                     }
+                    ins.executeBatch();
+                    bindCheckpoint(ckpt, chunk.size(), chunkApplied, chunkRejected, newOffset, last);
+                    ckpt.executeUpdate();
+                    c.commit();
+                } catch (Exception ex) {
+                    c.rollback();
+                    for (Posting p : transfers) tc.abandon(p);
+                    refund(l, debits);
+                    throw ex;
+                } finally {
+                    ins.clearBatch();
+                    c.setAutoCommit(true);
+                    st.execute("PRAGMA synchronous=" + SYNCHRONOUS);
                 }
             }
-            return res;
+            for (int s = 0; s < Shards.count(); s++) {
+                List<Posting> legs = new ArrayList<>();
+                List<Journal.Record> records = new ArrayList<>();
+                for (Posting p : transfers) {
+                    if (Shards.of(p.accId) != s && Shards.of(p.toAccId) != s) continue;
+                    legs.add(p);
+                    records.add(Journal.Record.of(p, s));
+                }
+                if (legs.isEmpty()) continue;
+                try {
+                    commitLegs(Shards.pool(s), records);
+                } catch (Exception ex) {
+                    System.out.println("Job " + jobId + ": committing " + legs.size() + " legs in shard " + s + " failed: " + ex.getMessage());
+                    for (Posting p : legs) tc.retryLeg(p, s);
+                    continue;
+                }
+                for (Posting p : legs) p.committed();
+            }
+        }
+
+        private static void commitLegs(ConnectionPool shard, List<Journal.Record> records) throws Exception {
+            try (PooledConnection c = getConnection(shard)) {
+                PreparedStatement ins = c.prepare(TransactionDAO.INSERT_SQL);
+                PreparedStatement legs = c.prepare(TransferCoordinator.LEG_SQL);
+                try {
+                    Journal.commit(c, () -> {
+                        DeltaMap deltas = new DeltaMap(records.size() * 2);
+                        RunningBalances balances = new RunningBalances(c, deltas);
+                        for (Journal.Record r : records) r.addRows(ins, legs, null, balances, null);
+                        AccountDAO.applyDeltas(c, deltas);
+                        ins.executeBatch();
+                        legs.executeBatch();
+                        return records;
+                    });
+                } finally {
+                    ins.clearBatch();
+                    legs.clearBatch();
+                }
+            }
+        }
+
+        private void bindCheckpoint(PreparedStatement ckpt, int rows, long chunkApplied, long chunkRejected,
+                                    long newOffset, boolean last) throws SQLException {
+            ckpt.setLong(1, rowsDone + rows);
+            ckpt.setLong(2, applied + chunkApplied);
+            ckpt.setLong(3, rejected + chunkRejected);
+            ckpt.setLong(4, newOffset);
+            ckpt.setString(5, last ? "DONE" : "RUNNING");
+            ckpt.setString(6, jobId);
+        }
+
+        private String description(Row r) {
+            return r.reference == null ? "Batch " + jobId : "Batch " + jobId + ": " + r.reference;
+        }
+
+        /** Gives back a chunk's debits when it did not commit; its credits were never applied. */
+        private static void refund(Ledger l, DeltaMap debits) throws Exception {
+            for (int k = 0; k < debits.size(); k++) l.adjust(debits.keyAt(k), debits.valueAt(k));
+        }
+
+        private static long write(java.nio.channels.FileChannel out, CharSequence text) throws IOException {
+            java.nio.ByteBuffer buf = StandardCharsets.UTF_8.encode(java.nio.CharBuffer.wrap(text));
+            long n = buf.remaining();
+            while (buf.hasRemaining()) out.write(buf);
+            return n;
         }
     }
 
-    static class BankService {
-        static boolean deposit(int accId, double amount) throws Exception {
-            if (amount <= 0) return false;
-            try (Connection c = getConnection()) {
-                c.setAutoCommit(false);
-                Account acc = AccountDAO.findById(accId);
-                if (acc == null) { c.rollback(); return false; }
-                double newBal = acc.balance + amount;
-                AccountDAO.updateBalance(c, accId, newBal);
-                TransactionDAO.record(c, accId, "DEPOSIT", amount, "Deposit", null);
-                c.commit();
-                return true;
+    // ========== END-OF-DAY INTEREST ==========
+    /**
+     * Posts a day's interest to every account whose type earns it (-Dbank.interest.rates,
+     * annual percent per acc_type, default SAVINGS:3.5). Daily interest is balance * rate / 365,
+     * rounded half-even to the cent, on the ledger balance at the time the account is reached.
+     *
+     * Each shard's accounts are split into acc_id ranges that fork-join workers take in
+     * parallel. A range streams its accounts from one read cursor and commits every CHUNK of
+     * them as one journal-backed SQLite transaction: balance deltas, INTEREST transaction rows
+     * and the range's checkpoint (next acc_id to look at) in interest_ranges, which lives in
+     * the same file. Re-running a date therefore continues after the last committed chunk, and
+     * a date that has finished does nothing. The journal record carries the run date, so a
+     * chunk replayed from the journal after a crash moves the checkpoint too.
+     *
+     * In the GUI and server it runs daily at bank.interest.time (default 23:55, "off" to
+     * disable), and at startup finishes any run a crash left incomplete.
+     */
+    static final class InterestJob {
+        static final int RANGE_SIZE = Integer.getInteger("bank.interest.rangeSize", 100_000);
+        static final int CHUNK = Integer.getInteger("bank.interest.chunk", 2000);
+        /** Each worker holds a read connection for a whole range, so by default one is left for everyone else. */
+        static final int THREADS = Integer.getInteger("bank.interest.threads",
+                Math.min(Runtime.getRuntime().availableProcessors(), Math.max(1, POOL_SIZE - 1)));
+        static final String TIME = System.getProperty("bank.interest.time", "23:55");
+        /** acc_type to annual rate in millionths (3.5% is 35000). */
+        static final Map<String, Long> RATES = parseRates(System.getProperty("bank.interest.rates", "SAVINGS:3.5"));
+
+        static final String RECOVER_SQL = "UPDATE interest_ranges SET next_acc = ? + 1, paid = paid + 1, amount = amount + ? " +
+                "WHERE run_date = ? AND range_lo <= ? AND range_hi > ? AND next_acc <= ?";
+
+        private static ScheduledExecutorService scheduler;
+
+        /** One acc_id range [lo, hi) of one shard and how far its run has got. */
+        static final class Range {
+            final int shard, runDate;
+            final long lo, hi;
+            long next;
+            Range(int shard, int runDate, long lo, long hi, long next) {
+                this.shard = shard; this.runDate = runDate; this.lo = lo; this.hi = hi; this.next = next;
             }
         }
 
-        static boolean withdraw(int accId, double amount) throws Exception {
-            if (amount <= 0) return false;
-            try (Connection c = getConnection()) {
-                c.setAutoCommit(false);
-                Account acc = AccountDAO.findById(accId);
-                if (acc == null || acc.balance < amount) { c.rollback(); return false; }
-                double newBal = acc.balance - amount;
-                AccountDAO.updateBalance(c, accId, newBal);
-                TransactionDAO.record(c, accId, "WITHDRAW", amount, "Withdraw", null);
-                c.commit();
-                return true;
+        final int runDate;
+        final LongAdder scanned = new LongAdder(), paid = new LongAdder(), amount = new LongAdder();
+
+        private InterestJob(int runDate) {
+            this.runDate = runDate;
+        }
+
+        static void createTables(Statement stmt) throws SQLException {
+            stmt.execute("CREATE TABLE IF NOT EXISTS interest_ranges (" +
+                "run_date INTEGER NOT NULL, " +      // yyyymmdd
+                "range_lo INTEGER NOT NULL, " +
+                "range_hi INTEGER NOT NULL, " +
+                "next_acc INTEGER NOT NULL, " +      // range_hi once the range is done
+                "paid INTEGER NOT NULL DEFAULT 0, " +
+                "amount INTEGER NOT NULL DEFAULT 0, " +
+                "PRIMARY KEY (run_date, range_lo)) WITHOUT ROWID");
+        }
+
+        static Map<String, Long> parseRates(String spec) {
+            Map<String, Long> rates = new HashMap<>();
+            for (String part : spec.split(",")) {
+                if (part.isBlank()) continue;
+                String[] kv = part.split(":");
+                if (kv.length != 2) throw new IllegalArgumentException("Expected TYPE:percent in bank.interest.rates, got " + part);
+                rates.put(kv[0].trim().toUpperCase(), new java.math.BigDecimal(kv[1].trim()).movePointRight(4).longValueExact());
+            }
+            return rates;
+        }
+
+        /** One day's interest in cents on balance at an annual rate in millionths, rounded half-even. */
+        static long dailyInterest(long balance, long rate) {
+            if (balance <= 0 || rate <= 0) return 0;
+            long num = Math.multiplyExact(balance, rate), den = 365L * 1_000_000;
+            long q = num / den, r = num % den;
+            if (r * 2 > den || (r * 2 == den && (q & 1) == 1)) q++;
+            return q;
+        }
+
+        static int toRunDate(java.time.LocalDate d) {
+            return d.getYear() * 10000 + d.getMonthValue() * 100 + d.getDayOfMonth();
+        }
+
+        static String format(int runDate) {
+            return String.format("%04d-%02d-%02d", runDate / 10000, runDate / 100 % 100, runDate % 100);
+        }
+
+        /** Journal recovery: a replayed INTEREST record also advances its range's checkpoint. */
+        static void recovered(PreparedStatement upd, Journal.Record r) throws SQLException {
+            upd.setLong(1, r.accId);
+            upd.setLong(2, r.amount);
+            upd.setInt(3, r.toAccId);
+            upd.setLong(4, r.accId);
+            upd.setLong(5, r.accId);
+            upd.setLong(6, r.accId);
+            upd.executeUpdate();
+        }
+
+        /** Posts (or finishes posting) interest for date. Returns the job with its counters. */
+        static synchronized InterestJob run(java.time.LocalDate date) throws Exception {
+            InterestJob job = new InterestJob(toRunDate(date));
+            List<Range> todo = new ArrayList<>();
+            long donePaid = 0, doneAmount = 0;
+            for (int s = 0; s < Shards.count(); s++) {
+                for (Range r : job.ranges(s)) {
+                    if (r.next < r.hi) todo.add(r);
+                }
+                try (PooledConnection c = getReadConnection(Shards.pool(s))) {
+                    PreparedStatement q = c.prepare("SELECT COALESCE(SUM(paid), 0), COALESCE(SUM(amount), 0) FROM interest_ranges WHERE run_date = ?");
+                    q.setInt(1, job.runDate);
+                    try (ResultSet rs = q.executeQuery()) {
+                        rs.next();
+                        donePaid += rs.getLong(1);
+                        doneAmount += rs.getLong(2);
+                    }
+                }
+            }
+            String day = format(job.runDate);
+            if (todo.isEmpty()) {
+                System.out.println("Interest for " + day + " already posted: " + donePaid + " accounts, " + Money.format(doneAmount));
+                return job;
+            }
+            if (donePaid > 0) System.out.println("Resuming interest for " + day + ": " + todo.size() + " ranges left");
+
+            long start = System.nanoTime();
+            ForkJoinPool workers = new ForkJoinPool(Math.max(1, THREADS));
+            ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor();
+            progress.scheduleAtFixedRate(() -> System.out.printf("  %d accounts, %.0f accounts/s%n",
+                    job.scanned.sum(), job.scanned.sum() / ((System.nanoTime() - start) / 1e9)), 5, 5, TimeUnit.SECONDS);
+            try {
+                workers.invoke(job.new RangeTask(todo));
+            } finally {
+                progress.shutdownNow();
+                workers.shutdown();
+            }
+            double secs = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Interest for %s done: %d accounts scanned, %d paid %s in %.1f s, %.0f accounts/s%n",
+                    day, job.scanned.sum(), donePaid + job.paid.sum(), Money.format(doneAmount + job.amount.sum()),
+                    secs, job.scanned.sum() / Math.max(secs, 1e-9));
+            return job;
+        }
+
+        /** Splits its ranges in half until each task has one. */
+        private final class RangeTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+            private final List<Range> ranges;
+            RangeTask(List<Range> ranges) { this.ranges = ranges; }
+
+            @Override
+            protected void compute() {
+                if (ranges.size() > 1) {
+                    int mid = ranges.size() / 2;
+                    invokeAll(new RangeTask(ranges.subList(0, mid)), new RangeTask(ranges.subList(mid, ranges.size())));
+                    return;
+                }
+                try {
+                    process(ranges.get(0));
+                } catch (Exception e) {
+                    throw new IllegalStateException("Interest range " + ranges.get(0).lo + ".." + ranges.get(0).hi + " failed", e);
+                }
             }
         }
 
-        static boolean transfer(int fromAcc, int toAcc, double amount) throws Exception {
-            if (amount <= 0 || fromAcc == toAcc) return false;
-            try (Connection c = getConnection()) {
+        /** The shard's ranges for this date, recording them on the first run so a resume splits the same way. */
+        private List<Range> ranges(int shard) throws Exception {
+            List<Range> list = new ArrayList<>();
+            try (PooledConnection c = getConnection(Shards.pool(shard))) {
+                PreparedStatement q = c.prepare("SELECT range_lo, range_hi, next_acc FROM interest_ranges WHERE run_date = ? ORDER BY range_lo");
+                q.setInt(1, runDate);
+                try (ResultSet rs = q.executeQuery()) {
+                    while (rs.next()) list.add(new Range(shard, runDate, rs.getLong(1), rs.getLong(2), rs.getLong(3)));
+                }
+                if (!list.isEmpty()) return list;
+                long min, max;
+                try (ResultSet rs = c.prepare("SELECT MIN(acc_id), MAX(acc_id) FROM accounts").executeQuery()) {
+                    rs.next();
+                    min = rs.getLong(1);
+                    if (rs.wasNull()) return list;
+                    max = rs.getLong(2);
+                }
+                PreparedStatement ins = c.prepare("INSERT INTO interest_ranges (run_date, range_lo, range_hi, next_acc) VALUES (?,?,?,?)");
                 c.setAutoCommit(false);
-                Account aFrom = AccountDAO.findById(fromAcc);
-                Account aTo = AccountDAO.findById(toAcc);
-                if (aFrom == null || aTo == null || aFrom.balance < amount) { c.rollback(); return false; }
-                AccountDAO.updateBalance(c, fromAcc, aFrom.balance - amount);
-                AccountDAO.updateBalance(c, toAcc, aTo.balance + amount);
-                TransactionDAO.record(c, fromAcc, "TRANSFER", amount, "Transfer to " + toAcc, toAcc);
-                TransactionDAO.record(c, toAcc, "DEPOSIT", amount, "Transfer from " + fromAcc, fromAcc);
-                c.commit();
-                return true;
+                try {
+                    for (long lo = min; lo <= max; lo += RANGE_SIZE) {
+                        Range r = new Range(shard, runDate, lo, Math.min(lo + RANGE_SIZE, max + 1), lo);
+                        ins.setInt(1, runDate);
+                        ins.setLong(2, r.lo);
+                        ins.setLong(3, r.hi);
+                        ins.setLong(4, r.next);
+                        ins.executeUpdate();
+                        list.add(r);
+                    }
+                    c.commit();
+                } catch (SQLException e) {
+                    c.rollback();
+                    throw e;
+                } finally {
+                    c.setAutoCommit(true);
+                }
+            }
+            return list;
+        }
+
+        /** Streams r's remaining accounts and posts their interest CHUNK accounts per commit. */
+        private void process(Range r) throws Exception {
+            Ledger l = ledger();
+            int[] ids = new int[CHUNK];
+            long[] amounts = new long[CHUNK];
+            int n = 0, seen = 0;
+            try (PooledConnection c = getReadConnection(Shards.pool(r.shard))) {
+                PreparedStatement q = c.prepare("SELECT acc_id, acc_type, balance FROM accounts WHERE acc_id >= ? AND acc_id < ? ORDER BY acc_id");
+                q.setLong(1, r.next);
+                q.setLong(2, r.hi);
+                q.setFetchSize(CHUNK);
+                try (ResultSet rs = q.executeQuery()) {
+                    while (rs.next()) {
+                        int acc = rs.getInt(1);
+                        Long rate = RATES.get(rs.getString(2));
+                        l.register(acc, rs.getLong(3));   // no-op if loaded; saves slot() a second connection
+                        long interest = rate == null ? 0 : dailyInterest(l.balance(acc), rate);
+                        if (interest > 0) {
+                            ids[n] = acc;
+                            amounts[n++] = interest;
+                        }
+                        if (++seen == CHUNK) {
+                            commit(l, r, ids, amounts, n, acc + 1L);
+                            scanned.add(seen);
+                            n = seen = 0;
+                        }
+                    }
+                }
+            }
+            commit(l, r, ids, amounts, n, r.hi);
+            scanned.add(seen);
+        }
+
+        private void commit(Ledger l, Range r, int[] ids, long[] amounts, int n, long next) throws Exception {
+            List<Journal.Record> records = new ArrayList<>(n);
+            long total = 0;
+            for (int k = 0; k < n; k++) {
+                records.add(Journal.Record.interest(ids[k], amounts[k], runDate));
+                total += amounts[k];
+            }
+            long chunkTotal = total;
+            try (PooledConnection c = getConnection(Shards.pool(r.shard))) {
+                PreparedStatement ins = c.prepare(TransactionDAO.INSERT_SQL);
+                PreparedStatement ckpt = c.prepare("UPDATE interest_ranges SET next_acc = ?, paid = paid + ?, amount = amount + ? " +
+                        "WHERE run_date = ? AND range_lo = ?");
+                try {
+                    Journal.commit(c, () -> {
+                        DeltaMap deltas = new DeltaMap(n * 2 + 2);
+                        RunningBalances balances = new RunningBalances(c, deltas);
+                        for (Journal.Record rec : records) rec.addRows(ins, null, null, balances, null);
+                        AccountDAO.applyDeltas(c, deltas);
+                        ins.executeBatch();
+                        ckpt.setLong(1, next);
+                        ckpt.setLong(2, n);
+                        ckpt.setLong(3, chunkTotal);
+                        ckpt.setInt(4, runDate);
+                        ckpt.setLong(5, r.lo);
+                        ckpt.executeUpdate();
+                        return records;
+                    });
+                } finally {
+                    ins.clearBatch();
+                }
+            }
+            // credited only once saved, so nothing can spend interest a failed commit takes back
+            for (int k = 0; k < n; k++) l.adjust(ids[k], amounts[k]);
+            r.next = next;
+            paid.add(n);
+            amount.add(total);
+        }
+
+        /** Dates with a run that has not finished, oldest first. */
+        static List<java.time.LocalDate> unfinished() throws Exception {
+            TreeSet<Integer> dates = new TreeSet<>();
+            for (int s = 0; s < Shards.count(); s++) {
+                try (PooledConnection c = getReadConnection(Shards.pool(s));
+                     ResultSet rs = c.prepare("SELECT DISTINCT run_date FROM interest_ranges WHERE next_acc < range_hi").executeQuery()) {
+                    while (rs.next()) dates.add(rs.getInt(1));
+                }
             }
+            List<java.time.LocalDate> list = new ArrayList<>();
+            for (int d : dates) list.add(java.time.LocalDate.of(d / 10000, d / 100 % 100, d % 100));
+            return list;
+        }
+
+        /** Finishes interrupted runs now, then runs today's interest at TIME every day on a daemon thread. */
+        static synchronized void schedule() {
+            if (scheduler != null || "off".equalsIgnoreCase(TIME)) return;
+            java.time.LocalTime at = java.time.LocalTime.parse(TIME);
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "interest");
+                t.setDaemon(true);
+                return t;
+            });
+            scheduler.execute(() -> {
+                try {
+                    for (java.time.LocalDate d : unfinished()) run(d);
+                } catch (Exception e) {
+                    System.out.println("Interest resume failed: " + e.getMessage());
+                }
+            });
+            scheduleNext(at);
+        }
+
+        /** One-shot per day, re-armed each time so the run stays at the wall-clock time across DST changes. */
+        private static void scheduleNext(java.time.LocalTime at) {
+            java.time.ZoneId zone = java.time.ZoneId.systemDefault();
+            java.time.ZonedDateTime now = java.time.ZonedDateTime.now(zone);
+            java.time.ZonedDateTime next = java.time.ZonedDateTime.of(now.toLocalDate(), at, zone);
+            if (!next.isAfter(now)) next = java.time.ZonedDateTime.of(now.toLocalDate().plusDays(1), at, zone);
+            java.time.LocalDate day = next.toLocalDate();
+            scheduler.schedule(() -> {
+                try {
+                    run(day);
+                } catch (Exception e) {
+                    System.out.println("Interest run for " + day + " failed: " + e.getMessage());
+                }
+                scheduleNext(at);
+            }, java.time.Duration.between(now, next).toMillis(), TimeUnit.MILLISECONDS);
         }
     }
 
     public static void main(String[] args) {
+        Startup.begin();   // start offsets in the startup profile are from here
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            Ledger l = ledger;
+            if (l != null) {
+                l.shutdown();
+                System.out.println(l.writerStats());
+            }
+            for (Journal j : Journal.all()) {
+                try {
+                    j.snapshot();
+                } catch (Exception e) {
+                    System.out.println("Journal snapshot failed: " + e.getMessage());
+                }
+                System.out.println(j.stats());
+            }
+            for (int s = 0; s < Shards.count(); s++) System.out.println(Shards.pool(s).stats());
+            System.out.print(Metrics.report());
+            Metrics.dump();
+            pool().close();
+        }, "pool-shutdown"));
+        
+        if (Arrays.asList(args).contains("--server")) {
+            runServer(args);
+            return;
+        }
+        if (option(args, "--import", null) != null) {
+            runImport(args);
+            return;
+        }
+        if (Arrays.asList(args).contains("--archive")) {
+            runArchive(args);
+            return;
+        }
+        if (Arrays.asList(args).contains("--interest")) {
+            runInterest(args);
+            return;
+        }
+        if (Arrays.asList(args).contains("--loadtest")) {
+            runLoadTest(args);
+            return;
+        }
+        if (Arrays.asList(args).contains("--journal-verify") || Arrays.asList(args).contains("--journal-repair")) {
+            runJournalCheck(Arrays.asList(args).contains("--journal-repair"));
+            return;
+        }
+        // Database start-up runs on a worker while the EDT builds the login screen
+        AsyncBank.start();
+        if (Arrays.asList(args).contains("--training-run")) {
+            runTraining();
+            return;
+        }
         SwingUtilities.invokeLater(() -> new BankSystemSQLite());
     }
+    
+    /**
+     * AppCDS training run: java -XX:ArchiveClassesAtExit=bank.jsa BankSystemSQLite --training-run
+     * goes through a normal start-up to the login screen and exits, so the archive holds the
+     * classes a real start loads; later starts use it with -XX:SharedArchiveFile=bank.jsa.
+     * Without a display only the database side of start-up is exercised.
+     */
+    static void runTraining() {
+        try {
+            if (GraphicsEnvironment.isHeadless()) {
+                System.out.println("No display; training on database start-up only");
+                AsyncBank.start().get();
+                Startup.finish();
+            } else {
+                CompletableFuture<Void> shown = new CompletableFuture<>();
+                SwingUtilities.invokeAndWait(() -> new BankSystemSQLite().addWindowListener(new WindowAdapter() {
+                    @Override
+                    public void windowOpened(WindowEvent e) { shown.complete(null); }
+                }));
+                shown.get();
+                AsyncBank.start().get();
+                Startup.finish();
+            }
+        } catch (Exception e) {
+            System.out.println("Training run failed: " + AsyncBank.rootCause(e).getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+    
+    /** Value of a --name=value argument, or def. */
+    static String option(String[] args, String name, String def) {
+        for (String a : args) {
+            if (a.startsWith(name + "=")) return a.substring(name.length() + 1);
+        }
+        return def;
+    }
+    
+    /**
+     * Batch mode: java BankSystemSQLite --import=payroll.csv [--format=csv|fixed] [--widths=10,10,15]
+     *             [--job=ID] [--results=FILE] [--chunk=5000]
+     * Re-running with the same job id resumes from the last committed chunk.
+     */
+    static void runImport(String[] args) {
+        java.nio.file.Path in = java.nio.file.Paths.get(option(args, "--import", null));
+        String job = option(args, "--job", in.getFileName().toString());
+        java.nio.file.Path out = java.nio.file.Paths.get(option(args, "--results", in + ".results.csv"));
+        boolean fixed = "fixed".equalsIgnoreCase(option(args, "--format", "csv"));
+        int[] widths = Arrays.stream(option(args, "--widths", "10,10,15").split(",")).mapToInt(w -> Integer.parseInt(w.trim())).toArray();
+        int chunk = Integer.parseInt(option(args, "--chunk", String.valueOf(BatchImporter.DEFAULT_CHUNK)));
+        try {
+            initializeDatabase();
+            new BatchImporter(in, out, job, fixed, widths, chunk).run();
+        } catch (Exception ex) {
+            System.out.println("Import failed: " + ex.getMessage());
+            ex.printStackTrace();
+            System.exit(1);
+        }
+    }
+    
+    /** One archive run: java BankSystemSQLite --archive [--days=365] */
+    static void runArchive(String[] args) {
+        int days = Integer.parseInt(option(args, "--days", String.valueOf(Archive.AGE_DAYS)));
+        try {
+            initializeDatabase();
+            long rows = Archive.archive(Archive.cutoff(days));
+            if (rows == 0) System.out.println("Nothing older than " + days + " days to archive");
+        } catch (Exception ex) {
+            System.out.println("Archive failed: " + ex.getMessage());
+            ex.printStackTrace();
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * End-of-day interest: java BankSystemSQLite --interest [--date=2024-06-30]
+     * Posts the date's interest (default today); re-running a date resumes or does nothing.
+     */
+    static void runInterest(String[] args) {
+        try {
+            java.time.LocalDate date = java.time.LocalDate.parse(option(args, "--date", java.time.LocalDate.now().toString()));
+            initializeDatabase();
+            ledger();
+            InterestJob.run(date);
+        } catch (Exception ex) {
+            System.out.println("Interest run failed: " + AsyncBank.rootCause(ex).getMessage());
+            ex.printStackTrace();
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * Synthetic load against a scratch database, recreated on every run:
+     * java BankSystemSQLite --loadtest [--db=loadtest.db] [--users=1000] [--clients=16]
+     *     [--seconds=30 | --ops=N] [--mix=balance:40,transfer:20,...] [--initial=1000.00]
+     *     [--max-amount=100.00] [--hot=N] [--seed=1] [--keys | --retries=PCT]
+     * --keys sends an idempotency key with every posting; --retries=PCT also repeats PCT% of them.
+     */
+    static void runLoadTest(String[] args) {
+        try {
+            java.nio.file.Path db = java.nio.file.Paths.get(option(args, "--db", "loadtest.db")).toAbsolutePath();
+            if (db.equals(java.nio.file.Paths.get(DB_URL.substring("jdbc:sqlite:".length())).toAbsolutePath())) {
+                System.out.println("Refusing to use " + db + " as a scratch database");
+                System.exit(1);
+            }
+            try (java.nio.file.DirectoryStream<java.nio.file.Path> ds = java.nio.file.Files.newDirectoryStream(db.getParent(), db.getFileName() + "*")) {
+                for (java.nio.file.Path f : ds) {
+                    String rest = f.getFileName().toString().substring(db.getFileName().toString().length());
+                    // the file itself, its WAL/SHM/rollback journal, event journal, archive and shard files
+                    if (rest.matches("|-wal|-shm|-journal|\\.journal|\\.archive|\\.shard\\d+.*")) deleteRecursively(f);
+                }
+            }
+            long ops = Long.parseLong(option(args, "--ops", "0"));
+            LoadGenerator gen = new LoadGenerator(
+                    Integer.parseInt(option(args, "--users", "1000")),
+                    Integer.parseInt(option(args, "--clients", "16")),
+                    Long.parseLong(option(args, "--seconds", ops > 0 ? "0" : "30")),
+                    ops,
+                    option(args, "--mix", LoadGenerator.DEFAULT_MIX),
+                    Money.parse(option(args, "--initial", "1000.00")),
+                    Money.parse(option(args, "--max-amount", "100.00")),
+                    Integer.parseInt(option(args, "--hot", "0")),
+                    Long.parseLong(option(args, "--seed", "1")));
+            gen.retryPercent = Integer.parseInt(option(args, "--retries", Arrays.asList(args).contains("--keys") ? "0" : "-1"));
+            useDatabase("jdbc:sqlite:" + db);
+            initializeDatabase();
+            gen.populate();
+            if (!gen.run()) System.exit(2);
+        } catch (Exception ex) {
+            System.out.println("Load test failed: " + ex.getMessage());
+            ex.printStackTrace();
+            System.exit(1);
+        }
+    }
+    
+    static void deleteRecursively(java.nio.file.Path path) throws IOException {
+        if (!java.nio.file.Files.exists(path)) return;
+        try (java.util.stream.Stream<java.nio.file.Path> walk = java.nio.file.Files.walk(path)) {
+            for (java.nio.file.Path p : (Iterable<java.nio.file.Path>) walk.sorted(Comparator.reverseOrder())::iterator) {
+                java.nio.file.Files.delete(p);
+            }
+        }
+    }
+    
+    /** Compares the accounts table with the journal: java BankSystemSQLite --journal-verify | --journal-repair */
+    static void runJournalCheck(boolean repair) {
+        try {
+            initializeDatabase();
+            long bad = 0;
+            for (int s = 0; s < Shards.count(); s++) bad += Journal.open(Shards.pool(s)).verify(repair);
+            if (bad > 0 && !repair) System.exit(2);
+        } catch (Exception ex) {
+            System.out.println("Journal check failed: " + ex.getMessage());
+            ex.printStackTrace();
+            System.exit(1);
+        }
+    }
+    
+    /** Headless mode: java BankSystemSQLite --server [--port=8080] */
+    static void runServer(String[] args) {
+        int port = Integer.parseInt(option(args, "--port", String.valueOf(BankServer.DEFAULT_PORT)));
+        // The JDK server keeps only 200 idle keep-alive connections by default
+        if (System.getProperty("sun.net.httpserver.maxIdleConnections") == null) {
+            System.setProperty("sun.net.httpserver.maxIdleConnections", "10000");
+        }
+        try {
+            initializeDatabase();
+            ledger();
+            Archive.schedule();
+            InterestJob.schedule();
+            Metrics.schedule();
+            new BankServer(port).start();
+        } catch (Exception ex) {
+            System.out.println("Server startup failed: " + ex.getMessage());
+            ex.printStackTrace();
+            System.exit(1);
+        }
+    }
 }
@@ -0,0 +1,71 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The login path: the original UserDAO.findByEmail + verifyPassword pair, and the single-query
+ * UserDAO.authenticate. {@code hotUsers} limits logins to the first N users so the credential
+ * cache can be measured warm (hotUsers &lt;= bank.userCache.size) or cold (hotUsers = users).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AuthBenchmark {
+    @Param("100000")
+    public int users;
+
+    @Param({"1000", "100000"})
+    public int hotUsers;
+
+    BenchDatabase db;
+    SplittableRandom rnd;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        db = BenchDatabase.create(users, 0);
+        rnd = new SplittableRandom(BenchDatabase.SEED);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        db.close();
+    }
+
+    @Benchmark
+    public void login(Blackhole bh) {
+        int i = 1 + rnd.nextInt(Math.min(users, hotUsers));
+        String email = BenchDatabase.email(i);
+        bh.consume(Bank.findByEmail(email));
+        bh.consume(Bank.verifyPassword(email, BenchDatabase.password(i)));
+    }
+
+    @Benchmark
+    public Object authenticate() {
+        int i = 1 + rnd.nextInt(Math.min(users, hotUsers));
+        return Bank.authenticate(BenchDatabase.email(i), BenchDatabase.password(i));
+    }
+
+    @Benchmark
+    public Object findByEmail() {
+        return Bank.findByEmail(BenchDatabase.email(1 + rnd.nextInt(Math.min(users, hotUsers))));
+    }
+}
@@ -0,0 +1,215 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.List;
+
+/**
+ * Bridge to the application's static API. BankSystemSQLite and its nested DAOs live in the
+ * default package, which named packages cannot import, so the methods are bound once as
+ * constant method handles and invoked exactly.
+ */
+final class Bank {
+    private Bank() { }
+
+    static final MethodHandle USE_DATABASE = bind("BankSystemSQLite", "useDatabase", String.class);
+    static final MethodHandle INIT_DATABASE = bind("BankSystemSQLite", "initializeDatabase");
+    static final MethodHandle HASH = bind("BankSystemSQLite", "hash", String.class, String.class);
+    static final MethodHandle BYTES_TO_HEX = bind("BankSystemSQLite", "bytesToHex", byte[].class);
+    static final MethodHandle GENERATE_SALT = bind("BankSystemSQLite", "generateSalt");
+    static final MethodHandle DEPOSIT = bind("BankSystemSQLite$BankService", "deposit", int.class, long.class);
+    static final MethodHandle BALANCE = bind("BankSystemSQLite$BankService", "balance", int.class);
+    static final MethodHandle WITHDRAW = bind("BankSystemSQLite$BankService", "withdraw", int.class, long.class);
+    static final MethodHandle TRANSFER = bind("BankSystemSQLite$BankService", "transfer", int.class, int.class, long.class);
+    static final MethodHandle FIND_BY_EMAIL = bind("BankSystemSQLite$UserDAO", "findByEmail", String.class);
+    static final MethodHandle AUTHENTICATE = bind("BankSystemSQLite$UserDAO", "authenticate", String.class, String.class);
+    static final MethodHandle VERIFY_PASSWORD = bind("BankSystemSQLite$UserDAO", "verifyPassword", String.class, String.class);
+    static final MethodHandle FIND_ACCOUNT = bind("BankSystemSQLite$AccountDAO", "findById", int.class);
+    static final MethodHandle MINI_STATEMENT = bind("BankSystemSQLite$TransactionDAO", "miniStatement", int.class, int.class);
+    static final MethodHandle STATEMENT = bind("BankSystemSQLite$TransactionDAO", "statement",
+            int.class, String.class, String.class, type("BankSystemSQLite$StatementCursor"), int.class);
+    static final MethodHandle SEARCH_USERS = bind("BankSystemSQLite$UserDAO", "search", String.class, int.class, int.class);
+    static final MethodHandle CONFIGURE_VELOCITY = bind("BankSystemSQLite$Velocity", "configure", String.class);
+    static final MethodHandle VELOCITY_ADMIT = bind("BankSystemSQLite$Velocity", "admit", int.class, int.class, long.class, long.class);
+
+    static void useDatabase(String url) {
+        try {
+            USE_DATABASE.invokeExact(url);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void initializeDatabase() {
+        try {
+            INIT_DATABASE.invokeExact();
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static String hash(String password, String salt) {
+        try {
+            return (String) HASH.invokeExact(password, salt);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static String bytesToHex(byte[] b) {
+        try {
+            return (String) BYTES_TO_HEX.invokeExact(b);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static String generateSalt() {
+        try {
+            return (String) GENERATE_SALT.invokeExact();
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static boolean deposit(int accId, long amount) {
+        try {
+            return (boolean) DEPOSIT.invokeExact(accId, amount);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static long balance(int accId) {
+        try {
+            return (long) BALANCE.invokeExact(accId);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static boolean withdraw(int accId, long amount) {
+        try {
+            return (boolean) WITHDRAW.invokeExact(accId, amount);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static boolean transfer(int fromAcc, int toAcc, long amount) {
+        try {
+            return (boolean) TRANSFER.invokeExact(fromAcc, toAcc, amount);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object findByEmail(String email) {
+        try {
+            return (Object) FIND_BY_EMAIL.invokeExact(email);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object authenticate(String email, String password) {
+        try {
+            return (Object) AUTHENTICATE.invokeExact(email, password);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static boolean verifyPassword(String email, String password) {
+        try {
+            return (boolean) VERIFY_PASSWORD.invokeExact(email, password);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object findAccount(int accId) {
+        try {
+            return (Object) FIND_ACCOUNT.invokeExact(accId);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static List<?> miniStatement(int accId, int limit) {
+        try {
+            return (List<?>) MINI_STATEMENT.invokeExact(accId, limit);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object statement(int accId, String from, String to, int pageSize) {
+        try {
+            return (Object) STATEMENT.invokeExact(accId, from, to, (Object) null, pageSize);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static List<?> searchUsers(String text, int afterUserId, int limit) {
+        try {
+            return (List<?>) SEARCH_USERS.invokeExact(text, afterUserId, limit);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void configureVelocity(String rules) {
+        try {
+            CONFIGURE_VELOCITY.invokeExact(rules);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static boolean velocityAdmit(int accId, int toAccId, long amount, long now) {
+        try {
+            return (boolean) VELOCITY_ADMIT.invokeExact(accId, toAccId, amount, now);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /** Looks up a static method, erasing the application's own (non-public) types to Object. */
+    private static MethodHandle bind(String className, String name, Class<?>... params) {
+        try {
+            Method m = Class.forName(className).getDeclaredMethod(name, params);
+            m.setAccessible(true);
+            MethodHandle mh = MethodHandles.lookup().unreflect(m);
+            MethodType t = mh.type();
+            for (int i = 0; i < t.parameterCount(); i++) {
+                if (isAppType(t.parameterType(i))) t = t.changeParameterType(i, Object.class);
+            }
+            if (isAppType(t.returnType())) t = t.changeReturnType(Object.class);
+            return mh.asType(t);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static boolean isAppType(Class<?> c) {
+        return c.getName().startsWith("BankSystemSQLite");
+    }
+
+    private static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException) return (RuntimeException) t;
+        if (t instanceof Error) throw (Error) t;
+        return new RuntimeException(t);
+    }
+}
@@ -0,0 +1,120 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Random;
+
+/**
+ * A temporary bankdb file seeded with a reproducible data set: {@code users} customers, each
+ * with one account, and {@code transactions} rows spread over the accounts. Every run with the
+ * same sizes produces the same rows.
+ */
+final class BenchDatabase implements AutoCloseable {
+    static final long SEED = 42L;
+    /** In cents, like every amount in the application. */
+    static final long OPENING_BALANCE = 100_000_000_000L;
+    static final LocalDateTime BASE_TIME = LocalDateTime.of(2024, 1, 1, 0, 0);
+    static final DateTimeFormatter SQLITE_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    final Path file;
+    final String url;
+    final int users;
+
+    private BenchDatabase(Path file, int users) {
+        this.file = file;
+        this.url = "jdbc:sqlite:" + file;
+        this.users = users;
+    }
+
+    static String email(int i) {
+        return "user" + i + "@bench.local";
+    }
+
+    static String password(int i) {
+        return "password" + i;
+    }
+
+    /** Account ids are assigned 1..users in insert order. */
+    static BenchDatabase create(int users, long transactions) throws Exception {
+        Path file = Files.createTempFile("bankbench-", ".db");
+        Files.delete(file);
+        BenchDatabase db = new BenchDatabase(file, users);
+        Bank.useDatabase(db.url);
+        Bank.initializeDatabase();
+        db.seed(transactions);
+        // reopen so the ledger warm-loads the seeded balances
+        Bank.useDatabase(db.url);
+        return db;
+    }
+
+    private void seed(long transactions) throws SQLException {
+        Random rnd = new Random(SEED);
+        try (Connection c = DriverManager.getConnection(url)) {
+            c.setAutoCommit(false);
+            try (PreparedStatement u = c.prepareStatement(
+                    "INSERT INTO users (user_id,name,email,phone,role,password_hash,salt,status) VALUES (?,?,?,?,?,?,?,'ACTIVE')");
+                 PreparedStatement a = c.prepareStatement(
+                    "INSERT INTO accounts (acc_id,user_id,acc_type,balance) VALUES (?,?,'SAVINGS',?)")) {
+                for (int i = 1; i <= users; i++) {
+                    String salt = Bank.generateSalt();
+                    u.setInt(1, i);
+                    u.setString(2, "User " + i);
+                    u.setString(3, email(i));
+                    u.setString(4, String.format("9%09d", i));
+                    u.setString(5, "CUSTOMER");
+                    u.setString(6, Bank.hash(password(i), salt));
+                    u.setString(7, salt);
+                    u.addBatch();
+                    a.setInt(1, i);
+                    a.setInt(2, i);
+                    a.setLong(3, OPENING_BALANCE);
+                    a.addBatch();
+                    if (i % 10_000 == 0) {
+                        u.executeBatch();
+                        a.executeBatch();
+                    }
+                }
+                u.executeBatch();
+                a.executeBatch();
+            }
+            try (PreparedStatement t = c.prepareStatement(
+                    "INSERT INTO transactions (acc_id,tx_type,amount,tx_time,description,target_acc_id) VALUES (?,?,?,?,?,?)")) {
+                for (long n = 0; n < transactions; n++) {
+                    int acc = 1 + rnd.nextInt(users);
+                    t.setInt(1, acc);
+                    t.setString(2, rnd.nextBoolean() ? "DEPOSIT" : "WITHDRAW");
+                    t.setLong(3, 1 + rnd.nextInt(100_000));
+                    t.setString(4, BASE_TIME.plusSeconds(n).format(SQLITE_TIME));
+                    t.setString(5, "Seed");
+                    t.setNull(6, java.sql.Types.INTEGER);
+                    t.addBatch();
+                    if (n % 50_000 == 49_999) {
+                        t.executeBatch();
+                        c.commit();
+                    }
+                }
+                t.executeBatch();
+            }
+            c.commit();
+            try (Statement s = c.createStatement()) {
+                s.execute("ANALYZE");
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        Bank.useDatabase("jdbc:sqlite::memory:");
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(Path.of(file + "-wal"));
+        Files.deleteIfExists(Path.of(file + "-shm"));
+    }
+}
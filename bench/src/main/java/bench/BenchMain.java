@@ -0,0 +1,26 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs JMH and, unless the caller chose otherwise, writes JSON results to
+ * {@code jmh-result.json} so runs can be diffed or fed to a JMH visualizer.
+ */
+public final class BenchMain {
+    private BenchMain() { }
+
+    public static void main(String[] args) throws Exception {
+        List<String> argv = new ArrayList<>(Arrays.asList(args));
+        if (!argv.contains("-rf")) {
+            argv.add("-rf");
+            argv.add("json");
+        }
+        if (!argv.contains("-rff")) {
+            argv.add("-rff");
+            argv.add("jmh-result.json");
+        }
+        org.openjdk.jmh.Main.main(argv.toArray(new String[0]));
+    }
+}
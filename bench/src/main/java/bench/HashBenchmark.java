@@ -0,0 +1,44 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Password hashing and hex encoding, no database. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HashBenchmark {
+    byte[] digest;
+    String salt;
+
+    @Setup
+    public void setup() {
+        digest = new byte[32];
+        new Random(BenchDatabase.SEED).nextBytes(digest);
+        salt = Bank.bytesToHex(new byte[16]);
+    }
+
+    @Benchmark
+    public String hash() {
+        return Bank.hash("correct horse battery staple", salt);
+    }
+
+    @Benchmark
+    public String bytesToHex() {
+        return Bank.bytesToHex(digest);
+    }
+}
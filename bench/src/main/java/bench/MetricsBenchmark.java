@@ -0,0 +1,64 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the latency timers: the same calls with -Dbank.metrics.enabled true and false.
+ * BankService.balance is an in-memory read, so it shows the fixed per-call overhead;
+ * AccountDAO.findById shows it against a real SQLite query.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+    @Param({"true", "false"})
+    public String enabled;
+
+    @Param("10000")
+    public int accounts;
+
+    BenchDatabase db;
+    SplittableRandom rnd;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        // read once when the timers class initializes, which happens on the first timed call below
+        System.setProperty("bank.metrics.enabled", enabled);
+        db = BenchDatabase.create(accounts, 0);
+        rnd = new SplittableRandom(BenchDatabase.SEED);
+        for (int i = 1; i <= accounts; i++) Bank.balance(i);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        db.close();
+    }
+
+    @Benchmark
+    public long balance() {
+        return Bank.balance(1 + rnd.nextInt(accounts));
+    }
+
+    @Benchmark
+    public Object findAccount() {
+        return Bank.findAccount(1 + rnd.nextInt(accounts));
+    }
+}
@@ -0,0 +1,104 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BankService deposit/withdraw/transfer throughput. The single-threaded variants spread
+ * postings over every account; the contended variants run 16 threads against {@code hot}
+ * accounts so they fight over the same rows and ledger stripes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PostingBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Db {
+        @Param("10000")
+        public int accounts;
+
+        @Param("4")
+        public int hot;
+
+        BenchDatabase db;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            db = BenchDatabase.create(accounts, 0);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            db.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        SplittableRandom rnd;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            rnd = new SplittableRandom(BenchDatabase.SEED + Thread.currentThread().getId());
+        }
+
+        int any(Db db) {
+            return 1 + rnd.nextInt(db.accounts);
+        }
+
+        int hot(Db db) {
+            return 1 + rnd.nextInt(db.hot);
+        }
+    }
+
+    @Benchmark
+    public boolean deposit(Db db, Client c) {
+        return Bank.deposit(c.any(db), 1000L);
+    }
+
+    @Benchmark
+    public boolean withdraw(Db db, Client c) {
+        return Bank.withdraw(c.any(db), 1000L);
+    }
+
+    @Benchmark
+    public boolean transfer(Db db, Client c) {
+        return Bank.transfer(c.any(db), c.any(db), 1000L);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean depositContended(Db db, Client c) {
+        return Bank.deposit(c.hot(db), 1000L);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean transferContended(Db db, Client c) {
+        return Bank.transfer(c.hot(db), c.hot(db), 1000L);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean transferSpread(Db db, Client c) {
+        return Bank.transfer(c.any(db), c.any(db), 1000L);
+    }
+}
@@ -0,0 +1,71 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The admin search box: one page of UserDAO.search for a name, an email and a phone prefix
+ * (what the box sends a few keystrokes in), and for a prefix that matches nobody. Every seeded
+ * name starts with "User", so the name query intersects a term that matches the whole table.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SearchBenchmark {
+    static final int PAGE = 50;
+
+    @Param("100000")
+    public int users;
+
+    BenchDatabase db;
+    SplittableRandom rnd;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        db = BenchDatabase.create(users, 0);
+        rnd = new SplittableRandom(BenchDatabase.SEED);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        db.close();
+    }
+
+    @Benchmark
+    public List<?> name() {
+        return Bank.searchUsers("user " + (1 + rnd.nextInt(999)), 0, PAGE);
+    }
+
+    @Benchmark
+    public List<?> email() {
+        return Bank.searchUsers("user" + (1 + rnd.nextInt(users)) + "@ben", 0, PAGE);
+    }
+
+    @Benchmark
+    public List<?> phone() {
+        return Bank.searchUsers(String.format("9%09d", 1 + rnd.nextInt(users)).substring(0, 8), 0, PAGE);
+    }
+
+    @Benchmark
+    public List<?> miss() {
+        return Bank.searchUsers("zz" + rnd.nextInt(1000), 0, PAGE);
+    }
+}
@@ -0,0 +1,59 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/** Statement queries as the transactions table grows. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StatementBenchmark {
+    @Param({"1000", "100000", "10000000"})
+    public long rows;
+
+    @Param("1000")
+    public int accounts;
+
+    BenchDatabase db;
+    SplittableRandom rnd;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        db = BenchDatabase.create(accounts, rows);
+        rnd = new SplittableRandom(BenchDatabase.SEED);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        db.close();
+    }
+
+    @Benchmark
+    public List<?> miniStatement() {
+        return Bank.miniStatement(1 + rnd.nextInt(accounts), 10);
+    }
+
+    /** A 50-row keyset page restricted to one day of history. */
+    @Benchmark
+    public Object statementPageInRange() {
+        return Bank.statement(1 + rnd.nextInt(accounts), "2024-01-01 00:00:00", "2024-01-02 00:00:00", 50);
+    }
+}
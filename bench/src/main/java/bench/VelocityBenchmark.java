@@ -0,0 +1,75 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the velocity rules: withdraw/transfer throughput with no rules installed and with
+ * a typical rule set whose limits are never reached, plus one rule check (counting the
+ * posting and evaluating every rule) on its own.
+ */
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class VelocityBenchmark {
+    static final String RULES = "minute.count:1000000,hour.amount:10000000,day.amount:100000000,hour.payees:60";
+
+    @Param({"off", "on"})
+    public String rules;
+
+    @Param("10000")
+    public int accounts;
+
+    BenchDatabase db;
+    SplittableRandom rnd;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        db = BenchDatabase.create(accounts, 0);
+        rnd = new SplittableRandom(BenchDatabase.SEED);
+        Bank.configureVelocity("on".equals(rules) ? RULES : "");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Bank.configureVelocity("");
+        db.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public boolean withdraw() {
+        return Bank.withdraw(1 + rnd.nextInt(accounts), 1000L);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public boolean transfer() {
+        return Bank.transfer(1 + rnd.nextInt(accounts), 1 + rnd.nextInt(accounts), 1000L);
+    }
+
+    /** A handful of payees per account, so the fan-out rule is evaluated but never fires. */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public boolean check() {
+        return Bank.velocityAdmit(1 + rnd.nextInt(accounts), 1 + rnd.nextInt(16), 1000L, System.currentTimeMillis());
+    }
+}